@@ -0,0 +1,138 @@
+/*
+ * This file is from NetGuard.
+ *
+ * NetGuard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NetGuard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2015–2020 by Marcel Bokhorst (M66B), Konrad
+ * Kollnig (University of Oxford)
+ */
+
+package eu.faircode.netguard;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.View;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import net.kollnig.missioncontrol.R;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ActivityConnections extends AppCompatActivity {
+    private static final long REFRESH_INTERVAL = 1000L; // milliseconds
+
+    private AdapterConnections adapter = null;
+    private TextView tvEmpty;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Bytes of the previous snapshot by flow
+    private Map<String, Long> lastBytes = null;
+    private long lastTime = 0;
+
+    private final Runnable refreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            handler.postDelayed(this, REFRESH_INTERVAL);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        Util.setTheme(this);
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.connections);
+
+        getSupportActionBar().setTitle(R.string.setting_show_connections);
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+
+        tvEmpty = findViewById(R.id.tvEmpty);
+        ListView lvConnections = findViewById(R.id.lvConnections);
+        adapter = new AdapterConnections(this);
+        lvConnections.setAdapter(adapter);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        handler.post(refreshRunnable);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refreshRunnable);
+        lastBytes = null;
+    }
+
+    private void refresh() {
+        long now = SystemClock.elapsedRealtime();
+        List<Session> sessions = new ArrayList<>();
+        for (Session session : ServiceSinkhole.getSessions())
+            if (session.isActive())
+                sessions.add(session);
+
+        // Throughput by application since the previous snapshot
+        Map<String, Long> bytes = new HashMap<>();
+        final Map<Integer, Float> rates = new HashMap<>();
+        for (Session session : sessions) {
+            long total = session.sent + session.received;
+            bytes.put(session.getKey(), total);
+
+            if (lastBytes != null && now > lastTime) {
+                Long last = lastBytes.get(session.getKey());
+                long delta = (last == null || last > total ? total : total - last);
+                Float rate = rates.get(session.uid);
+                rates.put(session.uid, (rate == null ? 0 : rate) + delta * 1000f / (now - lastTime));
+            }
+        }
+        lastBytes = bytes;
+        lastTime = now;
+
+        // Busiest applications first
+        Collections.sort(sessions, new Comparator<Session>() {
+            @Override
+            public int compare(Session s1, Session s2) {
+                Float r1 = rates.get(s1.uid);
+                Float r2 = rates.get(s2.uid);
+                int c = Float.compare(r2 == null ? 0 : r2, r1 == null ? 0 : r1);
+                if (c != 0)
+                    return c;
+                if (s1.uid != s2.uid)
+                    return Integer.compare(s1.uid, s2.uid);
+                return Long.compare(s2.sent + s2.received, s1.sent + s1.received);
+            }
+        });
+
+        adapter.set(sessions, rates);
+        tvEmpty.setVisibility(sessions.size() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    protected void onDestroy() {
+        handler.removeCallbacks(refreshRunnable);
+        adapter = null;
+        super.onDestroy();
+    }
+}
@@ -26,6 +26,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -35,6 +36,7 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.ListView;
 import android.widget.PopupMenu;
 import android.widget.TextView;
@@ -55,7 +57,9 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 public class ActivityLog extends AppCompatActivity implements SharedPreferences.OnSharedPreferenceChangeListener {
     private static final String TAG = "TrackerControl.Log";
@@ -72,8 +76,40 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
     private InetAddress vpn6 = null;
 
     private static final int REQUEST_PCAP = 1;
-
-    private DatabaseHelper.LogChangedListener listener = () -> runOnUiThread(this::updateAdapter);
+    private static final int PCAP_HEADER_SIZE = 24;
+
+    private static final int LOG_PAGE_SIZE = 250;
+    private static final int LOG_HEAD_MAX = 8;
+    private static final int LOG_PAGE_WINDOW = 3;
+    private static final int SEARCH_DELAY = 300; // milliseconds
+
+    // The log is shown in pages keyed by (time, id), new rows are added on top
+    // Only a window of pages is kept, pages outside of it are reloaded by their key
+    private Cursor pagingCursor = null;
+    private List<Cursor> listHead = new ArrayList<>();
+    private List<Cursor> listPage = new ArrayList<>();
+    private List<long[]> listPageKey = new ArrayList<>();
+    private int pagingFirst;
+    private long pagingMaxId;
+    private long pagingLastId;
+    private long pagingTime;
+    private long pagingId;
+    private boolean pagingEnd;
+
+    private DatabaseHelper.LogChangedListener listener = () -> runOnUiThread(this::appendAdapter);
+
+    private String searchQuery = null;
+
+    private Runnable searchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (adapter != null)
+                if (TextUtils.isEmpty(searchQuery))
+                    updateAdapter();
+                else
+                    adapter.getFilter().filter(getUidForName(searchQuery));
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -116,16 +152,23 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
 
         lvLog = findViewById(R.id.lvLog);
 
-        boolean udp = prefs.getBoolean("proto_udp", true);
-        boolean tcp = prefs.getBoolean("proto_tcp", true);
-        boolean other = prefs.getBoolean("proto_other", true);
-        boolean allowed = prefs.getBoolean("traffic_allowed", true);
-        boolean blocked = prefs.getBoolean("traffic_blocked", true);
-
-        adapter = new AdapterLog(this, DatabaseHelper.getInstance(this).getLog(udp, tcp, other, allowed, blocked), resolve, organization);
+        adapter = new AdapterLog(this, getFirstLogPage(), resolve, organization);
         adapter.setFilterQueryProvider(constraint -> DatabaseHelper.getInstance(ActivityLog.this).searchLog(constraint.toString()));
 
         lvLog.setAdapter(adapter);
+        lvLog.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (firstVisibleItem + visibleItemCount >= totalItemCount - LOG_PAGE_SIZE / 4)
+                    loadNextPage();
+                else if (firstVisibleItem < LOG_PAGE_SIZE / 4)
+                    loadPreviousPage();
+            }
+        });
 
         try {
             vpn4 = InetAddress.getByName(prefs.getString("vpn4", "10.1.10.1"));
@@ -250,7 +293,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
         super.onResume();
         if (live) {
             DatabaseHelper.getInstance(this).addLogChangedListener(listener);
-            updateAdapter();
+            appendAdapter();
         }
     }
 
@@ -299,21 +342,18 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
         searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
             @Override
             public boolean onQueryTextSubmit(String query) {
-                if (adapter != null)
-                    adapter.getFilter().filter(getUidForName(query));
+                search(query);
                 return true;
             }
 
             @Override
             public boolean onQueryTextChange(String newText) {
-                if (adapter != null)
-                    adapter.getFilter().filter(getUidForName(newText));
+                search(newText);
                 return true;
             }
         });
         searchView.setOnCloseListener(() -> {
-            if (adapter != null)
-                adapter.getFilter().filter(null);
+            updateAdapter();
             return true;
         });
 
@@ -325,7 +365,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
         // https://gist.github.com/granoeste/5574148
-        File pcap_file = new File(getDir("data", MODE_PRIVATE), "netguard.pcap");
+        boolean pcap = !ServiceSinkhole.getPcapFiles(this).isEmpty();
 
         boolean export = (getPackageManager().resolveActivity(getIntentPCAPDocument(), 0) != null);
 
@@ -340,7 +380,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
         menu.findItem(R.id.menu_log_resolve).setChecked(prefs.getBoolean("resolve", false));
         menu.findItem(R.id.menu_log_organization).setChecked(prefs.getBoolean("organization", false));
         menu.findItem(R.id.menu_pcap_enabled).setChecked(prefs.getBoolean("pcap", false));
-        menu.findItem(R.id.menu_pcap_export).setEnabled(pcap_file.exists() && export);
+        menu.findItem(R.id.menu_pcap_export).setEnabled(pcap && export);
 
         return super.onPrepareOptionsMenu(menu);
     }
@@ -348,7 +388,6 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        final File pcap_file = new File(getDir("data", MODE_PRIVATE), "netguard.pcap");
 
         int itemId = item.getItemId();
         if (itemId == android.R.id.home) {
@@ -419,13 +458,10 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
                     DatabaseHelper.getInstance(ActivityLog.this).clearLog(-1);
                     if (prefs.getBoolean("pcap", false)) {
                         ServiceSinkhole.setPcap(false, ActivityLog.this);
-                        if (pcap_file.exists() && !pcap_file.delete())
-                            Log.w(TAG, "Delete PCAP failed");
+                        ServiceSinkhole.deletePcapFiles(ActivityLog.this);
                         ServiceSinkhole.setPcap(true, ActivityLog.this);
-                    } else {
-                        if (pcap_file.exists() && !pcap_file.delete())
-                            Log.w(TAG, "Delete PCAP failed");
-                    }
+                    } else
+                        ServiceSinkhole.deletePcapFiles(ActivityLog.this);
                     return null;
                 }
 
@@ -446,22 +482,184 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
         return super.onOptionsItemSelected(item);
     }
 
+    private void search(final String query) {
+        // Wait for typing to pause
+        lvLog.removeCallbacks(searchRunnable);
+        searchQuery = query;
+        if (TextUtils.isEmpty(query))
+            searchRunnable.run();
+        else
+            lvLog.postDelayed(searchRunnable, SEARCH_DELAY);
+    }
+
     private void updateAdapter() {
         if (adapter != null) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-            boolean udp = prefs.getBoolean("proto_udp", true);
-            boolean tcp = prefs.getBoolean("proto_tcp", true);
-            boolean other = prefs.getBoolean("proto_other", true);
-            boolean allowed = prefs.getBoolean("traffic_allowed", true);
-            boolean blocked = prefs.getBoolean("traffic_blocked", true);
-            adapter.changeCursor(DatabaseHelper.getInstance(this).getLog(udp, tcp, other, allowed, blocked));
+            // Closes the previous pages
+            adapter.changeCursor(getFirstLogPage());
             if (menuSearch != null && menuSearch.isActionViewExpanded()) {
                 SearchView searchView = (SearchView) menuSearch.getActionView();
-                adapter.getFilter().filter(getUidForName(searchView.getQuery().toString()));
+                String query = searchView.getQuery().toString();
+                if (!TextUtils.isEmpty(query))
+                    adapter.getFilter().filter(getUidForName(query));
             }
         }
     }
 
+    private void appendAdapter() {
+        if (adapter == null)
+            return;
+
+        // Search results are replaced as a whole
+        if (adapter.getCursor() != pagingCursor) {
+            updateAdapter();
+            return;
+        }
+
+        DatabaseHelper dh = DatabaseHelper.getInstance(this);
+        long maxId = dh.getLogMaxId();
+        if (maxId <= pagingLastId)
+            return;
+
+        // New rows are loaded when scrolling back to the first page
+        if (pagingFirst > 0) {
+            pagingLastId = maxId;
+            return;
+        }
+
+        Cursor head = getLogSince(pagingLastId, maxId);
+        pagingLastId = maxId;
+        if (head.getCount() == 0) {
+            head.close();
+            return;
+        }
+        listHead.add(0, head);
+
+        // Merge new rows into one cursor
+        if (listHead.size() > LOG_HEAD_MAX) {
+            for (Cursor cursor : listHead)
+                cursor.close();
+            listHead.clear();
+            listHead.add(getLogSince(pagingMaxId, pagingLastId));
+        }
+
+        swapLogCursor(0);
+    }
+
+    private void loadNextPage() {
+        if (adapter == null || adapter.getCursor() != pagingCursor || pagingEnd)
+            return;
+
+        int shift = 0;
+        if (listPage.size() >= LOG_PAGE_WINDOW) {
+            if (pagingFirst == 0) {
+                for (Cursor cursor : listHead) {
+                    shift -= cursor.getCount();
+                    cursor.close();
+                }
+                listHead.clear();
+            }
+
+            Cursor first = listPage.remove(0);
+            shift -= first.getCount();
+            first.close();
+            pagingFirst++;
+        }
+
+        addLogPage(getLogPage(pagingTime, pagingId));
+        swapLogCursor(shift);
+    }
+
+    private void loadPreviousPage() {
+        if (adapter == null || adapter.getCursor() != pagingCursor || pagingFirst == 0)
+            return;
+
+        Cursor last = listPage.remove(listPage.size() - 1);
+        last.close();
+        long[] next = listPageKey.get(pagingFirst + listPage.size());
+        pagingTime = next[0];
+        pagingId = next[1];
+        pagingEnd = false;
+
+        pagingFirst--;
+        long[] key = listPageKey.get(pagingFirst);
+        Cursor page = getLogPage(key[0], key[1]);
+        listPage.add(0, page);
+        int shift = page.getCount();
+
+        if (pagingFirst == 0 && pagingLastId > pagingMaxId) {
+            Cursor head = getLogSince(pagingMaxId, pagingLastId);
+            listHead.add(head);
+            shift += head.getCount();
+        }
+
+        swapLogCursor(shift);
+    }
+
+    private Cursor getFirstLogPage() {
+        // The adapter closes the previous cursors
+        listHead.clear();
+        listPage.clear();
+        listPageKey.clear();
+        pagingFirst = 0;
+
+        pagingMaxId = DatabaseHelper.getInstance(this).getLogMaxId();
+        pagingLastId = pagingMaxId;
+        pagingTime = Long.MAX_VALUE;
+        pagingId = Long.MAX_VALUE;
+        pagingEnd = false;
+
+        addLogPage(getLogPage(pagingTime, pagingId));
+        pagingCursor = new MergeCursor(listPage.toArray(new Cursor[0]));
+        return pagingCursor;
+    }
+
+    private void addLogPage(Cursor page) {
+        if (listPageKey.size() == pagingFirst + listPage.size())
+            listPageKey.add(new long[]{pagingTime, pagingId});
+        listPage.add(page);
+        if (page.moveToLast()) {
+            pagingTime = page.getLong(page.getColumnIndex("time"));
+            pagingId = page.getLong(page.getColumnIndex("_id"));
+        }
+        if (page.getCount() < LOG_PAGE_SIZE)
+            pagingEnd = true;
+    }
+
+    private void swapLogCursor(int shift) {
+        // Pages are reused, the previous merge cursor should not be closed
+        List<Cursor> listCursor = new ArrayList<>(listHead);
+        listCursor.addAll(listPage);
+        pagingCursor = new MergeCursor(listCursor.toArray(new Cursor[0]));
+
+        // Keep the visible rows in place when pages are added or removed above them
+        int position = lvLog.getFirstVisiblePosition();
+        View first = lvLog.getChildAt(0);
+        adapter.swapCursor(pagingCursor);
+        if (shift != 0)
+            lvLog.setSelectionFromTop(Math.max(0, position + shift), first == null ? 0 : first.getTop());
+    }
+
+    private Cursor getLogPage(long time, long id) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        boolean udp = prefs.getBoolean("proto_udp", true);
+        boolean tcp = prefs.getBoolean("proto_tcp", true);
+        boolean other = prefs.getBoolean("proto_other", true);
+        boolean allowed = prefs.getBoolean("traffic_allowed", true);
+        boolean blocked = prefs.getBoolean("traffic_blocked", true);
+        return DatabaseHelper.getInstance(this).getLogPage(udp, tcp, other, allowed, blocked,
+                pagingMaxId, time, id, LOG_PAGE_SIZE);
+    }
+
+    private Cursor getLogSince(long fromId, long toId) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        boolean udp = prefs.getBoolean("proto_udp", true);
+        boolean tcp = prefs.getBoolean("proto_tcp", true);
+        boolean other = prefs.getBoolean("proto_other", true);
+        boolean allowed = prefs.getBoolean("traffic_allowed", true);
+        boolean blocked = prefs.getBoolean("traffic_blocked", true);
+        return DatabaseHelper.getInstance(this).getLogSince(udp, tcp, other, allowed, blocked, fromId, toId);
+    }
+
     private String getUidForName(String query) {
         if (query != null && query.length() > 0) {
             for (Rule rule : Rule.getRules(true, ActivityLog.this))
@@ -500,6 +698,9 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
 
     private void handleExportPCAP(final Intent data) {
         new AsyncTask<Object, Object, Throwable>() {
+            // Resuming the capture resets the count
+            private int dropped;
+
             @Override
             protected Throwable doInBackground(Object... objects) {
                 OutputStream out = null;
@@ -507,6 +708,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
                 try {
                     // Stop capture
                     ServiceSinkhole.setPcap(false, ActivityLog.this);
+                    dropped = ServiceSinkhole.getPcapDropped();
 
                     Uri target = data.getData();
                     if (data.hasExtra("org.openintents.extra.DIR_PATH"))
@@ -514,17 +716,26 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
                     Log.i(TAG, "Export PCAP URI=" + target);
                     out = getContentResolver().openOutputStream(target);
 
-                    File pcap = new File(getDir("data", MODE_PRIVATE), "netguard.pcap");
-                    in = new FileInputStream(pcap);
-
-                    int len;
+                    // Concatenate rotated files, keeping only the first file header
                     long total = 0;
-                    byte[] buf = new byte[4096];
-                    while ((len = in.read(buf)) > 0) {
-                        out.write(buf, 0, len);
-                        total += len;
+                    byte[] buf = new byte[65536];
+                    List<File> files = ServiceSinkhole.getPcapFiles(ActivityLog.this);
+                    for (int i = 0; i < files.size(); i++) {
+                        in = new FileInputStream(files.get(i));
+                        if (i > 0 && in.skip(PCAP_HEADER_SIZE) != PCAP_HEADER_SIZE)
+                            throw new IOException("Invalid PCAP file=" + files.get(i));
+
+                        int len;
+                        while ((len = in.read(buf)) > 0) {
+                            out.write(buf, 0, len);
+                            total += len;
+                        }
+
+                        in.close();
+                        in = null;
                     }
-                    Log.i(TAG, "Copied bytes=" + total);
+                    Log.i(TAG, "Copied bytes=" + total + " files=" + files.size() +
+                            " dropped=" + dropped);
 
                     return null;
                 } catch (Throwable ex) {
@@ -553,7 +764,9 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
 
             @Override
             protected void onPostExecute(Throwable ex) {
-                if (ex == null)
+                if (ex == null && dropped > 0)
+                    Toast.makeText(ActivityLog.this, getResources().getQuantityString(R.plurals.msg_pcap_dropped, dropped, dropped), Toast.LENGTH_LONG).show();
+                else if (ex == null)
                     Toast.makeText(ActivityLog.this, R.string.msg_completed, Toast.LENGTH_LONG).show();
                 else
                     Toast.makeText(ActivityLog.this, ex.toString(), Toast.LENGTH_LONG).show();
@@ -584,7 +584,7 @@ public class ActivityMain extends AppCompatActivity implements SharedPreferences
                 @Override
                 public void run() {
                     if (adapter != null && adapter.isLive())
-                        adapter.notifyDataSetChanged();
+                        adapter.updateCounts(ActivityMain.this);
                 }
             });
         }
@@ -243,6 +243,13 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         pref_validate.setTitle(getString(R.string.setting_validate, prefs.getString("validate", "www.f-droid.org")));
         pref_ttl.setTitle(getString(R.string.setting_ttl, prefs.getString("ttl", "259200")));
 
+        // DNS cache parameters
+        screen.findPreference("dns_cache_size").setTitle(getString(R.string.setting_dns_cache_size, prefs.getString("dns_cache_size", "256")));
+        screen.findPreference("dns_cache_negative").setTitle(getString(R.string.setting_dns_cache_negative, prefs.getString("dns_cache_negative", "60")));
+
+        // Event loop parameters
+        screen.findPreference("epoll_events").setTitle(getString(R.string.setting_epoll_events, prefs.getString("epoll_events", "64")));
+
         // SOCKS5 parameters
         screen.findPreference("socks5_addr").setTitle(getString(R.string.setting_socks5_addr, prefs.getString("socks5_addr", "-")));
         screen.findPreference("socks5_port").setTitle(getString(R.string.setting_socks5_port, prefs.getString("socks5_port", "-")));
@@ -253,6 +260,9 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         //screen.findPreference("pcap_record_size").setTitle(getString(R.string.setting_pcap_record_size, prefs.getString("pcap_record_size", "64")));
         //screen.findPreference("pcap_file_size").setTitle(getString(R.string.setting_pcap_file_size, prefs.getString("pcap_file_size", "2")));
 
+        // Traffic log
+        screen.findPreference("log_size").setTitle(getString(R.string.setting_log_size, prefs.getString("log_size", "50")));
+
         // Watchdog
         screen.findPreference("watchdog").setTitle(getString(R.string.setting_watchdog, prefs.getString("watchdog", "0")));
 
@@ -269,6 +279,16 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
                 }
             });
 
+        // Show connections
+        Preference pref_show_connections = screen.findPreference("show_connections");
+        pref_show_connections.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                startActivity(new Intent(ActivitySettings.this, ActivityConnections.class));
+                return true;
+            }
+        });
+
         // Handle export
         Preference pref_export = screen.findPreference("export");
         pref_export.setEnabled(getIntentCreateExport().resolveActivity(getPackageManager()) != null);
@@ -688,6 +708,24 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
                     getString(R.string.setting_rcode, prefs.getString(name, "3")));
             ServiceSinkhole.reload("changed " + name, this, false);
 
+        } else if ("dns_cache".equals(name))
+            ServiceSinkhole.reload("changed " + name, this, false);
+
+        else if ("dns_cache_size".equals(name)) {
+            getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_dns_cache_size, prefs.getString(name, "256")));
+            ServiceSinkhole.reload("changed " + name, this, false);
+
+        } else if ("dns_cache_negative".equals(name)) {
+            getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_dns_cache_negative, prefs.getString(name, "60")));
+            ServiceSinkhole.reload("changed " + name, this, false);
+
+        } else if ("epoll_edge".equals(name))
+            ServiceSinkhole.reload("changed " + name, this, false);
+
+        else if ("epoll_events".equals(name)) {
+            getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_epoll_events, prefs.getString(name, "64")));
+            ServiceSinkhole.reload("changed " + name, this, false);
+
         } else if ("socks5_enabled".equals(name))
             ServiceSinkhole.reload("changed " + name, this, false);
 
@@ -725,14 +763,14 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
                 getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_pcap_file_size, prefs.getString(name, "2")));
 
             ServiceSinkhole.setPcap(false, this);
-
-            File pcap_file = new File(getDir("data", MODE_PRIVATE), "netguard.pcap");
-            if (pcap_file.exists() && !pcap_file.delete())
-                Log.w(TAG, "Delete PCAP failed");
+            ServiceSinkhole.deletePcapFiles(this);
 
             if (prefs.getBoolean("pcap", false))
                 ServiceSinkhole.setPcap(true, this);
 
+        } else if ("log_size".equals(name)) {
+            getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_log_size, prefs.getString(name, "50")));
+
         } else if ("watchdog".equals(name)) {
             getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_watchdog, prefs.getString(name, "0")));
             ServiceSinkhole.reload("changed " + name, this, false);
@@ -24,7 +24,6 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.text.SpannableString;
 import android.text.style.UnderlineSpan;
@@ -38,12 +37,9 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import androidx.core.graphics.drawable.DrawableCompat;
-import androidx.core.view.ViewCompat;
 
 import net.kollnig.missioncontrol.R;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 
 public class AdapterAccess extends CursorAdapter {
@@ -137,30 +133,13 @@ public class AdapterAccess extends CursorAdapter {
         span.setSpan(new UnderlineSpan(), 0, dest.length(), 0);
         tvDest.setText(span);
 
+        HostResolver resolver = HostResolver.getInstance(context);
+        resolver.cancel(tvDest);
         if (Util.isNumericAddress(daddr))
-            new AsyncTask<String, Object, String>() {
-                @Override
-                protected void onPreExecute() {
-                    ViewCompat.setHasTransientState(tvDest, true);
-                }
-
-                @Override
-                protected String doInBackground(String... args) {
-                    try {
-                        return InetAddress.getByName(args[0]).getHostName();
-                    } catch (UnknownHostException ignored) {
-                        return args[0];
-                    }
-                }
-
-                @Override
-                protected void onPostExecute(String addr) {
+            resolver.resolveName(tvDest, daddr, (address, name) ->
                     tvDest.setText(
                             Util.getProtocolName(protocol, version, true) +
-                                    " >" + addr + (dport > 0 ? "/" + dport : ""));
-                    ViewCompat.setHasTransientState(tvDest, false);
-                }
-            }.execute(daddr);
+                                    " >" + (name == null ? address : name) + (dport > 0 ? "/" + dport : "")));
 
         if (allowed < 0)
             tvDest.setTextColor(colorText);
@@ -0,0 +1,108 @@
+/*
+ * This file is from NetGuard.
+ *
+ * NetGuard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NetGuard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2015–2020 by Marcel Bokhorst (M66B), Konrad
+ * Kollnig (University of Oxford)
+ */
+
+package eu.faircode.netguard;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.TextView;
+
+import net.kollnig.missioncontrol.R;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AdapterConnections extends ArrayAdapter<Session> {
+    private Map<Integer, String> names = new HashMap<>();
+    private Map<Integer, Float> rates = new HashMap<>();
+
+    public AdapterConnections(Context context) {
+        super(context, 0);
+    }
+
+    // Rates are in bytes per second by uid
+    public void set(List<Session> sessions, Map<Integer, Float> rates) {
+        this.rates = rates;
+        setNotifyOnChange(false);
+        clear();
+        addAll(sessions);
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public View getView(int position, View view, ViewGroup parent) {
+        if (view == null)
+            view = LayoutInflater.from(getContext()).inflate(R.layout.connection, parent, false);
+
+        Context context = getContext();
+        Session session = getItem(position);
+
+        // Get views
+        TextView tvApp = view.findViewById(R.id.tvApp);
+        TextView tvRate = view.findViewById(R.id.tvRate);
+        TextView tvProtocol = view.findViewById(R.id.tvProtocol);
+        TextView tvDest = view.findViewById(R.id.tvDest);
+        TextView tvState = view.findViewById(R.id.tvState);
+        TextView tvBytes = view.findViewById(R.id.tvBytes);
+        TextView tvAge = view.findViewById(R.id.tvAge);
+
+        // Application names are looked up once
+        String name = names.get(session.uid);
+        if (name == null) {
+            name = TextUtils.join(", ", Util.getApplicationNames(session.uid, context));
+            names.put(session.uid, name);
+        }
+        tvApp.setText(name);
+
+        Float rate = rates.get(session.uid);
+        if (rate == null)
+            rate = 0f;
+        if (rate < 1000 * 1000)
+            tvRate.setText(context.getString(R.string.msg_kbsec, rate / 1000));
+        else
+            tvRate.setText(context.getString(R.string.msg_mbsec, rate / 1000 / 1000));
+
+        tvProtocol.setText(Util.getProtocolName(session.protocol, session.version, false));
+        tvDest.setText(session.dport > 0 ? session.daddr + "/" + session.dport : session.daddr);
+        tvState.setText(session.getStateName());
+
+        long sent = session.sent;
+        long received = session.received;
+        if (sent > 1024 * 1024 * 1024L || received > 1024 * 1024 * 1024L)
+            tvBytes.setText(context.getString(R.string.msg_gb,
+                    sent / (1024 * 1024 * 1024f), received / (1024 * 1024 * 1024f)));
+        else if (sent > 1024 * 1024L || received > 1024 * 1024L)
+            tvBytes.setText(context.getString(R.string.msg_mb,
+                    sent / (1024 * 1024f), received / (1024 * 1024f)));
+        else
+            tvBytes.setText(context.getString(R.string.msg_kb,
+                    sent / 1024f, received / 1024f));
+
+        tvAge.setText(DateUtils.formatElapsedTime(session.age));
+
+        return view;
+    }
+}
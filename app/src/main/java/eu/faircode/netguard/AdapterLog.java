@@ -27,7 +27,6 @@ import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
@@ -40,7 +39,6 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.core.graphics.drawable.DrawableCompat;
-import androidx.core.view.ViewCompat;
 import androidx.preference.PreferenceManager;
 
 import net.kollnig.missioncontrol.R;
@@ -249,30 +247,13 @@ public class AdapterLog extends CursorAdapter {
         tvSAddr.setText(getKnownAddress(saddr));
 
         // Show destination address
+        HostResolver resolver = HostResolver.getInstance(context);
+        resolver.cancel(tvDaddr);
         if (!we && resolve && !isKnownAddress(daddr))
             if (dname == null) {
                 tvDaddr.setText(daddr);
-                new AsyncTask<String, Object, String>() {
-                    @Override
-                    protected void onPreExecute() {
-                        ViewCompat.setHasTransientState(tvDaddr, true);
-                    }
-
-                    @Override
-                    protected String doInBackground(String... args) {
-                        try {
-                            return InetAddress.getByName(args[0]).getHostName();
-                        } catch (UnknownHostException ignored) {
-                            return args[0];
-                        }
-                    }
-
-                    @Override
-                    protected void onPostExecute(String name) {
-                        tvDaddr.setText(">" + name);
-                        ViewCompat.setHasTransientState(tvDaddr, false);
-                    }
-                }.execute(daddr);
+                resolver.resolveName(tvDaddr, daddr, (address, name) ->
+                        tvDaddr.setText(">" + (name == null ? address : name)));
             } else
                 tvDaddr.setText(dname);
         else
@@ -280,33 +261,15 @@ public class AdapterLog extends CursorAdapter {
 
         // Show organization
         tvOrganization.setVisibility(View.GONE);
+        resolver.cancel(tvOrganization);
         if (!we && organization) {
             if (!isKnownAddress(daddr))
-                new AsyncTask<String, Object, String>() {
-                    @Override
-                    protected void onPreExecute() {
-                        ViewCompat.setHasTransientState(tvOrganization, true);
-                    }
-
-                    @Override
-                    protected String doInBackground(String... args) {
-                        try {
-                            return Util.getOrganization(args[0]);
-                        } catch (Throwable ex) {
-                            Log.w(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                            return null;
-                        }
-                    }
-
-                    @Override
-                    protected void onPostExecute(String organization) {
-                        if (organization != null) {
-                            tvOrganization.setText(organization);
-                            tvOrganization.setVisibility(View.VISIBLE);
-                        }
-                        ViewCompat.setHasTransientState(tvOrganization, false);
+                resolver.resolveOrganization(tvOrganization, daddr, (address, organization) -> {
+                    if (organization != null) {
+                        tvOrganization.setText(organization);
+                        tvOrganization.setVisibility(View.VISIBLE);
                     }
-                }.execute(daddr);
+                });
         }
 
         // Show extra data
@@ -69,6 +69,8 @@ import androidx.core.content.ContextCompat;
 import androidx.core.graphics.drawable.DrawableCompat;
 import androidx.core.widget.CompoundButtonCompat;
 import androidx.preference.PreferenceManager;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.bumptech.glide.load.DecodeFormat;
@@ -77,11 +79,15 @@ import com.bumptech.glide.request.RequestOptions;
 import net.kollnig.missioncontrol.DetailsActivity;
 import net.kollnig.missioncontrol.R;
 import net.kollnig.missioncontrol.data.InternetBlocklist;
+import net.kollnig.missioncontrol.data.Pair;
+import net.kollnig.missioncontrol.data.TrackerList;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static net.kollnig.missioncontrol.DetailsActivity.INTENT_EXTRA_APP_NAME;
 import static net.kollnig.missioncontrol.DetailsActivity.INTENT_EXTRA_APP_PACKAGENAME;
@@ -102,8 +108,47 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
     private boolean wifiActive = true;
     private boolean otherActive = true;
     private boolean live = true;
+    private boolean counting = false;
+    private boolean recount = false;
     private List<Rule> listAll = new ArrayList<>();
-    private List<Rule> listFiltered = new ArrayList<>();
+
+    // Diffed in the background, rules are identified by package and uid
+    private final AsyncListDiffer<Rule> differ = new AsyncListDiffer<>(this, new DiffUtil.ItemCallback<Rule>() {
+        @Override
+        public boolean areItemsTheSame(Rule rule, Rule other) {
+            return (rule.uid == other.uid && rule.packageName.equals(other.packageName));
+        }
+
+        @Override
+        public boolean areContentsTheSame(Rule rule, Rule other) {
+            // Same instance when filtering, changes in place are notified explicitly
+            if (rule == other)
+                return true;
+            return (rule.icon == other.icon &&
+                    equals(rule.name, other.name) &&
+                    equals(rule.version, other.version) &&
+                    rule.system == other.system &&
+                    rule.internet == other.internet &&
+                    rule.enabled == other.enabled &&
+                    rule.changed == other.changed &&
+                    rule.hosts == other.hosts &&
+                    rule.wifi_blocked == other.wifi_blocked &&
+                    rule.other_blocked == other.other_blocked &&
+                    rule.screen_wifi == other.screen_wifi &&
+                    rule.screen_other == other.screen_other &&
+                    rule.roaming == other.roaming &&
+                    rule.lockdown == other.lockdown &&
+                    rule.apply == other.apply &&
+                    rule.notify == other.notify &&
+                    rule.relateduids == other.relateduids &&
+                    // Expanded rules show the access list, which might have changed
+                    !rule.expanded && !other.expanded);
+        }
+
+        private boolean equals(String s1, String s2) {
+            return (s1 == null ? s2 == null : s1.equals(s2));
+        }
+    });
 
     private List<String> messaging = Arrays.asList(
             "com.discord",
@@ -310,10 +355,75 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
     }
 
     public void set(List<Rule> listRule) {
+        // Keep expanded rules expanded
+        Map<String, Rule> mapPrevious = new HashMap<>();
+        for (Rule rule : listAll)
+            if (rule.expanded)
+                mapPrevious.put(rule.packageName + "/" + rule.uid, rule);
+        for (Rule rule : listRule)
+            if (mapPrevious.containsKey(rule.packageName + "/" + rule.uid))
+                rule.expanded = true;
+
         listAll = listRule;
-        listFiltered = new ArrayList<>();
-        listFiltered.addAll(listRule);
-        notifyDataSetChanged();
+        differ.submitList(new ArrayList<>(listRule));
+    }
+
+    public void updateCounts(final Context context) {
+        if (counting) {
+            recount = true;
+            return;
+        }
+        counting = true;
+
+        // Host and tracker counts for all rules at once
+        new AsyncTask<Object, Object, Pair<Map<Integer, Long>, Map<Integer, Integer>>>() {
+            @Override
+            protected Pair<Map<Integer, Long>, Map<Integer, Integer>> doInBackground(Object... objects) {
+                Map<Integer, Long> hosts = DatabaseHelper.getInstance(context).getHostCounts();
+                Map<Integer, Integer> trackers = TrackerList.getInstance(context).getTrackerCountsAndTotal().first();
+                return new Pair<>(hosts, trackers);
+            }
+
+            @Override
+            protected void onPostExecute(Pair<Map<Integer, Long>, Map<Integer, Integer>> counts) {
+                List<Integer> listChanged = new ArrayList<>();
+                List<Rule> listRule = differ.getCurrentList();
+                for (int i = 0; i < listRule.size(); i++) {
+                    Rule rule = listRule.get(i);
+                    Long hosts = counts.first().get(rule.uid);
+                    Integer trackers = counts.second().get(rule.uid);
+                    if (hosts == null)
+                        hosts = 0L;
+                    if (trackers == null)
+                        trackers = 0;
+
+                    // Expanded rules show the access list
+                    if (rule.expanded || rule.hosts != hosts || rule.getTrackerCount() != trackers)
+                        listChanged.add(i);
+                }
+
+                for (Rule rule : listAll) {
+                    Long hosts = counts.first().get(rule.uid);
+                    rule.hosts = (hosts == null ? 0 : hosts);
+                }
+                Rule.setTrackerCounts(counts.second());
+
+                for (int position : listChanged)
+                    notifyItemChanged(position);
+
+                counting = false;
+                if (recount) {
+                    recount = false;
+                    updateCounts(context);
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void notifyRuleChanged(Rule rule) {
+        int position = differ.getCurrentList().indexOf(rule);
+        if (position >= 0)
+            notifyItemChanged(position);
     }
 
     public void setWifiActive() {
@@ -360,7 +470,7 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
         final boolean notify_access = prefs.getBoolean("notify_access", false);
 
         // Get rule
-        final Rule rule = listFiltered.get(position);
+        final Rule rule = differ.getCurrentList().get(position);
 
         // Handle expanding/collapsing
         holder.llApplication.setOnClickListener(new View.OnClickListener() {
@@ -685,7 +795,7 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
                 view.getContext().getTheme().resolveAttribute(live ? R.attr.iconPause : R.attr.iconPlay, tv, true);
                 holder.ivLive.setImageResource(tv.resourceId);
                 if (live)
-                    AdapterRule.this.notifyDataSetChanged();
+                    updateCounts(context);
             }
         });
 
@@ -848,18 +958,7 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
                             }
 
                             if (menu == R.id.menu_allow || menu == R.id.menu_block || menu == R.id.menu_reset)
-                                new AsyncTask<Object, Object, Long>() {
-                                    @Override
-                                    protected Long doInBackground(Object... objects) {
-                                        return DatabaseHelper.getInstance(context).getHostCount(rule.uid, false);
-                                    }
-
-                                    @Override
-                                    protected void onPostExecute(Long hosts) {
-                                        rule.hosts = hosts;
-                                        notifyDataSetChanged();
-                                    }
-                                }.execute();
+                                updateCounts(context);
 
                             return result;
                         }
@@ -889,7 +988,7 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
                     public void onSure() {
                         DatabaseHelper.getInstance(context).clearAccess(rule.uid, true);
                         if (!live)
-                            notifyDataSetChanged();
+                            updateCounts(context);
                         if (rv != null)
                             rv.scrollToPosition(holder.getAdapterPosition());
                     }
@@ -985,6 +1084,8 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
         rule.updateChanged(context);
         Log.i(TAG, "Updated " + rule);
 
+        notifyRuleChanged(rule);
+
         List<Rule> listModified = new ArrayList<>();
         for (String pkg : rule.related) {
             for (Rule related : listAll)
@@ -1009,7 +1110,6 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
             updateRule(context, modified, false, listSearch);
 
         if (root) {
-            notifyDataSetChanged();
             NotificationManagerCompat.from(context).cancel(rule.uid);
             ServiceSinkhole.reload("rule changed", context, false);
         }
@@ -1046,15 +1146,21 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
 
             @Override
             protected void publishResults(CharSequence query, FilterResults result) {
-                listFiltered.clear();
+                final List<Rule> listFiltered = new ArrayList<>();
                 if (result == null)
                     listFiltered.addAll(listAll);
-                else {
+                else
                     listFiltered.addAll((List<Rule>) result.values);
-                    if (listFiltered.size() == 1)
-                        listFiltered.get(0).expanded = true;
-                }
-                notifyDataSetChanged();
+
+                differ.submitList(listFiltered, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (listFiltered.size() == 1 && !listFiltered.get(0).expanded) {
+                            listFiltered.get(0).expanded = true;
+                            notifyItemChanged(0);
+                        }
+                    }
+                });
             }
         };
     }
@@ -1066,12 +1172,12 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
 
     @Override
     public long getItemId(int position) {
-        Rule rule = listFiltered.get(position);
+        Rule rule = differ.getCurrentList().get(position);
         return rule.packageName.hashCode() * 100000L + rule.uid;
     }
 
     @Override
     public int getItemCount() {
-        return listFiltered.size();
+        return differ.getCurrentList().size();
     }
 }
@@ -24,59 +24,87 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.database.sqlite.SQLiteTransactionListener;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
+import net.kollnig.missioncontrol.data.GeoIp;
+import net.kollnig.missioncontrol.data.Tracker;
+import net.kollnig.missioncontrol.data.TrackerList;
+
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
     public Cursor getHosts(int uid) {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid
-            // There is an index on block
-            return db.query(true, "access", new String[]{"daddr", "time"}, "uid = ?", new String[]{Integer.toString(uid)}, null, null, null, null);
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is an index on block
+        String query = "SELECT DISTINCT h.name AS daddr, a.time";
+        query += " FROM access a";
+        query += " JOIN host h ON h.ID = a.daddr_id";
+        query += " WHERE a.uid = ?";
+        return db.rawQuery(query, new String[]{Integer.toString(uid)});
     }
 
     public Cursor getHosts() {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid
-            // There is an index on block
-            return db.query(true, "access", new String[]{"uid", "daddr", "time"}, null, null, null, null, null, null);
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is an index on block
+        String query = "SELECT DISTINCT a.uid, h.name AS daddr, a.time";
+        query += " FROM access a";
+        query += " JOIN host h ON h.ID = a.daddr_id";
+        return db.rawQuery(query, new String[]{});
     }
 
     private static final String TAG = "TrackerControl.Database";
 
     private static final String DB_NAME = "Netguard";
-    private static final int DB_VERSION = 21;
+    private static final int DB_VERSION = 29;
+
+    // The log is partitioned by UTC day
+    private static final long LOG_PARTITION = 24 * 3600 * 1000L;
+    private static final String LOG_COLUMNS =
+            "ID, time, version, protocol, flags, saddr, sport, daddr, dport, dname, uid, data, allowed, connection, interactive";
+    // Estimated bytes per log row besides the text columns: integers, indexes and full text index
+    private static final int LOG_ROW_OVERHEAD = 160;
+
+    private static final int HOST_CACHE_SIZE = 2048;
+
+    // Tracker history resolutions, hourly buckets are compacted into daily and weekly buckets
+    private static final long HISTORY_HOUR = 3600 * 1000L;
+    private static final long HISTORY_DAY = 24 * HISTORY_HOUR;
+    private static final long HISTORY_WEEK = 7 * HISTORY_DAY;
+    private static final long HISTORY_HOURLY_KEEP = 7 * HISTORY_DAY;
+    private static final long HISTORY_DAILY_KEEP = 90 * HISTORY_DAY;
+    private static final long HISTORY_WEEKLY_KEEP = 52 * HISTORY_WEEK;
 
     private static boolean once = true;
     private static List<LogChangedListener> logChangedListeners = new ArrayList<>();
     private static List<AccessChangedListener> accessChangedListeners = new ArrayList<>();
     private static List<ForwardChangedListener> forwardChangedListeners = new ArrayList<>();
+    // Changed from activities, notified directly from the threads writing to the database
+    private static List<TrackerChangedListener> trackerChangedListeners = new CopyOnWriteArrayList<>();
 
     private static HandlerThread hthread = null;
     private static Handler handler = null;
@@ -87,8 +115,42 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private final static int MSG_ACCESS = 2;
     private final static int MSG_FORWARD = 3;
 
+    private Context context;
     private SharedPreferences prefs;
-    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+
+    private final List<Long> logPartitions = new ArrayList<>();
+    private boolean logPartitionsLoaded = false;
+    private long lastLogId = -1; // committed
+    private long nextLogId = -1; // assigned
+
+    // Host name to host ID, only used within write transactions
+    private final Map<String, Long> hostIds = new LinkedHashMap<String, Long>(HOST_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return (size() > HOST_CACHE_SIZE);
+        }
+    };
+
+    // Host IDs resolved in the current write transaction, cached only once committed
+    private final Map<String, Long> newHostIds = new HashMap<>();
+    private final SQLiteTransactionListener hostIdsListener = new SQLiteTransactionListener() {
+        @Override
+        public void onBegin() {
+            newHostIds.clear();
+        }
+
+        @Override
+        public void onCommit() {
+            hostIds.putAll(newHostIds);
+            newHostIds.clear();
+        }
+
+        @Override
+        public void onRollback() {
+            // Inserted hosts do not exist anymore
+            newHostIds.clear();
+        }
+    };
 
     static {
         hthread = new HandlerThread("DatabaseHelper");
@@ -122,6 +184,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     private DatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        this.context = context;
         prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
         if (!once) {
@@ -144,11 +207,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.i(TAG, "Creating database " + DB_NAME + " version " + DB_VERSION);
-        createTableLog(db);
+        createTableHost(db);
         createTableAccess(db);
         createTableDns(db);
         createTableForward(db);
         createTableApp(db);
+        createTableAppTracker(db);
+        createTableTrackerHistory(db);
+        createTableResolved(db);
     }
 
     @Override
@@ -183,7 +249,192 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE INDEX idx_log_uid ON log(uid)");
     }
 
+    private void createTableLogFts(SQLiteDatabase db) {
+        Log.i(TAG, "Creating log_fts table");
+        // docid is the log ID, host contains the address and the domain name
+        db.execSQL("CREATE VIRTUAL TABLE log_fts USING fts4(host)");
+    }
+
+    private static String getLogTable(long day) {
+        return "log_" + day;
+    }
+
+    private static String getLogFtsTable(long day) {
+        return "log_fts_" + day;
+    }
+
+    private void createLogPartition(SQLiteDatabase db, long day) {
+        String table = getLogTable(day);
+        Log.i(TAG, "Creating " + table + " table");
+        // The ID is assigned by insertLog and is unique over all partitions
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + table + " (" +
+                " ID INTEGER PRIMARY KEY" +
+                ", time INTEGER NOT NULL" +
+                ", version INTEGER" +
+                ", protocol INTEGER" +
+                ", flags TEXT" +
+                ", saddr TEXT" +
+                ", sport INTEGER" +
+                ", daddr TEXT" +
+                ", dport INTEGER" +
+                ", dname TEXT" +
+                ", uid INTEGER" +
+                ", data TEXT" +
+                ", allowed INTEGER" +
+                ", connection INTEGER" +
+                ", interactive INTEGER" +
+                ");");
+        // Addresses and domain names are searched through the full text index
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + table + "_time ON " + table + "(time)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + table + "_dport ON " + table + "(dport)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + table + "_uid ON " + table + "(uid)");
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + getLogFtsTable(day) + " USING fts4(host)");
+    }
+
+    // Readers should not see a partition before it has been committed
+    private void addLogPartition(long day) {
+        synchronized (logPartitions) {
+            if (logPartitionsLoaded && !logPartitions.contains(day)) {
+                logPartitions.add(day);
+                Collections.sort(logPartitions);
+            }
+        }
+    }
+
+    private void dropLogPartition(SQLiteDatabase db, long day) {
+        Log.i(TAG, "Dropping " + getLogTable(day) + " table");
+        db.execSQL("DROP TABLE IF EXISTS " + getLogFtsTable(day));
+        db.execSQL("DROP TABLE IF EXISTS " + getLogTable(day));
+        synchronized (logPartitions) {
+            logPartitions.remove(day);
+        }
+    }
+
+    // Oldest first
+    private List<Long> getLogPartitions(SQLiteDatabase db) {
+        synchronized (logPartitions) {
+            if (!logPartitionsLoaded) {
+                try (Cursor cursor = db.rawQuery(
+                        "SELECT name FROM sqlite_master WHERE type = 'table' AND name GLOB 'log_[0-9]*'",
+                        new String[]{})) {
+                    while (cursor.moveToNext())
+                        logPartitions.add(Long.parseLong(cursor.getString(0).substring(4)));
+                }
+                Collections.sort(logPartitions);
+                logPartitionsLoaded = true;
+            }
+            return new ArrayList<>(logPartitions);
+        }
+    }
+
+    private long getLastLogId(SQLiteDatabase db) {
+        List<Long> days = getLogPartitions(db);
+        synchronized (logPartitions) {
+            if (lastLogId < 0) {
+                lastLogId = 0;
+                for (long day : days)
+                    lastLogId = Math.max(lastLogId, db.compileStatement(
+                            "SELECT IFNULL(MAX(ID), 0) FROM " + getLogTable(day)).simpleQueryForLong());
+                nextLogId = lastLogId;
+            }
+            return lastLogId;
+        }
+    }
+
+    private long getNextLogId(SQLiteDatabase db) {
+        getLastLogId(db);
+        synchronized (logPartitions) {
+            return ++nextLogId;
+        }
+    }
+
+    private void enforceLogSize(SQLiteDatabase db) {
+        long megabytes = 50;
+        try {
+            megabytes = Long.parseLong(prefs.getString("log_size", "50"));
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        }
+        long budget = megabytes * 1024L * 1024L;
+
+        // Only the log counts, the other tables are kept regardless of the log size
+        List<Long> days = getLogPartitions(db);
+        long[] sizes = new long[days.size()];
+        long size = 0;
+        for (int i = 0; i < days.size(); i++) {
+            sizes[i] = getLogPartitionSize(db, days.get(i));
+            size += sizes[i];
+        }
+
+        long today = System.currentTimeMillis() / LOG_PARTITION;
+        for (int i = 0; i < days.size(); i++) {
+            if (size <= budget || days.get(i) >= today)
+                break;
+            Log.i(TAG, "Log size=" + size + " budget=" + budget);
+            dropLogPartition(db, days.get(i));
+            size -= sizes[i];
+        }
+    }
+
+    private long getLogPartitionSize(SQLiteDatabase db, long day) {
+        // Hosts are stored in the full text index too
+        return DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) * " + LOG_ROW_OVERHEAD +
+                        " + IFNULL(SUM(IFNULL(LENGTH(flags), 0) + IFNULL(LENGTH(saddr), 0)" +
+                        " + 2 * (IFNULL(LENGTH(daddr), 0) + IFNULL(LENGTH(dname), 0))" +
+                        " + IFNULL(LENGTH(data), 0)), 0)" +
+                        " FROM " + getLogTable(day), null);
+    }
+
+    private void createTableHost(SQLiteDatabase db) {
+        Log.i(TAG, "Creating host table");
+        // Domain names and addresses referenced by the access and dns tables
+        db.execSQL("CREATE TABLE host (" +
+                " ID INTEGER PRIMARY KEY" +
+                ", name TEXT NOT NULL" +
+                ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_host ON host(name)");
+    }
+
     private void createTableAccess(SQLiteDatabase db) {
+        Log.i(TAG, "Creating access table");
+        db.execSQL("CREATE TABLE access (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", uid INTEGER NOT NULL" +
+                ", version INTEGER NOT NULL" +
+                ", protocol INTEGER NOT NULL" +
+                ", daddr_id INTEGER NOT NULL" +
+                ", dport INTEGER NOT NULL" +
+                ", time INTEGER NOT NULL" +
+                ", allowed INTEGER" +
+                ", block INTEGER NOT NULL" +
+                ", sent INTEGER" +
+                ", received INTEGER" +
+                ", connections INTEGER" +
+                ", country TEXT" +
+                ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_access ON access(uid, version, protocol, daddr_id, dport)");
+        db.execSQL("CREATE INDEX idx_access_daddr ON access(daddr_id)");
+        db.execSQL("CREATE INDEX idx_access_block ON access(block)");
+    }
+
+    private void createTableDns(SQLiteDatabase db) {
+        Log.i(TAG, "Creating dns table");
+        db.execSQL("CREATE TABLE dns (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", time INTEGER NOT NULL" +
+                ", qname_id INTEGER NOT NULL" +
+                ", aname_id INTEGER NOT NULL" +
+                ", resource_id INTEGER NOT NULL" +
+                ", ttl INTEGER" +
+                ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_dns ON dns(qname_id, aname_id, resource_id)");
+        db.execSQL("CREATE INDEX idx_dns_aname ON dns(aname_id)");
+        db.execSQL("CREATE INDEX idx_dns_resource ON dns(resource_id)");
+    }
+
+    // Schema before version 26, used by older upgrade steps
+    private void createLegacyTableAccess(SQLiteDatabase db) {
         Log.i(TAG, "Creating access table");
         db.execSQL("CREATE TABLE access (" +
                 " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
@@ -204,7 +455,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE INDEX idx_access_block ON access(block)");
     }
 
-    private void createTableDns(SQLiteDatabase db) {
+    private void createLegacyTableDns(SQLiteDatabase db) {
         Log.i(TAG, "Creating dns table");
         db.execSQL("CREATE TABLE dns (" +
                 " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
@@ -240,10 +491,52 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 ", system INTEGER  NOT NULL" +
                 ", internet INTEGER NOT NULL" +
                 ", enabled INTEGER NOT NULL" +
+                ", updated INTEGER" +
                 ");");
         db.execSQL("CREATE UNIQUE INDEX idx_package ON app(package)");
     }
 
+    private void createTableAppTracker(SQLiteDatabase db) {
+        Log.i(TAG, "Creating app_tracker table");
+        db.execSQL("CREATE TABLE app_tracker (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", uid INTEGER NOT NULL" +
+                ", tracker TEXT NOT NULL" +
+                ", first_seen INTEGER NOT NULL" +
+                ", last_seen INTEGER NOT NULL" +
+                ", hits INTEGER NOT NULL" +
+                ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_app_tracker ON app_tracker(uid, tracker)");
+    }
+
+    private void createTableResolved(SQLiteDatabase db) {
+        Log.i(TAG, "Creating resolved table");
+        // value is null when the address could not be resolved
+        db.execSQL("CREATE TABLE resolved (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", type INTEGER NOT NULL" +
+                ", address TEXT NOT NULL" +
+                ", value TEXT" +
+                ", time INTEGER NOT NULL" +
+                ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_resolved ON resolved(type, address)");
+    }
+
+    private void createTableTrackerHistory(SQLiteDatabase db) {
+        Log.i(TAG, "Creating tracker_history table");
+        // resolution is the bucket length, bucket is the start time of the bucket
+        db.execSQL("CREATE TABLE tracker_history (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", uid INTEGER NOT NULL" +
+                ", tracker TEXT NOT NULL" +
+                ", resolution INTEGER NOT NULL" +
+                ", bucket INTEGER NOT NULL" +
+                ", hits INTEGER NOT NULL" +
+                ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_tracker_history ON tracker_history(uid, tracker, resolution, bucket)");
+        db.execSQL("CREATE INDEX idx_tracker_history_bucket ON tracker_history(resolution, bucket)");
+    }
+
     private boolean columnExists(SQLiteDatabase db, String table, String column) {
         Cursor cursor = null;
         try {
@@ -311,19 +604,19 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 oldVersion = 8;
             }
             if (oldVersion < 9) {
-                createTableAccess(db);
+                createLegacyTableAccess(db);
                 oldVersion = 9;
             }
             if (oldVersion < 10) {
                 db.execSQL("DROP TABLE log");
                 db.execSQL("DROP TABLE access");
                 createTableLog(db);
-                createTableAccess(db);
+                createLegacyTableAccess(db);
                 oldVersion = 10;
             }
             if (oldVersion < 12) {
                 db.execSQL("DROP TABLE access");
-                createTableAccess(db);
+                createLegacyTableAccess(db);
                 oldVersion = 12;
             }
             if (oldVersion < 13) {
@@ -332,12 +625,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 oldVersion = 13;
             }
             if (oldVersion < 14) {
-                createTableDns(db);
+                createLegacyTableDns(db);
                 oldVersion = 14;
             }
             if (oldVersion < 15) {
                 db.execSQL("DROP TABLE access");
-                createTableAccess(db);
+                createLegacyTableAccess(db);
                 oldVersion = 15;
             }
             if (oldVersion < 16) {
@@ -371,6 +664,87 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 createTableApp(db);
                 oldVersion = 21;
             }
+            if (oldVersion < 22) {
+                // Populated by TrackerList on first use
+                createTableAppTracker(db);
+                oldVersion = 22;
+            }
+            if (oldVersion < 23) {
+                if (!columnExists(db, "app", "updated"))
+                    db.execSQL("ALTER TABLE app ADD COLUMN updated INTEGER");
+                oldVersion = 23;
+            }
+            if (oldVersion < 24) {
+                createTableLogFts(db);
+                db.execSQL("INSERT INTO log_fts (docid, host)" +
+                        " SELECT ID, IFNULL(daddr, '') || ' ' || IFNULL(dname, '') FROM log");
+                oldVersion = 24;
+            }
+            if (oldVersion < 25) {
+                List<Long> days = new ArrayList<>();
+                try (Cursor cursor = db.rawQuery(
+                        "SELECT DISTINCT time / " + LOG_PARTITION + " FROM log", new String[]{})) {
+                    while (cursor.moveToNext())
+                        days.add(cursor.getLong(0));
+                }
+                for (long day : days) {
+                    createLogPartition(db, day);
+                    db.execSQL("INSERT INTO " + getLogTable(day) + " (" + LOG_COLUMNS + ")" +
+                                    " SELECT " + LOG_COLUMNS + " FROM log WHERE time >= ? AND time < ?",
+                            new Object[]{day * LOG_PARTITION, (day + 1) * LOG_PARTITION});
+                    db.execSQL("INSERT INTO " + getLogFtsTable(day) + " (docid, host)" +
+                            " SELECT ID, IFNULL(daddr, '') || ' ' || IFNULL(dname, '') FROM " + getLogTable(day));
+                }
+                db.execSQL("DROP TABLE IF EXISTS log_fts");
+                db.execSQL("DROP TABLE log");
+                oldVersion = 25;
+            }
+            if (oldVersion < 26) {
+                createTableHost(db);
+                db.execSQL("INSERT OR IGNORE INTO host (name) SELECT daddr FROM access");
+                db.execSQL("INSERT OR IGNORE INTO host (name) SELECT qname FROM dns");
+                db.execSQL("INSERT OR IGNORE INTO host (name) SELECT aname FROM dns");
+                db.execSQL("INSERT OR IGNORE INTO host (name) SELECT resource FROM dns");
+
+                db.execSQL("DROP INDEX IF EXISTS idx_access");
+                db.execSQL("DROP INDEX IF EXISTS idx_access_daddr");
+                db.execSQL("DROP INDEX IF EXISTS idx_access_block");
+                db.execSQL("DROP INDEX IF EXISTS idx_dns");
+                db.execSQL("DROP INDEX IF EXISTS idx_dns_resource");
+                db.execSQL("ALTER TABLE access RENAME TO access_text");
+                db.execSQL("ALTER TABLE dns RENAME TO dns_text");
+                createTableAccess(db);
+                createTableDns(db);
+
+                // Keep the access IDs, they are used by the rules
+                db.execSQL("INSERT INTO access" +
+                        " (ID, uid, version, protocol, daddr_id, dport, time, allowed, block, sent, received, connections)" +
+                        " SELECT a.ID, a.uid, a.version, a.protocol, h.ID, a.dport, a.time, a.allowed, a.block, a.sent, a.received, a.connections" +
+                        " FROM access_text a JOIN host h ON h.name = a.daddr");
+                db.execSQL("INSERT INTO dns (ID, time, qname_id, aname_id, resource_id, ttl)" +
+                        " SELECT d.ID, d.time, q.ID, n.ID, r.ID, d.ttl" +
+                        " FROM dns_text d" +
+                        " JOIN host q ON q.name = d.qname" +
+                        " JOIN host n ON n.name = d.aname" +
+                        " JOIN host r ON r.name = d.resource");
+                db.execSQL("DROP TABLE access_text");
+                db.execSQL("DROP TABLE dns_text");
+                oldVersion = 26;
+            }
+            if (oldVersion < 27) {
+                createTableTrackerHistory(db);
+                oldVersion = 27;
+            }
+            if (oldVersion < 28) {
+                createTableResolved(db);
+                oldVersion = 28;
+            }
+            if (oldVersion < 29) {
+                // Filled in by the countries tab for existing rows
+                if (!columnExists(db, "access", "country"))
+                    db.execSQL("ALTER TABLE access ADD COLUMN country TEXT");
+                oldVersion = 29;
+            }
 
             if (oldVersion == DB_VERSION) {
                 db.setVersion(oldVersion);
@@ -388,396 +762,580 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // Log
     public void insertLog(Packet packet, String dname, int connection, boolean interactive) {
-        lock.writeLock().lock();
+        long day = packet.time / LOG_PARTITION;
+        boolean created = false;
+        long id;
+        boolean inserted = false;
+
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                ContentValues cv = new ContentValues();
-                cv.put("time", packet.time);
-                cv.put("version", packet.version);
+            if (!getLogPartitions(db).contains(day)) {
+                createLogPartition(db, day);
+                created = true;
+            }
 
-                if (packet.protocol < 0)
-                    cv.putNull("protocol");
-                else
-                    cv.put("protocol", packet.protocol);
+            id = getNextLogId(db);
 
-                cv.put("flags", packet.flags);
+            ContentValues cv = new ContentValues();
+            cv.put("ID", id);
+            cv.put("time", packet.time);
+            cv.put("version", packet.version);
 
-                cv.put("saddr", packet.saddr);
-                if (packet.sport < 0)
-                    cv.putNull("sport");
-                else
-                    cv.put("sport", packet.sport);
+            if (packet.protocol < 0)
+                cv.putNull("protocol");
+            else
+                cv.put("protocol", packet.protocol);
 
-                cv.put("daddr", packet.daddr);
-                if (packet.dport < 0)
-                    cv.putNull("dport");
-                else
-                    cv.put("dport", packet.dport);
+            cv.put("flags", packet.flags);
 
-                if (dname == null)
-                    cv.putNull("dname");
-                else
-                    cv.put("dname", dname);
+            cv.put("saddr", packet.saddr);
+            if (packet.sport < 0)
+                cv.putNull("sport");
+            else
+                cv.put("sport", packet.sport);
 
-                cv.put("data", packet.data);
+            cv.put("daddr", packet.daddr);
+            if (packet.dport < 0)
+                cv.putNull("dport");
+            else
+                cv.put("dport", packet.dport);
 
-                if (packet.uid < 0)
-                    cv.putNull("uid");
-                else
-                    cv.put("uid", packet.uid);
+            if (dname == null)
+                cv.putNull("dname");
+            else
+                cv.put("dname", dname);
 
-                cv.put("allowed", packet.allowed ? 1 : 0);
+            cv.put("data", packet.data);
 
-                cv.put("connection", connection);
-                cv.put("interactive", interactive ? 1 : 0);
+            if (packet.uid < 0)
+                cv.putNull("uid");
+            else
+                cv.put("uid", packet.uid);
 
-                if (db.insert("log", null, cv) == -1)
-                    Log.e(TAG, "Insert log failed");
+            cv.put("allowed", packet.allowed ? 1 : 0);
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+            cv.put("connection", connection);
+            cv.put("interactive", interactive ? 1 : 0);
+
+            if (db.insert(getLogTable(day), null, cv) == -1)
+                Log.e(TAG, "Insert log failed");
+            else {
+                inserted = true;
+
+                ContentValues fts = new ContentValues();
+                fts.put("docid", id);
+                fts.put("host", (packet.daddr == null ? "" : packet.daddr) + " " + (dname == null ? "" : dname));
+                if (db.insert(getLogFtsTable(day), null, fts) == -1)
+                    Log.e(TAG, "Insert log_fts failed");
             }
+
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
 
+        if (created)
+            addLogPartition(day);
+        if (inserted)
+            synchronized (logPartitions) {
+                lastLogId = Math.max(lastLogId, id);
+            }
+
+        // A new day is a good moment to check the size
+        if (created)
+            enforceLogSize(db);
+
         notifyLogChanged();
     }
 
     public void clearLog(int uid) {
-        lock.writeLock().lock();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
+            for (long day : getLogPartitions(db))
                 if (uid < 0)
-                    db.delete("log", null, new String[]{});
-                else
-                    db.delete("log", "uid = ?", new String[]{Integer.toString(uid)});
-
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+                    dropLogPartition(db, day);
+                else {
+                    // There is an index on uid
+                    String table = getLogTable(day);
+                    db.delete(getLogFtsTable(day), "docid IN (SELECT ID FROM " + table + " WHERE uid = ?)", new String[]{Integer.toString(uid)});
+                    db.delete(table, "uid = ?", new String[]{Integer.toString(uid)});
+                }
 
-            db.execSQL("VACUUM");
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
 
+        db.execSQL("VACUUM");
+
         notifyLogChanged();
     }
 
     public void cleanupLog(long time) {
-        lock.writeLock().lock();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                // There an index on time
-                int rows = db.delete("log", "time < ?", new String[]{Long.toString(time)});
-                Log.i(TAG, "Cleanup log" +
-                        " before=" + SimpleDateFormat.getDateTimeInstance().format(new Date(time)) +
-                        " rows=" + rows);
+            // Only whole days are dropped
+            int partitions = 0;
+            for (long day : getLogPartitions(db))
+                if ((day + 1) * LOG_PARTITION <= time) {
+                    dropLogPartition(db, day);
+                    partitions++;
+                }
+            Log.i(TAG, "Cleanup log" +
+                    " before=" + SimpleDateFormat.getDateTimeInstance().format(new Date(time)) +
+                    " partitions=" + partitions);
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+            enforceLogSize(db);
+
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
     }
 
-    public Cursor getLog(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked) {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is an index on time
+    private static String getLogSelection(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked) {
+        String selection = "(0 = 1";
+        if (udp)
+            selection += " OR protocol = 17";
+        if (tcp)
+            selection += " OR protocol = 6";
+        if (other)
+            selection += " OR (protocol <> 6 AND protocol <> 17)";
+        selection += ") AND (0 = 1";
+        if (allowed)
+            selection += " OR allowed = 1";
+        if (blocked)
+            selection += " OR allowed = 0";
+        selection += ")";
+        return selection;
+    }
+
+    private static Cursor getEmptyLog() {
+        return new MatrixCursor(("_id, " + LOG_COLUMNS).split(", "));
+    }
+
+    public long getLogMaxId() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return getLastLogId(db);
+    }
+
+    public Cursor getLogPage(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked,
+                             long maxid, long time, long id, int limit) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String selection = getLogSelection(udp, tcp, other, allowed, blocked);
+
+        // Partitions don't overlap in time, so newest first gives the right order
+        List<Cursor> cursors = new ArrayList<>();
+        List<Long> days = getLogPartitions(db);
+        for (int i = days.size() - 1; i >= 0 && limit > 0; i--) {
+            long day = days.get(i);
+            if (day * LOG_PARTITION > time)
+                continue;
+
+            // There is an index on time, which includes the row id
             // There is no index on protocol/allowed for write performance
             String query = "SELECT ID AS _id, *";
-            query += " FROM log";
-            query += " WHERE (0 = 1";
-            if (udp)
-                query += " OR protocol = 17";
-            if (tcp)
-                query += " OR protocol = 6";
-            if (other)
-                query += " OR (protocol <> 6 AND protocol <> 17)";
-            query += ") AND (0 = 1";
-            if (allowed)
-                query += " OR allowed = 1";
-            if (blocked)
-                query += " OR allowed = 0";
-            query += ")";
-            query += " ORDER BY time DESC";
-            return db.rawQuery(query, new String[]{});
-        } finally {
-            lock.readLock().unlock();
+            query += " FROM " + getLogTable(day);
+            query += " WHERE " + selection;
+            query += " AND ID <= ?";
+            query += " AND (time < ? OR (time = ? AND ID < ?))";
+            query += " ORDER BY time DESC, ID DESC";
+            query += " LIMIT " + limit;
+            Cursor cursor = db.rawQuery(query, new String[]{
+                    Long.toString(maxid), Long.toString(time), Long.toString(time), Long.toString(id)});
+            limit -= cursor.getCount();
+            cursors.add(cursor);
+        }
+
+        if (cursors.size() == 0)
+            return getEmptyLog();
+        else if (cursors.size() == 1)
+            return cursors.get(0);
+        else
+            return new MergeCursor(cursors.toArray(new Cursor[0]));
+    }
+
+    public Cursor getLogSince(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked,
+                              long fromid, long toid) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        List<Long> days = getLogPartitions(db);
+        if (days.size() == 0)
+            return getEmptyLog();
+
+        // The row id is the primary key
+        String selection = getLogSelection(udp, tcp, other, allowed, blocked);
+        List<String> queries = new ArrayList<>();
+        List<String> args = new ArrayList<>();
+        for (long day : days) {
+            queries.add("SELECT ID AS _id, * FROM " + getLogTable(day) +
+                    " WHERE ID > ? AND ID <= ? AND " + selection);
+            args.add(Long.toString(fromid));
+            args.add(Long.toString(toid));
         }
+        String query = TextUtils.join(" UNION ALL ", queries);
+        query += " ORDER BY time DESC, ID DESC";
+        return db.rawQuery(query, args.toArray(new String[0]));
     }
 
     public Cursor searchLog(String find) {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is an index on daddr, dname, dport and uid
-            String query = "SELECT ID AS _id, *";
-            query += " FROM log";
-            query += " WHERE daddr LIKE ? OR dname LIKE ? OR dport = ? OR uid = ?";
-            query += " ORDER BY time DESC";
-            return db.rawQuery(query, new String[]{"%" + find + "%", "%" + find + "%", find, find});
-        } finally {
-            lock.readLock().unlock();
+        // Prefix match all words in order, like www.goo matches www.google.com
+        List<String> listToken = new ArrayList<>();
+        for (String token : find.split("[^\\p{L}\\p{N}]+"))
+            if (token.length() > 0)
+                listToken.add(token + "*");
+        String match = "\"" + TextUtils.join(" ", listToken) + "\"";
+
+        SQLiteDatabase db = this.getReadableDatabase();
+        List<Long> days = getLogPartitions(db);
+        if (days.size() == 0)
+            return getEmptyLog();
+
+        // There is a full text index on daddr and dname
+        // There is an index on dport and uid
+        List<String> queries = new ArrayList<>();
+        List<String> args = new ArrayList<>();
+        for (long day : days) {
+            String query = "SELECT ID AS _id, * FROM " + getLogTable(day);
+            if (listToken.size() > 0) {
+                query += " WHERE ID IN (SELECT docid FROM " + getLogFtsTable(day) + " WHERE host MATCH ?)";
+                query += " OR dport = ? OR uid = ?";
+                args.add(match);
+            } else
+                query += " WHERE dport = ? OR uid = ?";
+            args.add(find);
+            args.add(find);
+            queries.add(query);
+        }
+        String query = TextUtils.join(" UNION ALL ", queries);
+        query += " ORDER BY time DESC";
+        return db.rawQuery(query, args.toArray(new String[0]));
+    }
+
+    // Host
+
+    private Long getCachedHostId(String name) {
+        Long id = newHostIds.get(name);
+        return (id == null ? hostIds.get(name) : id);
+    }
+
+    // Returns -1 for unknown hosts
+    private long findHostId(SQLiteDatabase db, String name) {
+        Long id = getCachedHostId(name);
+        if (id == null) {
+            try {
+                // There is a unique index on name
+                id = DatabaseUtils.longForQuery(db, "SELECT ID FROM host WHERE name = ?", new String[]{name});
+            } catch (SQLiteDoneException ignored) {
+                return -1;
+            }
+            newHostIds.put(name, id);
         }
+        return id;
+    }
+
+    private long getHostId(SQLiteDatabase db, String name) {
+        Long id = getCachedHostId(name);
+        if (id == null) {
+            try {
+                // There is a unique index on name
+                id = DatabaseUtils.longForQuery(db, "SELECT ID FROM host WHERE name = ?", new String[]{name});
+            } catch (SQLiteDoneException ignored) {
+                ContentValues cv = new ContentValues();
+                cv.put("name", name);
+                id = db.insert("host", null, cv);
+                if (id == -1) {
+                    Log.e(TAG, "Insert host failed");
+                    return id;
+                }
+            }
+            newHostIds.put(name, id);
+        }
+        return id;
+    }
+
+    private void cleanupHosts(SQLiteDatabase db) {
+        // There are indexes on all host references
+        int rows = db.delete("host",
+                "NOT EXISTS (SELECT 1 FROM access WHERE daddr_id = host.ID)" +
+                        " AND NOT EXISTS (SELECT 1 FROM dns WHERE qname_id = host.ID)" +
+                        " AND NOT EXISTS (SELECT 1 FROM dns WHERE aname_id = host.ID)" +
+                        " AND NOT EXISTS (SELECT 1 FROM dns WHERE resource_id = host.ID)", null);
+        hostIds.clear();
+        Log.i(TAG, "Cleanup hosts rows=" + rows);
     }
 
     // Access
 
     public boolean updateAccess(Packet packet, String dname, int block) {
         int rows;
+        Tracker tracker;
 
-        lock.writeLock().lock();
+        // The packet always has the numeric address
+        String country = GeoIp.getInstance(context).getCountry(packet.daddr);
+
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionWithListenerNonExclusive(hostIdsListener);
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                ContentValues cv = new ContentValues();
-                cv.put("time", packet.time);
-                cv.put("allowed", packet.allowed ? 1 : 0);
-                if (block >= 0)
+            ContentValues cv = new ContentValues();
+            cv.put("time", packet.time);
+            cv.put("allowed", packet.allowed ? 1 : 0);
+            if (block >= 0)
+                cv.put("block", block);
+            if (country != null)
+                cv.put("country", country);
+
+            long daddr = getHostId(db, dname == null ? packet.daddr : dname);
+
+            // There is a segmented index on uid, version, protocol, daddr and dport
+            rows = db.update("access", cv, "uid = ? AND version = ? AND protocol = ? AND daddr_id = ? AND dport = ?",
+                    new String[]{
+                            Integer.toString(packet.uid),
+                            Integer.toString(packet.version),
+                            Integer.toString(packet.protocol),
+                            Long.toString(daddr),
+                            Integer.toString(packet.dport)});
+
+            if (rows == 0) {
+                cv.put("uid", packet.uid);
+                cv.put("version", packet.version);
+                cv.put("protocol", packet.protocol);
+                cv.put("daddr_id", daddr);
+                cv.put("dport", packet.dport);
+                if (block < 0)
                     cv.put("block", block);
 
-                // There is a segmented index on uid, version, protocol, daddr and dport
-                rows = db.update("access", cv, "uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?",
-                        new String[]{
-                                Integer.toString(packet.uid),
-                                Integer.toString(packet.version),
-                                Integer.toString(packet.protocol),
-                                dname == null ? packet.daddr : dname,
-                                Integer.toString(packet.dport)});
-
-                if (rows == 0) {
-                    cv.put("uid", packet.uid);
-                    cv.put("version", packet.version);
-                    cv.put("protocol", packet.protocol);
-                    cv.put("daddr", dname == null ? packet.daddr : dname);
-                    cv.put("dport", packet.dport);
-                    if (block < 0)
-                        cv.put("block", block);
-
-                    if (db.insert("access", null, cv) == -1)
-                        Log.e(TAG, "Insert access failed");
-                } else if (rows != 1)
-                    Log.e(TAG, "Update access failed rows=" + rows);
-
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+                if (db.insert("access", null, cv) == -1)
+                    Log.e(TAG, "Insert access failed");
+            } else if (rows != 1)
+                Log.e(TAG, "Update access failed rows=" + rows);
+
+            // Custom code: maintain tracker counts
+            tracker = TrackerList.findTracker(dname == null ? packet.daddr : dname);
+            if (tracker != null) {
+                updateAppTracker(db, packet.uid, tracker.getName(), packet.time, 1);
+                updateTrackerHistory(db, packet.uid, tracker.getName(),
+                        HISTORY_HOUR, packet.time / HISTORY_HOUR * HISTORY_HOUR, 1);
             }
+
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
 
+        if (tracker != null)
+            notifyTrackerSeen(packet.uid, dname == null ? packet.daddr : dname, tracker, packet.time);
         notifyAccessChanged();
         return (rows == 0);
     }
 
     public void updateUsage(Usage usage, String dname) {
-        lock.writeLock().lock();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionWithListenerNonExclusive(hostIdsListener);
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                // There is a segmented index on uid, version, protocol, daddr and dport
-                String selection = "uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?";
-                String[] selectionArgs = new String[]{
-                        Integer.toString(usage.Uid),
-                        Integer.toString(usage.Version),
-                        Integer.toString(usage.Protocol),
-                        dname == null ? usage.DAddr : dname,
-                        Integer.toString(usage.DPort)
-                };
-
-                try (Cursor cursor = db.query("access", new String[]{"sent", "received", "connections"}, selection, selectionArgs, null, null, null)) {
-                    long sent = 0;
-                    long received = 0;
-                    int connections = 0;
-                    int colSent = cursor.getColumnIndex("sent");
-                    int colReceived = cursor.getColumnIndex("received");
-                    int colConnections = cursor.getColumnIndex("connections");
-                    if (cursor.moveToNext()) {
-                        sent = cursor.isNull(colSent) ? 0 : cursor.getLong(colSent);
-                        received = cursor.isNull(colReceived) ? 0 : cursor.getLong(colReceived);
-                        connections = cursor.isNull(colConnections) ? 0 : cursor.getInt(colConnections);
-                    }
-
-                    ContentValues cv = new ContentValues();
-                    cv.put("sent", sent + usage.Sent);
-                    cv.put("received", received + usage.Received);
-                    cv.put("connections", connections + 1);
-
-                    int rows = db.update("access", cv, selection, selectionArgs);
-                    if (rows != 1)
-                        Log.e(TAG, "Update usage failed rows=" + rows);
+            // Without a host there is no access row to update
+            long daddr = findHostId(db, dname == null ? usage.DAddr : dname);
+            if (daddr < 0) {
+                Log.w(TAG, "Update usage unknown host");
+                return;
+            }
+
+            // There is a segmented index on uid, version, protocol, daddr and dport
+            String selection = "uid = ? AND version = ? AND protocol = ? AND daddr_id = ? AND dport = ?";
+            String[] selectionArgs = new String[]{
+                    Integer.toString(usage.Uid),
+                    Integer.toString(usage.Version),
+                    Integer.toString(usage.Protocol),
+                    Long.toString(daddr),
+                    Integer.toString(usage.DPort)
+            };
+
+            try (Cursor cursor = db.query("access", new String[]{"sent", "received", "connections"}, selection, selectionArgs, null, null, null)) {
+                long sent = 0;
+                long received = 0;
+                int connections = 0;
+                int colSent = cursor.getColumnIndex("sent");
+                int colReceived = cursor.getColumnIndex("received");
+                int colConnections = cursor.getColumnIndex("connections");
+                if (cursor.moveToNext()) {
+                    sent = cursor.isNull(colSent) ? 0 : cursor.getLong(colSent);
+                    received = cursor.isNull(colReceived) ? 0 : cursor.getLong(colReceived);
+                    connections = cursor.isNull(colConnections) ? 0 : cursor.getInt(colConnections);
                 }
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+                ContentValues cv = new ContentValues();
+                cv.put("sent", sent + usage.Sent);
+                cv.put("received", received + usage.Received);
+                cv.put("connections", connections + 1);
+
+                int rows = db.update("access", cv, selection, selectionArgs);
+                if (rows != 1)
+                    Log.e(TAG, "Update usage failed rows=" + rows);
             }
+
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
 
         notifyAccessChanged();
     }
 
     public void setAccess(long id, int block) {
-        lock.writeLock().lock();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                ContentValues cv = new ContentValues();
-                cv.put("block", block);
-                cv.put("allowed", -1);
+            ContentValues cv = new ContentValues();
+            cv.put("block", block);
+            cv.put("allowed", -1);
 
-                if (db.update("access", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
-                    Log.e(TAG, "Set access failed");
+            if (db.update("access", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
+                Log.e(TAG, "Set access failed");
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
 
         notifyAccessChanged();
     }
 
     public void clearAccess() {
-        lock.writeLock().lock();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                db.delete("access", null, null);
+            db.delete("access", null, null);
+            db.delete("app_tracker", null, null);
+            db.delete("tracker_history", null, null);
+            cleanupHosts(db);
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
 
+        notifyTrackersCleared(-1);
         notifyAccessChanged();
     }
 
     public void clearAccess(int uid, boolean keeprules) {
-        lock.writeLock().lock();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                // There is a segmented index on uid
-                // There is an index on block
-                if (keeprules)
-                    db.delete("access", "uid = ? AND block < 0", new String[]{Integer.toString(uid)});
-                else
-                    db.delete("access", "uid = ?", new String[]{Integer.toString(uid)});
-
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+            // There is a segmented index on uid
+            // There is an index on block
+            if (keeprules) {
+                db.delete("access", "uid = ? AND block < 0", new String[]{Integer.toString(uid)});
+                rebuildAppTrackers(db, uid);
+            } else {
+                db.delete("access", "uid = ?", new String[]{Integer.toString(uid)});
+                db.delete("app_tracker", "uid = ?", new String[]{Integer.toString(uid)});
+                db.delete("tracker_history", "uid = ?", new String[]{Integer.toString(uid)});
             }
+            cleanupHosts(db);
+
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
 
+        notifyTrackersCleared(uid);
         notifyAccessChanged();
     }
 
     public void resetUsage(int uid) {
-        lock.writeLock().lock();
+        // There is a segmented index on uid
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            // There is a segmented index on uid
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                ContentValues cv = new ContentValues();
-                cv.putNull("sent");
-                cv.putNull("received");
-                cv.putNull("connections");
-                db.update("access", cv,
-                        (uid < 0 ? null : "uid = ?"),
-                        (uid < 0 ? null : new String[]{Integer.toString(uid)}));
-
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+            ContentValues cv = new ContentValues();
+            cv.putNull("sent");
+            cv.putNull("received");
+            cv.putNull("connections");
+            db.update("access", cv,
+                    (uid < 0 ? null : "uid = ?"),
+                    (uid < 0 ? null : new String[]{Integer.toString(uid)}));
+
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
 
         notifyAccessChanged();
     }
 
     public Cursor getAccess(int uid) {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid
-            // There is no index on time for write performance
-            String query = "SELECT a.ID AS _id, a.*";
-            query += ", (SELECT COUNT(DISTINCT d.qname) FROM dns d WHERE d.resource IN (SELECT d1.resource FROM dns d1 WHERE d1.qname = a.daddr)) count";
-            query += " FROM access a";
-            query += " WHERE a.uid = ?";
-            query += " ORDER BY a.time DESC";
-            query += " LIMIT 250";
-            return db.rawQuery(query, new String[]{Integer.toString(uid)});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is no index on time for write performance
+        String query = "SELECT a.ID AS _id, a.*, h.name AS daddr";
+        query += ", (SELECT COUNT(DISTINCT d.qname_id) FROM dns d WHERE d.resource_id IN (SELECT d1.resource_id FROM dns d1 WHERE d1.qname_id = a.daddr_id)) count";
+        query += " FROM access a";
+        query += " JOIN host h ON h.ID = a.daddr_id";
+        query += " WHERE a.uid = ?";
+        query += " ORDER BY a.time DESC";
+        query += " LIMIT 250";
+        return db.rawQuery(query, new String[]{Integer.toString(uid)});
     }
 
     public Cursor getAccess() {
-        lock.readLock().lock();
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is an index on block
+        String query = "SELECT a.*, h.name AS daddr";
+        query += " FROM access a";
+        query += " JOIN host h ON h.ID = a.daddr_id";
+        query += " WHERE a.block >= 0";
+        query += " ORDER BY a.uid";
+        return db.rawQuery(query, new String[]{});
+    }
+
+    public Cursor getAccessCountries(int uid) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is a segmented index on dns.qname
+        String query = "SELECT a.ID AS _id, h.name AS daddr, a.country";
+        query += ", (SELECT r.name FROM dns d JOIN host r ON r.ID = d.resource_id";
+        query += "   WHERE d.qname_id = a.daddr_id LIMIT 1) AS resource";
+        query += " FROM access a";
+        query += " JOIN host h ON h.ID = a.daddr_id";
+        query += " WHERE a.uid = ?";
+        return db.rawQuery(query, new String[]{Integer.toString(uid)});
+    }
+
+    public void setAccessCountry(long id, String country) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid
-            // There is an index on block
-            return db.query("access", null, "block >= 0", null, null, null, "uid");
+            ContentValues cv = new ContentValues();
+            cv.put("country", country);
+
+            if (db.update("access", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
+                Log.e(TAG, "Set access country failed");
+
+            db.setTransactionSuccessful();
         } finally {
-            lock.readLock().unlock();
+            db.endTransaction();
         }
     }
 
     public Cursor getAccessUnset(int uid, int limit, long since) {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid, block and daddr
-            // There is no index on allowed and time for write performance
-            String query = "SELECT MAX(time) AS time, daddr, allowed";
-            query += " FROM access";
-            query += " WHERE uid = ?";
-            query += " AND block < 0";
-            query += " AND time >= ?";
-            query += " GROUP BY daddr, allowed";
-            query += " ORDER BY time DESC";
-            if (limit > 0)
-                query += " LIMIT " + limit;
-            return db.rawQuery(query, new String[]{Integer.toString(uid), Long.toString(since)});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid, block and daddr
+        // There is no index on allowed and time for write performance
+        String query = "SELECT MAX(a.time) AS time, h.name AS daddr, a.allowed";
+        query += " FROM access a";
+        query += " JOIN host h ON h.ID = a.daddr_id";
+        query += " WHERE a.uid = ?";
+        query += " AND a.block < 0";
+        query += " AND a.time >= ?";
+        query += " GROUP BY a.daddr_id, a.allowed";
+        query += " ORDER BY time DESC";
+        if (limit > 0)
+            query += " LIMIT " + limit;
+        return db.rawQuery(query, new String[]{Integer.toString(uid), Long.toString(since)});
     }
 
     public long getHostCount(int uid, boolean usecache) {
@@ -787,317 +1345,480 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     return mapUidHosts.get(uid);
             }
 
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid
-            // There is an index on block
-            long hosts = db.compileStatement("SELECT COUNT(*) FROM access WHERE block >= 0 AND uid =" + uid).simpleQueryForLong();
-            synchronized (mapUidHosts) {
-                mapUidHosts.put(uid, hosts);
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is an index on block
+        long hosts = db.compileStatement("SELECT COUNT(*) FROM access WHERE block >= 0 AND uid =" + uid).simpleQueryForLong();
+        synchronized (mapUidHosts) {
+            mapUidHosts.put(uid, hosts);
+        }
+        return hosts;
+    }
+
+    public Map<Integer, Long> getHostCounts() {
+        Map<Integer, Long> hosts = new HashMap<>();
+
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is an index on block
+        String query = "SELECT uid, COUNT(*) AS hosts FROM access WHERE block >= 0 GROUP BY uid";
+        try (Cursor cursor = db.rawQuery(query, new String[]{})) {
+            int colUid = cursor.getColumnIndex("uid");
+            int colHosts = cursor.getColumnIndex("hosts");
+            while (cursor.moveToNext())
+                hosts.put(cursor.getInt(colUid), cursor.getLong(colHosts));
+        }
+
+        // Uids without hosts are not returned, so their cached counts are stale
+        synchronized (mapUidHosts) {
+            mapUidHosts.clear();
+            mapUidHosts.putAll(hosts);
+        }
+
+        return hosts;
+    }
+
+    // Trackers
+
+    private void updateAppTracker(SQLiteDatabase db, int uid, String tracker, long time, long hits) {
+        // There is a segmented index on uid and tracker
+        SQLiteStatement update = db.compileStatement("UPDATE app_tracker" +
+                " SET first_seen = MIN(first_seen, ?), last_seen = MAX(last_seen, ?), hits = hits + ?" +
+                " WHERE uid = ? AND tracker = ?");
+        update.bindLong(1, time);
+        update.bindLong(2, time);
+        update.bindLong(3, hits);
+        update.bindLong(4, uid);
+        update.bindString(5, tracker);
+        int rows = update.executeUpdateDelete();
+
+        if (rows == 0) {
+            ContentValues cv = new ContentValues();
+            cv.put("uid", uid);
+            cv.put("tracker", tracker);
+            cv.put("first_seen", time);
+            cv.put("last_seen", time);
+            cv.put("hits", hits);
+            if (db.insert("app_tracker", null, cv) == -1)
+                Log.e(TAG, "Insert app tracker failed");
+        } else if (rows != 1)
+            Log.e(TAG, "Update app tracker failed rows=" + rows);
+    }
+
+    private void rebuildAppTrackers(SQLiteDatabase db, int uid) {
+        if (uid < 0)
+            db.delete("app_tracker", null, null);
+        else
+            db.delete("app_tracker", "uid = ?", new String[]{Integer.toString(uid)});
+
+        // There is a segmented index on uid
+        String query = "SELECT a.uid, h.name AS daddr, a.time";
+        query += " FROM access a";
+        query += " JOIN host h ON h.ID = a.daddr_id";
+        if (uid >= 0)
+            query += " WHERE a.uid = ?";
+        try (Cursor cursor = db.rawQuery(query,
+                (uid < 0 ? new String[]{} : new String[]{Integer.toString(uid)}))) {
+            int colUid = cursor.getColumnIndex("uid");
+            int colDAddr = cursor.getColumnIndex("daddr");
+            int colTime = cursor.getColumnIndex("time");
+            while (cursor.moveToNext()) {
+                Tracker tracker = TrackerList.findTracker(cursor.getString(colDAddr));
+                if (tracker != null)
+                    updateAppTracker(db, cursor.getInt(colUid), tracker.getName(), cursor.getLong(colTime), 1);
             }
-            return hosts;
+        }
+    }
+
+    public void rebuildAppTrackers() {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            rebuildAppTrackers(db, -1);
+            Log.i(TAG, "Rebuilt app trackers");
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        notifyAccessChanged();
+    }
+
+    public Cursor getAppTrackerCounts() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        String query = "SELECT uid, COUNT(*) AS trackers";
+        query += " FROM app_tracker";
+        query += " GROUP BY uid";
+        return db.rawQuery(query, new String[]{});
+    }
+
+    private void updateTrackerHistory(SQLiteDatabase db, int uid, String tracker, long resolution, long bucket, long hits) {
+        // There is a segmented index on uid, tracker, resolution and bucket
+        SQLiteStatement update = db.compileStatement("UPDATE tracker_history" +
+                " SET hits = hits + ?" +
+                " WHERE uid = ? AND tracker = ? AND resolution = ? AND bucket = ?");
+        update.bindLong(1, hits);
+        update.bindLong(2, uid);
+        update.bindString(3, tracker);
+        update.bindLong(4, resolution);
+        update.bindLong(5, bucket);
+        int rows = update.executeUpdateDelete();
+
+        if (rows == 0) {
+            ContentValues cv = new ContentValues();
+            cv.put("uid", uid);
+            cv.put("tracker", tracker);
+            cv.put("resolution", resolution);
+            cv.put("bucket", bucket);
+            cv.put("hits", hits);
+            if (db.insert("tracker_history", null, cv) == -1)
+                Log.e(TAG, "Insert tracker history failed");
+        } else if (rows != 1)
+            Log.e(TAG, "Update tracker history failed rows=" + rows);
+    }
+
+    private void compactTrackerHistory(SQLiteDatabase db, long from, long to, long before) {
+        // There is a segmented index on resolution and bucket
+        String query = "SELECT uid, tracker, bucket / " + to + " * " + to + " AS compacted, SUM(hits) AS hits";
+        query += " FROM tracker_history";
+        query += " WHERE resolution = ? AND bucket < ?";
+        query += " GROUP BY uid, tracker, compacted";
+        String[] args = new String[]{Long.toString(from), Long.toString(before)};
+        try (Cursor cursor = db.rawQuery(query, args)) {
+            while (cursor.moveToNext())
+                updateTrackerHistory(db, cursor.getInt(0), cursor.getString(1), to, cursor.getLong(2), cursor.getLong(3));
+        }
+        int rows = db.delete("tracker_history", "resolution = ? AND bucket < ?", args);
+        Log.i(TAG, "Compacted tracker history from=" + from + " to=" + to + " rows=" + rows);
+    }
+
+    public void cleanupTrackerHistory() {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            // Compact whole days and weeks only
+            long now = new Date().getTime();
+            compactTrackerHistory(db, HISTORY_HOUR, HISTORY_DAY,
+                    (now - HISTORY_HOURLY_KEEP) / HISTORY_DAY * HISTORY_DAY);
+            compactTrackerHistory(db, HISTORY_DAY, HISTORY_WEEK,
+                    (now - HISTORY_DAILY_KEEP) / HISTORY_WEEK * HISTORY_WEEK);
+            int rows = db.delete("tracker_history", "resolution = ? AND bucket < ?",
+                    new String[]{Long.toString(HISTORY_WEEK), Long.toString(now - HISTORY_WEEKLY_KEEP)});
+            Log.i(TAG, "Cleanup tracker history rows=" + rows);
+
+            db.setTransactionSuccessful();
         } finally {
-            lock.readLock().unlock();
+            db.endTransaction();
         }
     }
 
+    public Cursor getTrackerHistory(int uid, long since) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // Buckets of all resolutions are returned, they don't overlap in time
+        String query = "SELECT tracker, resolution, bucket, hits";
+        query += " FROM tracker_history";
+        query += " WHERE uid = ? AND bucket + resolution > ?";
+        query += " ORDER BY bucket, tracker";
+        return db.rawQuery(query, new String[]{Integer.toString(uid), Long.toString(since)});
+    }
+
     // DNS
 
     public boolean insertDns(ResourceRecord rr) {
-        lock.writeLock().lock();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionWithListenerNonExclusive(hostIdsListener);
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                int ttl = rr.TTL;
+            int ttl = rr.TTL;
 
-                int min = Integer.parseInt(prefs.getString("ttl", "259200"));
-                if (ttl < min)
-                    ttl = min;
+            int min = Integer.parseInt(prefs.getString("ttl", "259200"));
+            if (ttl < min)
+                ttl = min;
 
-                ContentValues cv = new ContentValues();
-                cv.put("time", rr.Time);
-                cv.put("ttl", ttl * 1000L);
+            ContentValues cv = new ContentValues();
+            cv.put("time", rr.Time);
+            cv.put("ttl", ttl * 1000L);
 
-                int rows = db.update("dns", cv, "qname = ? AND aname = ? AND resource = ?",
-                        new String[]{rr.QName, rr.AName, rr.Resource});
+            long qname = getHostId(db, rr.QName);
+            long aname = getHostId(db, rr.AName);
+            long resource = getHostId(db, rr.Resource);
 
-                if (rows == 0) {
-                    cv.put("qname", rr.QName);
-                    cv.put("aname", rr.AName);
-                    cv.put("resource", rr.Resource);
+            int rows = db.update("dns", cv, "qname_id = ? AND aname_id = ? AND resource_id = ?",
+                    new String[]{Long.toString(qname), Long.toString(aname), Long.toString(resource)});
 
-                    if (db.insert("dns", null, cv) == -1)
-                        Log.e(TAG, "Insert dns failed");
-                    else
-                        rows = 1;
-                } else if (rows != 1)
-                    Log.e(TAG, "Update dns failed rows=" + rows);
+            if (rows == 0) {
+                cv.put("qname_id", qname);
+                cv.put("aname_id", aname);
+                cv.put("resource_id", resource);
 
-                db.setTransactionSuccessful();
+                if (db.insert("dns", null, cv) == -1)
+                    Log.e(TAG, "Insert dns failed");
+                else
+                    rows = 1;
+            } else if (rows != 1)
+                Log.e(TAG, "Update dns failed rows=" + rows);
 
-                return (rows > 0);
-            } finally {
-                db.endTransaction();
-            }
+            db.setTransactionSuccessful();
+
+            return (rows > 0);
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
     }
 
     public void cleanupDns() {
-        lock.writeLock().lock();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                // There is no index on time for write performance
-                long now = new Date().getTime();
-                db.execSQL("DELETE FROM dns WHERE time + ttl < " + now);
-                Log.i(TAG, "Cleanup DNS");
+            // There is no index on time for write performance
+            long now = new Date().getTime();
+            db.execSQL("DELETE FROM dns WHERE time + ttl < " + now);
+            Log.i(TAG, "Cleanup DNS");
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+            cleanupHosts(db);
+
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
     }
 
     public void clearDns() {
-        lock.writeLock().lock();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                db.delete("dns", null, new String[]{});
+            db.delete("dns", null, new String[]{});
+            cleanupHosts(db);
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
     }
 
     private SQLiteDatabase readableDb;
 
     public String getQName(int uid, String ip) {
-        lock.readLock().lock();
         try {
             // Custom code
             if (readableDb == null)
                 readableDb = this.getReadableDatabase();
             SQLiteDatabase db = readableDb;
-            // There is a segmented index on resource
-            String query = "SELECT d.qname";
-            query += " FROM dns AS d";
-            query += " WHERE d.resource = '" + ip.replace("'", "''") + "'";
-            query += " ORDER BY d.qname";
+            // There is an index on host name and a segmented index on resource
+            String query = "SELECT q.name";
+            query += " FROM host AS r";
+            query += " JOIN dns AS d ON d.resource_id = r.ID";
+            query += " JOIN host AS q ON q.ID = d.qname_id";
+            query += " WHERE r.name = '" + ip.replace("'", "''") + "'";
+            query += " ORDER BY q.name";
             query += " LIMIT 1";
             // There is no way to known for sure which domain name an app used, so just pick the first one
             return db.compileStatement(query).simpleQueryForString();
         } catch (SQLiteDoneException ignored) {
             // Not found
             return null;
-        } finally {
-            lock.readLock().unlock();
         }
     }
 
     public Cursor getAlternateQNames(String qname) {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            String query = "SELECT DISTINCT d2.qname";
-            query += " FROM dns d1";
-            query += " JOIN dns d2";
-            query += "   ON d2.resource = d1.resource AND d2.id <> d1.id";
-            query += " WHERE d1.qname = ?";
-            query += " ORDER BY d2.qname";
-            return db.rawQuery(query, new String[]{qname});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT DISTINCT h2.name AS qname";
+        query += " FROM host h1";
+        query += " JOIN dns d1 ON d1.qname_id = h1.ID";
+        query += " JOIN dns d2";
+        query += "   ON d2.resource_id = d1.resource_id AND d2.id <> d1.id";
+        query += " JOIN host h2 ON h2.ID = d2.qname_id";
+        query += " WHERE h1.name = ?";
+        query += " ORDER BY h2.name";
+        return db.rawQuery(query, new String[]{qname});
     }
 
     public Cursor getDns() {
-        lock.readLock().lock();
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is an index on resource
+        // There is a segmented index on qname
+        String query = "SELECT d.ID AS _id, d.*";
+        query += ", q.name AS qname, n.name AS aname, r.name AS resource";
+        query += " FROM dns d";
+        query += " JOIN host q ON q.ID = d.qname_id";
+        query += " JOIN host n ON n.ID = d.aname_id";
+        query += " JOIN host r ON r.ID = d.resource_id";
+        query += " ORDER BY r.name, q.name";
+        return db.rawQuery(query, new String[]{});
+    }
+
+    public Cursor getAccessDns(String dname) {
+        long now = new Date().getTime();
+        SQLiteDatabase db = this.getReadableDatabase();
+
+        // There is a segmented index on dns.qname
+        // There is an index on access.daddr and access.block
+        String query = "SELECT a.uid, a.version, a.protocol, h.name AS daddr, r.name AS resource, a.dport, a.block, d.time, d.ttl";
+        query += " FROM access AS a";
+        query += " JOIN host AS h ON h.ID = a.daddr_id";
+        query += " LEFT JOIN dns AS d";
+        query += "   ON d.qname_id = a.daddr_id";
+        query += " LEFT JOIN host AS r ON r.ID = d.resource_id";
+        query += " WHERE a.block >= 0";
+        query += " AND (d.time IS NULL OR d.time + d.ttl >= " + now + ")";
+        if (dname != null)
+            query += " AND h.name = ?";
+
+        return db.rawQuery(query, dname == null ? new String[]{} : new String[]{dname});
+    }
+
+    // Resolved
+
+    public Cursor getResolved(int type, String address) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on type and address
+        String query = "SELECT value, time";
+        query += " FROM resolved";
+        query += " WHERE type = ? AND address = ?";
+        return db.rawQuery(query, new String[]{Integer.toString(type), address});
+    }
+
+    public void setResolved(int type, String address, String value, long time) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is an index on resource
-            // There is a segmented index on qname
-            String query = "SELECT ID AS _id, *";
-            query += " FROM dns";
-            query += " ORDER BY resource, qname";
-            return db.rawQuery(query, new String[]{});
+            ContentValues cv = new ContentValues();
+            cv.put("type", type);
+            cv.put("address", address);
+            if (value == null)
+                cv.putNull("value");
+            else
+                cv.put("value", value);
+            cv.put("time", time);
+
+            if (db.insertWithOnConflict("resolved", null, cv, SQLiteDatabase.CONFLICT_REPLACE) < 0)
+                Log.e(TAG, "Insert resolved failed");
+
+            db.setTransactionSuccessful();
         } finally {
-            lock.readLock().unlock();
+            db.endTransaction();
         }
     }
 
-    public Cursor getAccessDns(String dname) {
-        long now = new Date().getTime();
-        lock.readLock().lock();
+    public void cleanupResolved(long time) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
-
-            // There is a segmented index on dns.qname
-            // There is an index on access.daddr and access.block
-            String query = "SELECT a.uid, a.version, a.protocol, a.daddr, d.resource, a.dport, a.block, d.time, d.ttl";
-            query += " FROM access AS a";
-            query += " LEFT JOIN dns AS d";
-            query += "   ON d.qname = a.daddr";
-            query += " WHERE a.block >= 0";
-            query += " AND (d.time IS NULL OR d.time + d.ttl >= " + now + ")";
-            if (dname != null)
-                query += " AND a.daddr = ?";
-
-            return db.rawQuery(query, dname == null ? new String[]{} : new String[]{dname});
+            // There is no index on time for write performance
+            int rows = db.delete("resolved", "time < ?", new String[]{Long.toString(time)});
+            Log.i(TAG, "Cleanup resolved rows=" + rows);
+
+            db.setTransactionSuccessful();
         } finally {
-            lock.readLock().unlock();
+            db.endTransaction();
         }
     }
 
     // Forward
 
     public void addForward(int protocol, int dport, String raddr, int rport, int ruid) {
-        lock.writeLock().lock();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                ContentValues cv = new ContentValues();
-                cv.put("protocol", protocol);
-                cv.put("dport", dport);
-                cv.put("raddr", raddr);
-                cv.put("rport", rport);
-                cv.put("ruid", ruid);
+            ContentValues cv = new ContentValues();
+            cv.put("protocol", protocol);
+            cv.put("dport", dport);
+            cv.put("raddr", raddr);
+            cv.put("rport", rport);
+            cv.put("ruid", ruid);
 
-                if (db.insert("forward", null, cv) < 0)
-                    Log.e(TAG, "Insert forward failed");
+            if (db.insert("forward", null, cv) < 0)
+                Log.e(TAG, "Insert forward failed");
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
 
         notifyForwardChanged();
     }
 
     public void deleteForward() {
-        lock.writeLock().lock();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                db.delete("forward", null, null);
+            db.delete("forward", null, null);
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
 
         notifyForwardChanged();
     }
 
     public void deleteForward(int protocol, int dport) {
-        lock.writeLock().lock();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                db.delete("forward", "protocol = ? AND dport = ?",
-                        new String[]{Integer.toString(protocol), Integer.toString(dport)});
+            db.delete("forward", "protocol = ? AND dport = ?",
+                    new String[]{Integer.toString(protocol), Integer.toString(dport)});
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
 
         notifyForwardChanged();
     }
 
     public Cursor getForwarding() {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            String query = "SELECT ID AS _id, *";
-            query += " FROM forward";
-            query += " ORDER BY dport";
-            return db.rawQuery(query, new String[]{});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT ID AS _id, *";
+        query += " FROM forward";
+        query += " ORDER BY dport";
+        return db.rawQuery(query, new String[]{});
     }
 
-    public void addApp(String packageName, String label, boolean system, boolean internet, boolean enabled) {
-        lock.writeLock().lock();
+    public void addApp(String packageName, String label, boolean system, boolean internet, boolean enabled, long updated) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                ContentValues cv = new ContentValues();
-                cv.put("package", packageName);
-                if (label == null)
-                    cv.putNull("label");
-                else
-                    cv.put("label", label);
-                cv.put("system", system ? 1 : 0);
-                cv.put("internet", internet ? 1 : 0);
-                cv.put("enabled", enabled ? 1 : 0);
-
-                if (db.insert("app", null, cv) < 0)
-                    Log.e(TAG, "Insert app failed");
-
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+            ContentValues cv = new ContentValues();
+            cv.put("package", packageName);
+            if (label == null)
+                cv.putNull("label");
+            else
+                cv.put("label", label);
+            cv.put("system", system ? 1 : 0);
+            cv.put("internet", internet ? 1 : 0);
+            cv.put("enabled", enabled ? 1 : 0);
+            cv.put("updated", updated);
+
+            // Replaces the row of a previous package version
+            if (db.insertWithOnConflict("app", null, cv, SQLiteDatabase.CONFLICT_REPLACE) < 0)
+                Log.e(TAG, "Insert app failed");
+
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
     }
 
     public Cursor getApp(String packageName) {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getReadableDatabase();
 
-            // There is an index on package
-            String query = "SELECT * FROM app WHERE package = ?";
+        // There is an index on package
+        String query = "SELECT * FROM app WHERE package = ?";
 
-            return db.rawQuery(query, new String[]{packageName});
-        } finally {
-            lock.readLock().unlock();
-        }
+        return db.rawQuery(query, new String[]{packageName});
     }
 
     public void clearApps() {
-        lock.writeLock().lock();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                db.delete("app", null, null);
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+            db.delete("app", null, null);
+            db.setTransactionSuccessful();
         } finally {
-            lock.writeLock().unlock();
+            db.endTransaction();
         }
     }
 
@@ -1137,6 +1858,33 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         handler.sendMessage(msg);
     }
 
+    public void addTrackerChangedListener(TrackerChangedListener listener) {
+        trackerChangedListeners.add(listener);
+    }
+
+    public void removeTrackerChangedListener(TrackerChangedListener listener) {
+        trackerChangedListeners.remove(listener);
+    }
+
+    // Not batched, listeners apply each change incrementally
+    private void notifyTrackerSeen(int uid, String host, Tracker tracker, long time) {
+        for (TrackerChangedListener listener : trackerChangedListeners)
+            try {
+                listener.onSeen(uid, host, tracker, time);
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+    }
+
+    private void notifyTrackersCleared(int uid) {
+        for (TrackerChangedListener listener : trackerChangedListeners)
+            try {
+                listener.onCleared(uid);
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+    }
+
     private void notifyForwardChanged() {
         Message msg = handler.obtainMessage();
         msg.what = MSG_FORWARD;
@@ -1190,4 +1938,11 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public interface ForwardChangedListener {
         void onChanged();
     }
+
+    public interface TrackerChangedListener {
+        void onSeen(int uid, String host, Tracker tracker, long time);
+
+        // uid < 0 for all
+        void onCleared(int uid);
+    }
 }
@@ -0,0 +1,247 @@
+/*
+ * This file is from NetGuard.
+ *
+ * NetGuard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NetGuard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2015–2020 by Marcel Bokhorst (M66B), Konrad
+ * Kollnig (University of Oxford)
+ */
+
+package eu.faircode.netguard;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Reverse DNS and organization lookups shared by the log and access lists
+public class HostResolver {
+    private static final String TAG = "TrackerControl.Resolver";
+
+    public static final int TYPE_NAME = 1;
+    public static final int TYPE_ORGANIZATION = 2;
+
+    private static final int CACHE_SIZE = 1024;
+    private static final int MAX_THREADS = 4;
+    private static final long NAME_TTL = 24 * 3600 * 1000L;
+    private static final long ORGANIZATION_TTL = 30 * 24 * 3600 * 1000L;
+    private static final String ORGANIZATION_URL = "https://ipinfo.io/%s/org";
+
+    private final DatabaseHelper dh;
+    private final String organizationUrl;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor executor;
+
+    // Values can be null for addresses which could not be resolved
+    private final LruCache<String, Resolved> cache = new LruCache<>(CACHE_SIZE);
+
+    // Lookups in progress, one per address, all guarded by pending
+    private final Map<String, Request> pending = new HashMap<>();
+    private final Map<View, Request> bound = new WeakHashMap<>();
+
+    public interface ResolvedListener {
+        void onResolved(String address, String value);
+    }
+
+    private static class Resolved {
+        String value;
+        long time;
+
+        Resolved(String value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    private class Request implements Runnable {
+        final int type;
+        final String address;
+        final Map<View, ResolvedListener> listeners = new HashMap<>();
+        Future<?> future;
+
+        Request(int type, String address) {
+            this.type = type;
+            this.address = address;
+        }
+
+        @Override
+        public void run() {
+            String value = resolve(type, address);
+
+            synchronized (pending) {
+                pending.remove(getKey(type, address));
+            }
+
+            // Views are bound on the main thread, so this cannot race with a rebind
+            handler.post(() -> {
+                List<ResolvedListener> deliver = new ArrayList<>();
+                synchronized (pending) {
+                    for (Map.Entry<View, ResolvedListener> entry : listeners.entrySet())
+                        if (bound.get(entry.getKey()) == this) {
+                            bound.remove(entry.getKey());
+                            deliver.add(entry.getValue());
+                        }
+                    listeners.clear();
+                }
+
+                for (ResolvedListener listener : deliver)
+                    listener.onResolved(address, value);
+            });
+        }
+    }
+
+    private static HostResolver instance = null;
+
+    public static synchronized HostResolver getInstance(Context context) {
+        if (instance == null)
+            instance = new HostResolver(DatabaseHelper.getInstance(context), ORGANIZATION_URL);
+        return instance;
+    }
+
+    // The organization URL is a format with the address as argument
+    HostResolver(DatabaseHelper dh, String organizationUrl) {
+        this.dh = dh;
+        this.organizationUrl = organizationUrl;
+        executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void resolveName(View view, String address, ResolvedListener listener) {
+        request(TYPE_NAME, view, address, listener);
+    }
+
+    public void resolveOrganization(View view, String address, ResolvedListener listener) {
+        request(TYPE_ORGANIZATION, view, address, listener);
+    }
+
+    // Drops the result of an earlier request for a view which is being reused
+    public void cancel(View view) {
+        synchronized (pending) {
+            Request request = bound.remove(view);
+            if (request != null) {
+                request.listeners.remove(view);
+                if (request.listeners.size() == 0 && request.future.cancel(false))
+                    pending.remove(getKey(request.type, request.address));
+            }
+        }
+    }
+
+    private void request(int type, View view, String address, ResolvedListener listener) {
+        cancel(view);
+
+        Resolved resolved = cache.get(getKey(type, address));
+        if (resolved != null && !isExpired(type, resolved)) {
+            listener.onResolved(address, resolved.value);
+            return;
+        }
+
+        synchronized (pending) {
+            String key = getKey(type, address);
+            Request request = pending.get(key);
+            if (request == null) {
+                request = new Request(type, address);
+                pending.put(key, request);
+                request.future = executor.submit(request);
+            }
+            request.listeners.put(view, listener);
+            bound.put(view, request);
+        }
+    }
+
+    private String resolve(int type, String address) {
+        String key = getKey(type, address);
+
+        // Persisted result
+        try (Cursor cursor = dh.getResolved(type, address)) {
+            if (cursor.moveToNext()) {
+                Resolved resolved = new Resolved(cursor.isNull(0) ? null : cursor.getString(0), cursor.getLong(1));
+                if (!isExpired(type, resolved)) {
+                    cache.put(key, resolved);
+                    return resolved.value;
+                }
+            }
+        }
+
+        String value;
+        try {
+            if (type == TYPE_NAME)
+                value = InetAddress.getByName(address).getHostName();
+            else
+                value = getOrganization(address);
+        } catch (UnknownHostException ignored) {
+            value = null;
+        } catch (Throwable ex) {
+            // Try again next time
+            Log.w(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            return null;
+        }
+
+        Resolved resolved = new Resolved(value, System.currentTimeMillis());
+        cache.put(key, resolved);
+        dh.setResolved(type, address, value, resolved.time);
+        return value;
+    }
+
+    private String getOrganization(String ip) throws Exception {
+        URL url = new URL(String.format(organizationUrl, ip));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("GET");
+            connection.setConnectTimeout(15 * 1000);
+            connection.setReadTimeout(15 * 1000);
+            connection.connect();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+                String organization = reader.readLine();
+                if ("undefined".equals(organization))
+                    organization = null;
+                return organization;
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    public void cleanup() {
+        // Organizations are kept longest
+        dh.cleanupResolved(System.currentTimeMillis() - ORGANIZATION_TTL);
+    }
+
+    private static boolean isExpired(int type, Resolved resolved) {
+        long ttl = (type == TYPE_NAME ? NAME_TTL : ORGANIZATION_TTL);
+        return (resolved.time + ttl < System.currentTimeMillis());
+    }
+
+    private static String getKey(int type, String address) {
+        return type + ":" + address;
+    }
+}
@@ -32,6 +32,7 @@ import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.os.Build;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 
@@ -55,6 +56,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Rule {
     private static final String TAG = "TrackerControl.Rule";
@@ -94,10 +100,20 @@ public class Rule {
     public boolean expanded = false;
 
     private static List<PackageInfo> cachePackageInfo = null;
-    private static Map<PackageInfo, String> cacheLabel = new HashMap<>();
-    private static Map<String, Boolean> cacheSystem = new HashMap<>();
-    private static Map<String, Boolean> cacheInternet = new HashMap<>();
-    private static Map<PackageInfo, Boolean> cacheEnabled = new HashMap<>();
+    private static Map<PackageInfo, String> cacheLabel = new ConcurrentHashMap<>();
+    private static Map<String, Boolean> cacheSystem = new ConcurrentHashMap<>();
+    private static Map<String, Boolean> cacheInternet = new ConcurrentHashMap<>();
+    private static Map<PackageInfo, Boolean> cacheEnabled = new ConcurrentHashMap<>();
+    private static Predefined cachePredefined = null;
+
+    // Rules are built in parallel, package manager calls are mostly binder bound
+    private static final ThreadPoolExecutor executor;
+
+    static {
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+    }
 
     private static List<PackageInfo> getPackages(Context context) {
         if (cachePackageInfo == null) {
@@ -133,6 +149,13 @@ public class Rule {
         return cacheEnabled.get(info);
     }
 
+    private static Predefined getPredefined(Context context) {
+        if (cachePredefined == null)
+            cachePredefined = new Predefined(context);
+        return cachePredefined;
+    }
+
+    // The app table is validated by package update time and does not need to be cleared
     public static void clearCache(Context context) {
         Log.i(TAG, "Clearing cache");
         synchronized (context.getApplicationContext()) {
@@ -142,9 +165,6 @@ public class Rule {
             cacheInternet.clear();
             cacheEnabled.clear();
         }
-
-        DatabaseHelper dh = DatabaseHelper.getInstance(context);
-        dh.clearApps();
     }
 
     private Rule(DatabaseHelper dh, PackageInfo info, Context context) {
@@ -192,19 +212,26 @@ public class Rule {
             Cursor cursor = null;
             try {
                 cursor = dh.getApp(this.packageName);
-                if (cursor.moveToNext()) {
+                int colUpdated = cursor.getColumnIndex("updated");
+                boolean cached = (cursor.moveToNext() &&
+                        !cursor.isNull(colUpdated) &&
+                        cursor.getLong(colUpdated) == info.lastUpdateTime);
+
+                if (cached) {
                     this.name = cursor.getString(cursor.getColumnIndex("label"));
                     this.system = cursor.getInt(cursor.getColumnIndex("system")) > 0;
                     this.internet = cursor.getInt(cursor.getColumnIndex("internet")) > 0;
-                    this.enabled = cursor.getInt(cursor.getColumnIndex("enabled")) > 0;
                 } else {
                     this.name = getLabel(info, context);
                     this.system = isSystem(info.packageName, context);
                     this.internet = hasInternet(info.packageName, context);
-                    this.enabled = isEnabled(info, context);
-
-                    dh.addApp(this.packageName, this.name, this.system, this.internet, this.enabled);
                 }
+
+                // Disabling a package does not change its update time
+                this.enabled = isEnabled(info, context);
+
+                if (!cached)
+                    dh.addApp(this.packageName, this.name, this.system, this.internet, this.enabled, info.lastUpdateTime);
             } finally {
                 if (cursor != null)
                     cursor.close();
@@ -212,6 +239,53 @@ public class Rule {
         }
     }
 
+    // Predefined rules do not change while the app is installed
+    private static class Predefined {
+        Map<String, Boolean> wifi_blocked = new HashMap<>();
+        Map<String, Boolean> other_blocked = new HashMap<>();
+        Map<String, Boolean> roaming = new HashMap<>();
+        Map<String, String[]> related = new HashMap<>();
+        Map<String, Boolean> system = new HashMap<>();
+
+        Predefined(Context context) {
+            try {
+                XmlResourceParser xml = context.getResources().getXml(R.xml.predefined);
+                int eventType = xml.getEventType();
+                while (eventType != XmlPullParser.END_DOCUMENT) {
+                    if (eventType == XmlPullParser.START_TAG)
+                        if ("wifi".equals(xml.getName())) {
+                            String pkg = xml.getAttributeValue(null, "package");
+                            boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
+                            wifi_blocked.put(pkg, pblocked);
+
+                        } else if ("other".equals(xml.getName())) {
+                            String pkg = xml.getAttributeValue(null, "package");
+                            boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
+                            other_blocked.put(pkg, pblocked);
+                            // Without attribute the roaming setting applies
+                            if (xml.getAttributeValue(null, "roaming") != null)
+                                roaming.put(pkg, xml.getAttributeBooleanValue(null, "roaming", false));
+
+                        } else if ("relation".equals(xml.getName())) {
+                            String pkg = xml.getAttributeValue(null, "package");
+                            String[] rel = xml.getAttributeValue(null, "related").split(",");
+                            related.put(pkg, rel);
+
+                        } else if ("type".equals(xml.getName())) {
+                            String pkg = xml.getAttributeValue(null, "package");
+                            boolean psystem = xml.getAttributeBooleanValue(null, "system", true);
+                            system.put(pkg, psystem);
+                        }
+
+
+                    eventType = xml.next();
+                }
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+        }
+    }
+
     // Custom code: tracker counts
     private static Map<Integer, Integer> trackerCounts;
 
@@ -223,6 +297,10 @@ public class Rule {
         return trackerCount;
     }
 
+    static void setTrackerCounts(Map<Integer, Integer> counts) {
+        trackerCounts = counts;
+    }
+
     public static List<Rule> getRules(final boolean all, Context context) {
         synchronized (context.getApplicationContext()) {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -238,8 +316,6 @@ public class Rule {
             // Get settings
             boolean default_wifi = prefs.getBoolean("whitelist_wifi", true);
             boolean default_other = prefs.getBoolean("whitelist_other", true);
-            boolean default_screen_wifi = prefs.getBoolean("screen_wifi", false);
-            boolean default_screen_other = prefs.getBoolean("screen_other", false);
             boolean default_roaming = prefs.getBoolean("whitelist_roaming", true);
 
             boolean manage_system = prefs.getBoolean("manage_system", false);
@@ -249,53 +325,26 @@ public class Rule {
             boolean show_nointernet = prefs.getBoolean("show_nointernet", true);
             boolean show_disabled = prefs.getBoolean("show_disabled", true);
 
-            default_screen_wifi = default_screen_wifi && screen_on;
-            default_screen_other = default_screen_other && screen_on;
+            boolean default_screen_wifi = prefs.getBoolean("screen_wifi", false) && screen_on;
+            boolean default_screen_other = prefs.getBoolean("screen_other", false) && screen_on;
 
             // Get predefined rules
-            Map<String, Boolean> pre_wifi_blocked = new HashMap<>();
-            Map<String, Boolean> pre_other_blocked = new HashMap<>();
-            Map<String, Boolean> pre_roaming = new HashMap<>();
-            Map<String, String[]> pre_related = new HashMap<>();
-            Map<String, Boolean> pre_system = new HashMap<>();
-            try {
-                XmlResourceParser xml = context.getResources().getXml(R.xml.predefined);
-                int eventType = xml.getEventType();
-                while (eventType != XmlPullParser.END_DOCUMENT) {
-                    if (eventType == XmlPullParser.START_TAG)
-                        if ("wifi".equals(xml.getName())) {
-                            String pkg = xml.getAttributeValue(null, "package");
-                            boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
-                            pre_wifi_blocked.put(pkg, pblocked);
-
-                        } else if ("other".equals(xml.getName())) {
-                            String pkg = xml.getAttributeValue(null, "package");
-                            boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
-                            boolean proaming = xml.getAttributeBooleanValue(null, "roaming", default_roaming);
-                            pre_other_blocked.put(pkg, pblocked);
-                            pre_roaming.put(pkg, proaming);
-
-                        } else if ("relation".equals(xml.getName())) {
-                            String pkg = xml.getAttributeValue(null, "package");
-                            String[] rel = xml.getAttributeValue(null, "related").split(",");
-                            pre_related.put(pkg, rel);
+            final Predefined predefined = getPredefined(context);
 
-                        } else if ("type".equals(xml.getName())) {
-                            String pkg = xml.getAttributeValue(null, "package");
-                            boolean system = xml.getAttributeBooleanValue(null, "system", true);
-                            pre_system.put(pkg, system);
-                        }
-
-
-                    eventType = xml.next();
-                }
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            // Cached labels are localized
+            DatabaseHelper dh = DatabaseHelper.getInstance(context);
+            String locale = Locale.getDefault().toString();
+            if (!locale.equals(prefs.getString("app_locale", null))) {
+                Log.i(TAG, "Locale changed to " + locale);
+                dh.clearApps();
+                cacheLabel.clear();
+                prefs.edit().putString("app_locale", locale).apply();
             }
 
             // Build rule list
+            long start = SystemClock.elapsedRealtime();
             List<Rule> listRules = new ArrayList<>();
-            List<PackageInfo> listPI = getPackages(context);
+            final List<PackageInfo> listPI = getPackages(context);
 
             int userId = Process.myUid() / 100000;
 
@@ -359,62 +408,91 @@ public class Rule {
             nobody.applicationInfo.icon = 0;
             listPI.add(nobody);
 
-            DatabaseHelper dh = DatabaseHelper.getInstance(context);
-            for (PackageInfo info : listPI)
-                try {
-                    // Skip self
-                    if (info.applicationInfo.uid == Process.myUid())
-                        continue;
-
-                    Rule rule = new Rule(dh, info, context);
-
-                    if (pre_system.containsKey(info.packageName))
-                        rule.system = pre_system.get(info.packageName);
-                    if (info.applicationInfo.uid == Process.myUid())
-                        rule.system = true;
-
-                    if (all ||
-                            ((rule.system ? show_system : show_user) &&
-                                    (show_nointernet || rule.internet) &&
-                                    (show_disabled || rule.enabled))) {
-
-                        rule.wifi_default = (pre_wifi_blocked.containsKey(info.packageName) ? pre_wifi_blocked.get(info.packageName) : default_wifi);
-                        rule.other_default = (pre_other_blocked.containsKey(info.packageName) ? pre_other_blocked.get(info.packageName) : default_other);
-                        rule.screen_wifi_default = default_screen_wifi;
-                        rule.screen_other_default = default_screen_other;
-                        rule.roaming_default = (pre_roaming.containsKey(info.packageName) ? pre_roaming.get(info.packageName) : default_roaming);
-
-                        rule.wifi_blocked = (!(rule.system && !manage_system) && wifi.getBoolean(info.packageName, rule.wifi_default));
-                        rule.other_blocked = (!(rule.system && !manage_system) && other.getBoolean(info.packageName, rule.other_default));
-                        rule.screen_wifi = screen_wifi.getBoolean(info.packageName, rule.screen_wifi_default) && screen_on;
-                        rule.screen_other = screen_other.getBoolean(info.packageName, rule.screen_other_default) && screen_on;
-                        rule.roaming = roaming.getBoolean(info.packageName, rule.roaming_default);
-                        rule.lockdown = lockdown.getBoolean(info.packageName, false);
-
-                        rule.apply = apply.getBoolean(info.packageName, true);
-                        rule.notify = notify.getBoolean(info.packageName, true);
-
-                        // Related packages
-                        List<String> listPkg = new ArrayList<>();
-                        if (pre_related.containsKey(info.packageName))
-                            listPkg.addAll(Arrays.asList(pre_related.get(info.packageName)));
-                        for (PackageInfo pi : listPI)
-                            if (pi.applicationInfo.uid == rule.uid && !pi.packageName.equals(rule.packageName)) {
-                                rule.relateduids = true;
-                                listPkg.add(pi.packageName);
-                            }
-                        rule.related = listPkg.toArray(new String[0]);
-
-                        rule.hosts = dh.getHostCount(rule.uid, true);
-
-                        rule.updateChanged(default_wifi, default_other, default_roaming);
+            // Host counts in one query
+            final Map<Integer, Long> mapUidHosts = dh.getHostCounts();
 
-                        listRules.add(rule);
+            // Related uids
+            final Map<Integer, List<String>> mapUidPackages = new HashMap<>();
+            for (PackageInfo pi : listPI) {
+                List<String> listPkg = mapUidPackages.get(pi.applicationInfo.uid);
+                if (listPkg == null) {
+                    listPkg = new ArrayList<>();
+                    mapUidPackages.put(pi.applicationInfo.uid, listPkg);
+                }
+                listPkg.add(pi.packageName);
+            }
+
+            List<Future<Rule>> listFuture = new ArrayList<>();
+            for (final PackageInfo info : listPI) {
+                // Skip self
+                if (info.applicationInfo.uid == Process.myUid())
+                    continue;
+
+                listFuture.add(executor.submit(() -> {
+                    try {
+                        Rule rule = new Rule(dh, info, context);
+
+                        if (predefined.system.containsKey(info.packageName))
+                            rule.system = predefined.system.get(info.packageName);
+
+                        if (all ||
+                                ((rule.system ? show_system : show_user) &&
+                                        (show_nointernet || rule.internet) &&
+                                        (show_disabled || rule.enabled))) {
+
+                            rule.wifi_default = (predefined.wifi_blocked.containsKey(info.packageName) ? predefined.wifi_blocked.get(info.packageName) : default_wifi);
+                            rule.other_default = (predefined.other_blocked.containsKey(info.packageName) ? predefined.other_blocked.get(info.packageName) : default_other);
+                            rule.screen_wifi_default = default_screen_wifi;
+                            rule.screen_other_default = default_screen_other;
+                            rule.roaming_default = (predefined.roaming.containsKey(info.packageName) ? predefined.roaming.get(info.packageName) : default_roaming);
+
+                            rule.wifi_blocked = (!(rule.system && !manage_system) && wifi.getBoolean(info.packageName, rule.wifi_default));
+                            rule.other_blocked = (!(rule.system && !manage_system) && other.getBoolean(info.packageName, rule.other_default));
+                            rule.screen_wifi = screen_wifi.getBoolean(info.packageName, rule.screen_wifi_default) && screen_on;
+                            rule.screen_other = screen_other.getBoolean(info.packageName, rule.screen_other_default) && screen_on;
+                            rule.roaming = roaming.getBoolean(info.packageName, rule.roaming_default);
+                            rule.lockdown = lockdown.getBoolean(info.packageName, false);
+
+                            rule.apply = apply.getBoolean(info.packageName, true);
+                            rule.notify = notify.getBoolean(info.packageName, true);
+
+                            // Related packages
+                            List<String> listPkg = new ArrayList<>();
+                            if (predefined.related.containsKey(info.packageName))
+                                listPkg.addAll(Arrays.asList(predefined.related.get(info.packageName)));
+                            for (String pkg : mapUidPackages.get(rule.uid))
+                                if (!pkg.equals(rule.packageName)) {
+                                    rule.relateduids = true;
+                                    listPkg.add(pkg);
+                                }
+                            rule.related = listPkg.toArray(new String[0]);
+
+                            Long hosts = mapUidHosts.get(rule.uid);
+                            rule.hosts = (hosts == null ? 0 : hosts);
+
+                            rule.updateChanged(default_wifi, default_other, default_roaming);
+
+                            return rule;
+                        }
+                    } catch (Throwable ex) {
+                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                     }
+                    return null;
+                }));
+            }
+
+            for (Future<Rule> future : listFuture)
+                try {
+                    Rule rule = future.get();
+                    if (rule != null)
+                        listRules.add(rule);
                 } catch (Throwable ex) {
                     Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                 }
 
+            Log.i(TAG, "Rules=" + listRules.size() + " packages=" + listPI.size() +
+                    " elapsed=" + (SystemClock.elapsedRealtime() - start) + " ms");
+
             // Custom code: Load tracking counts
             TrackerList trackerList = TrackerList.getInstance(context);
             Pair<Map<Integer, Integer>, Integer> trackerCountsAndTotal = trackerList.getTrackerCountsAndTotal();
@@ -30,7 +30,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.database.Cursor;
@@ -62,6 +61,7 @@ import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseLongArray;
 import android.widget.RemoteViews;
 
 import androidx.core.app.NotificationCompat;
@@ -94,16 +94,16 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -139,6 +139,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private static Object jni_lock = new Object();
     private static long jni_context = 0;
+    private static ByteBuffer jni_sessions = null;
     private Thread tunnelThread = null;
     private ServiceSinkhole.Builder last_builder = null;
     private ParcelFileDescriptor vpn = null;
@@ -184,6 +185,11 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private static final int MSG_PACKET = 4;
     private static final int MSG_USAGE = 5;
 
+    private static final int PCAP_FILES = 4;
+
+    private static final int UID_STATS_SLOTS = 1024; // netguard.h
+    private static final int TOP_COUNT = 3;
+
     private enum State {none, waiting, enforcing, stats}
 
     public enum Command {run, start, reload, stop, stats, set, householding, watchdog}
@@ -210,10 +216,20 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private native int[] jni_get_stats(long context);
 
-    private static native void jni_pcap(String name, int record_size, int file_size);
+    private native int jni_get_uid_stats(long context, long[] stats);
+
+    private static native int jni_get_sessions(long context, ByteBuffer buffer);
+
+    private static native void jni_pcap(String name, int record_size, int file_size, int files);
+
+    private static native int jni_pcap_dropped();
 
     private native void jni_socks5(String addr, int port, String username, String password);
 
+    private native void jni_dns_cache(int size, int negative);
+
+    private native void jni_epoll(boolean edge, int events);
+
     private native void jni_done(long context);
 
     public static void setPcap(boolean enabled, Context context) {
@@ -240,7 +256,51 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
 
         File pcap = (enabled ? new File(context.getDir("data", MODE_PRIVATE), "netguard.pcap") : null);
-        jni_pcap(pcap == null ? null : pcap.getAbsolutePath(), record_size, file_size);
+        jni_pcap(pcap == null ? null : pcap.getAbsolutePath(), record_size, file_size, PCAP_FILES);
+    }
+
+    public static List<File> getPcapFiles(Context context) {
+        // Oldest first
+        List<File> files = new ArrayList<>();
+        File dir = context.getDir("data", MODE_PRIVATE);
+        for (int i = PCAP_FILES - 1; i >= 0; i--) {
+            File file = new File(dir, i == 0 ? "netguard.pcap" : "netguard.pcap." + i);
+            if (file.exists())
+                files.add(file);
+        }
+        return files;
+    }
+
+    public static void deletePcapFiles(Context context) {
+        for (File file : getPcapFiles(context))
+            if (!file.delete())
+                Log.w(TAG, "Delete PCAP failed file=" + file);
+    }
+
+    public static int getPcapDropped() {
+        return jni_pcap_dropped();
+    }
+
+    // Snapshot of the sessions of the running engine
+    public static List<Session> getSessions() {
+        synchronized (jni_lock) {
+            if (jni_context == 0)
+                return new ArrayList<>();
+
+            if (jni_sessions == null)
+                jni_sessions = ByteBuffer.allocateDirect(256 * Session.RECORD_SIZE).order(ByteOrder.nativeOrder());
+
+            int count = jni_get_sessions(jni_context, jni_sessions);
+            if (count * Session.RECORD_SIZE > jni_sessions.capacity()) {
+                // Grow with some room and take the snapshot again
+                jni_sessions = ByteBuffer.allocateDirect(count * 2 * Session.RECORD_SIZE).order(ByteOrder.nativeOrder());
+                count = jni_get_sessions(jni_context, jni_sessions);
+            }
+
+            if (count < 0)
+                return new ArrayList<>();
+            return Session.decode(jni_sessions, Math.min(count, jni_sessions.capacity() / Session.RECORD_SIZE));
+        }
     }
 
     synchronized private static PowerManager.WakeLock getLock(Context context) {
@@ -656,6 +716,12 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             // Clear expired DNS records
             DatabaseHelper.getInstance(ServiceSinkhole.this).cleanupDns();
 
+            // Compact tracker history into daily and weekly buckets
+            DatabaseHelper.getInstance(ServiceSinkhole.this).cleanupTrackerHistory();
+
+            // Clear expired reverse DNS and organization lookups
+            HostResolver.getInstance(ServiceSinkhole.this).cleanup();
+
             // Keep IP mappings clean
             ipToHost.clear();
             ipToTracker.clear();
@@ -874,11 +940,19 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         private long tx = -1;
         private long rx = -1;
 
-        private List<Long> gt = new ArrayList<>();
-        private List<Float> gtx = new ArrayList<>();
-        private List<Float> grx = new ArrayList<>();
+        // Graph history, ring buffers of gcount samples starting at gfirst
+        private long[] gt = new long[0];
+        private float[] gtx = new float[0];
+        private float[] grx = new float[0];
+        private int gfirst = 0;
+        private int gcount = 0;
+
+        // Native byte counters by uid, as uid, sent, received triples
+        private long[] uidStats = new long[3 * UID_STATS_SLOTS];
+        private SparseLongArray mapUidBytes = new SparseLongArray();
 
-        private HashMap<Integer, Long> mapUidBytes = new HashMap<>();
+        private int[] topUid = new int[TOP_COUNT];
+        private float[] topSpeed = new float[TOP_COUNT];
 
         public StatsHandler(Looper looper) {
             super(looper);
@@ -917,9 +991,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 t = -1;
                 tx = -1;
                 rx = -1;
-                gt.clear();
-                gtx.clear();
-                grx.clear();
+                gfirst = 0;
+                gcount = 0;
                 mapUidBytes.clear();
                 stats = true;
                 updateStats();
@@ -952,11 +1025,20 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
             long ct = SystemClock.elapsedRealtime();
 
+            // Size history for the sample period
+            int size = (int) (samples * 1000 / Math.max(frequency, 1)) + 2;
+            if (gt.length != size) {
+                gt = new long[size];
+                gtx = new float[size];
+                grx = new float[size];
+                gfirst = 0;
+                gcount = 0;
+            }
+
             // Cleanup
-            while (gt.size() > 0 && ct - gt.get(0) > samples * 1000) {
-                gt.remove(0);
-                gtx.remove(0);
-                grx.remove(0);
+            while (gcount > 0 && ct - gt[gfirst] > samples * 1000) {
+                gfirst = (gfirst + 1) % gt.length;
+                gcount--;
             }
 
             // Calculate network speed
@@ -976,53 +1058,61 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 float dt = (ct - t) / 1000f;
                 txsec = (ttx - tx) / dt;
                 rxsec = (trx - rx) / dt;
-                gt.add(ct);
-                gtx.add(txsec);
-                grx.add(rxsec);
+                if (gcount == gt.length) {
+                    gfirst = (gfirst + 1) % gt.length;
+                    gcount--;
+                }
+                int last = (gfirst + gcount) % gt.length;
+                gt[last] = ct;
+                gtx[last] = txsec;
+                grx[last] = rxsec;
+                gcount++;
             }
 
-            // Calculate application speeds
-            if (show_top) {
-                if (mapUidBytes.size() == 0) {
-                    for (ApplicationInfo ainfo : getPackageManager().getInstalledApplications(0))
-                        if (ainfo.uid != Process.myUid())
-                            mapUidBytes.put(ainfo.uid, TrafficStats.getUidTxBytes(ainfo.uid) + TrafficStats.getUidRxBytes(ainfo.uid));
+            // Calculate application speeds from the bytes forwarded by the native engine
+            if (show_top && filter && jni_context != 0) {
+                int count = jni_get_uid_stats(jni_context, uidStats);
+                float dt = (ct - t) / 1000f;
 
-                } else if (t > 0) {
-                    TreeMap<Float, Integer> mapSpeedUid = new TreeMap<>(new Comparator<Float>() {
-                        @Override
-                        public int compare(Float value, Float other) {
-                            return -value.compareTo(other);
-                        }
-                    });
-                    float dt = (ct - t) / 1000f;
-                    for (int uid : mapUidBytes.keySet()) {
-                        long bytes = TrafficStats.getUidTxBytes(uid) + TrafficStats.getUidRxBytes(uid);
-                        float speed = (bytes - mapUidBytes.get(uid)) / dt;
-                        if (speed > 0) {
-                            mapSpeedUid.put(speed, uid);
-                            mapUidBytes.put(uid, bytes);
-                        }
+                // Select the top speeds without sorting all applications
+                int top = 0;
+                for (int i = 0; i < count; i++) {
+                    int uid = (int) uidStats[i * 3];
+                    long bytes = uidStats[i * 3 + 1] + uidStats[i * 3 + 2];
+                    long last = mapUidBytes.get(uid, -1);
+                    mapUidBytes.put(uid, bytes);
+                    if (last < 0 || uid == Process.myUid())
+                        continue;
+
+                    float speed = (bytes - last) / dt;
+                    if (speed <= 0 || (top == TOP_COUNT && speed <= topSpeed[top - 1]))
+                        continue;
+
+                    int j = (top < TOP_COUNT ? top++ : top - 1);
+                    while (j > 0 && topSpeed[j - 1] < speed) {
+                        topSpeed[j] = topSpeed[j - 1];
+                        topUid[j] = topUid[j - 1];
+                        j--;
                     }
+                    topSpeed[j] = speed;
+                    topUid[j] = uid;
+                }
 
-                    StringBuilder sb = new StringBuilder();
-                    int i = 0;
-                    for (float speed : mapSpeedUid.keySet()) {
-                        if (i++ >= 3)
-                            break;
-                        if (speed < 1000 * 1000)
-                            sb.append(getString(R.string.msg_kbsec, speed / 1000));
-                        else
-                            sb.append(getString(R.string.msg_mbsec, speed / 1000 / 1000));
-                        sb.append(' ');
-                        List<String> apps = Util.getApplicationNames(mapSpeedUid.get(speed), ServiceSinkhole.this);
-                        sb.append(apps.size() > 0 ? apps.get(0) : "?");
-                        sb.append("\r\n");
-                    }
-                    if (sb.length() > 0)
-                        sb.setLength(sb.length() - 2);
-                    remoteViews.setTextViewText(R.id.tvTop, sb.toString());
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < top; i++) {
+                    float speed = topSpeed[i];
+                    if (speed < 1000 * 1000)
+                        sb.append(getString(R.string.msg_kbsec, speed / 1000));
+                    else
+                        sb.append(getString(R.string.msg_mbsec, speed / 1000 / 1000));
+                    sb.append(' ');
+                    List<String> apps = Util.getApplicationNames(topUid[i], ServiceSinkhole.this);
+                    sb.append(apps.size() > 0 ? apps.get(0) : "?");
+                    sb.append("\r\n");
                 }
+                if (sb.length() > 0)
+                    sb.setLength(sb.length() - 2);
+                remoteViews.setTextViewText(R.id.tvTop, sb.toString());
             }
 
             t = ct;
@@ -1042,10 +1132,11 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             float max = 0;
             long xmax = 0;
             float ymax = 0;
-            for (int i = 0; i < gt.size(); i++) {
-                long t = gt.get(i);
-                float tx = gtx.get(i);
-                float rx = grx.get(i);
+            for (int n = 0; n < gcount; n++) {
+                int i = (gfirst + n) % gt.length;
+                long t = gt[i];
+                float tx = gtx[i];
+                float rx = grx[i];
                 if (t > xmax)
                     xmax = t;
                 if (tx > max)
@@ -1061,11 +1152,12 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             // Build paths
             Path ptx = new Path();
             Path prx = new Path();
-            for (int i = 0; i < gtx.size(); i++) {
-                float x = width - width * (xmax - gt.get(i)) / 1000f / samples;
-                float ytx = height - height * gtx.get(i) / ymax;
-                float yrx = height - height * grx.get(i) / ymax;
-                if (i == 0) {
+            for (int n = 0; n < gcount; n++) {
+                int i = (gfirst + n) % gt.length;
+                float x = width - width * (xmax - gt[i]) / 1000f / samples;
+                float ytx = height - height * gtx[i] / ymax;
+                float yrx = height - height * grx[i] / ymax;
+                if (n == 0) {
                     ptx.moveTo(x, ytx);
                     prx.moveTo(x, yrx);
                 } else {
@@ -1111,7 +1203,10 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             // Show session/file count
             if (filter && loglevel <= Log.WARN) {
                 int[] count = jni_get_stats(jni_context);
-                remoteViews.setTextViewText(R.id.tvSessions, count[0] + "/" + count[1] + "/" + count[2]);
+                String sessions = count[0] + "/" + count[1] + "/" + count[2];
+                if (count[5] > 0 || count[6] > 0 || count[7] > 0)
+                    sessions += " -" + count[5] + "/" + count[6] + "/" + count[7];
+                remoteViews.setTextViewText(R.id.tvSessions, sessions);
                 remoteViews.setTextViewText(R.id.tvFiles, count[3] + "/" + count[4]);
             } else {
                 remoteViews.setTextViewText(R.id.tvSessions, "");
@@ -1487,6 +1582,27 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             else
                 jni_socks5("", 0, "", "");
 
+            if (prefs.getBoolean("dns_cache", false)) {
+                int size = 256;
+                int negative = 60;
+                try {
+                    size = Integer.parseInt(prefs.getString("dns_cache_size", "256"));
+                    negative = Integer.parseInt(prefs.getString("dns_cache_negative", "60"));
+                } catch (Throwable ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
+                jni_dns_cache(size, negative);
+            } else
+                jni_dns_cache(0, 0);
+
+            int events = 64;
+            try {
+                events = Integer.parseInt(prefs.getString("epoll_events", "64"));
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+            jni_epoll(prefs.getBoolean("epoll_edge", false), events);
+
             if (tunnelThread == null) {
                 Log.i(TAG, "Starting tunnel thread context=" + jni_context);
                 jni_start(jni_context, prio);
@@ -2453,6 +2569,10 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         logHandler = new LogHandler(logLooper);
         statsHandler = new StatsHandler(statsLooper);
 
+        // Custom code: tracker domains are needed to block and count trackers
+        // Parsing takes a while, loaded before the first command starts the tunnel
+        commandHandler.post(() -> TrackerList.getInstance(ServiceSinkhole.this));
+
         // Listen for user switches
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
             IntentFilter ifUser = new IntentFilter();
@@ -0,0 +1,136 @@
+/*
+ * This file is from NetGuard.
+ *
+ * NetGuard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NetGuard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2015–2020 by Marcel Bokhorst (M66B), Konrad
+ * Kollnig (University of Oxford)
+ */
+
+package eu.faircode.netguard;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Session of the native engine, as copied by jni_get_sessions
+public class Session {
+    // Layout of struct session_record in netguard.h
+    static final int RECORD_SIZE = 72;
+
+    private static final int UDP_ACTIVE = 0;
+    private static final int TCP_CLOSE = 7;
+    private static final int TCP_CLOSING = 11;
+
+    public int version;
+    public int protocol;
+    public int state;
+    public int uid;
+    public String saddr;
+    public int sport;
+    public String daddr;
+    public int dport;
+    public long age; // seconds
+    public long idle; // seconds
+    public long sent;
+    public long received;
+
+    public Session() {
+    }
+
+    // The buffer should be in native byte order
+    static List<Session> decode(ByteBuffer buffer, int count) {
+        List<Session> result = new ArrayList<>(count);
+        byte[] addr = new byte[16];
+        for (int i = 0; i < count; i++) {
+            int pos = i * RECORD_SIZE;
+            Session s = new Session();
+            s.version = buffer.get(pos) & 0xFF;
+            s.protocol = buffer.get(pos + 1) & 0xFF;
+            s.state = buffer.get(pos + 2) & 0xFF;
+            s.uid = buffer.getInt(pos + 4);
+            s.sport = buffer.getShort(pos + 8) & 0xFFFF;
+            s.dport = buffer.getShort(pos + 10) & 0xFFFF;
+            s.age = buffer.getInt(pos + 12) & 0xFFFFFFFFL;
+            s.saddr = getAddress(buffer, pos + 16, s.version, addr);
+            s.daddr = getAddress(buffer, pos + 32, s.version, addr);
+            s.sent = buffer.getLong(pos + 48);
+            s.received = buffer.getLong(pos + 56);
+            s.idle = buffer.getInt(pos + 64) & 0xFFFFFFFFL;
+            result.add(s);
+        }
+        return result;
+    }
+
+    private static String getAddress(ByteBuffer buffer, int pos, int version, byte[] addr) {
+        for (int i = 0; i < 16; i++)
+            addr[i] = buffer.get(pos + i);
+        try {
+            return InetAddress.getByAddress(version == 4 ? Arrays.copyOf(addr, 4) : addr).getHostAddress();
+        } catch (UnknownHostException ignored) {
+            return null;
+        }
+    }
+
+    public boolean isActive() {
+        if (protocol == 6) // TCP
+            return (state != TCP_CLOSING && state != TCP_CLOSE);
+        else if (protocol == 17) // UDP
+            return (state == UDP_ACTIVE);
+        else
+            return (state == 0); // ICMP not stopped
+    }
+
+    public String getStateName() {
+        if (protocol == 6)
+            switch (state) {
+                case 1:
+                    return "ESTABLISHED";
+                case 2:
+                    return "SYN_SENT";
+                case 3:
+                    return "SYN_RECV";
+                case 4:
+                    return "FIN_WAIT1";
+                case 5:
+                    return "FIN_WAIT2";
+                case 6:
+                    return "TIME_WAIT";
+                case TCP_CLOSE:
+                    return "CLOSE";
+                case 8:
+                    return "CLOSE_WAIT";
+                case 9:
+                    return "LAST_ACK";
+                case 10:
+                    return "LISTEN";
+                case TCP_CLOSING:
+                    return "CLOSING";
+            }
+        return (isActive() ? "" : "CLOSED");
+    }
+
+    // Identifies the flow over successive snapshots
+    public String getKey() {
+        return protocol + "/" + version + "/" + sport + "/" + daddr + "/" + dport;
+    }
+
+    @Override
+    public String toString() {
+        return "uid=" + uid + " v" + version + " p" + protocol + " " + daddr + "/" + dport + " " + getStateName();
+    }
+}
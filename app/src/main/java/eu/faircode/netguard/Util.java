@@ -72,11 +72,9 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
-import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
@@ -86,7 +84,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -135,6 +132,8 @@ public class Util {
 
     private static native void dump_memory_profile();
 
+    private static native void dump_trace();
+
     static {
         try {
             System.loadLibrary("netguard");
@@ -611,34 +610,6 @@ public class Util {
                 .create().show();
     }
 
-    private static final Map<String, String> mapIPOrganization = new HashMap<>();
-
-    public static String getOrganization(String ip) throws Exception {
-        synchronized (mapIPOrganization) {
-            if (mapIPOrganization.containsKey(ip))
-                return mapIPOrganization.get(ip);
-        }
-        BufferedReader reader = null;
-        try {
-            URL url = new URL("https://ipinfo.io/" + ip + "/org");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setReadTimeout(15 * 1000);
-            connection.connect();
-            reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            String organization = reader.readLine();
-            if ("undefined".equals(organization))
-                organization = null;
-            synchronized (mapIPOrganization) {
-                mapIPOrganization.put(ip, organization);
-            }
-            return organization;
-        } finally {
-            if (reader != null)
-                reader.close();
-        }
-    }
-
     public static String md5(String text, String salt) throws NoSuchAlgorithmException, UnsupportedEncodingException {
         // MD5
         byte[] bytes = MessageDigest.getInstance("MD5").digest((text + salt).getBytes("UTF-8"));
@@ -929,6 +900,7 @@ public class Util {
 
                 // Write logcat
                 dump_memory_profile();
+                dump_trace();
                 OutputStream out = null;
                 try {
                     Log.i(TAG, "Writing logcat URI=" + uri);
@@ -0,0 +1,115 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2019–2020 Konrad Kollnig (University of Oxford)
+ */
+package net.kollnig.missioncontrol.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.maxmind.db.CHMCache;
+import com.maxmind.db.Reader;
+import com.maxmind.geoip2.DatabaseReader;
+import com.maxmind.geoip2.exception.AddressNotFoundException;
+
+import net.kollnig.missioncontrol.BuildConfig;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+import eu.faircode.netguard.Util;
+
+/**
+ * Process-wide country lookups on the bundled GeoLite2 database.
+ */
+public class GeoIp {
+    private static final String TAG = "TrackerControl.GeoIp";
+    private static final String ASSET = "GeoLite2-Country.mmdb";
+
+    private static GeoIp instance;
+    private DatabaseReader reader;
+
+    private GeoIp(Context c) {
+        try {
+            // Extracted once per version, so that it can be memory mapped
+            File file = new File(c.getFilesDir(), "GeoLite2-Country-" + BuildConfig.VERSION_CODE + ".mmdb");
+            if (!file.exists())
+                extract(c, file);
+            reader = new DatabaseReader.Builder(file)
+                    .fileMode(Reader.FileMode.MEMORY_MAPPED)
+                    .withCache(new CHMCache())
+                    .build();
+        } catch (IOException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        }
+    }
+
+    /**
+     * Singleton getter.
+     *
+     * @param c context used to extract the database from the assets
+     * @return The current instance of GeoIp, if none, a new instance is created.
+     */
+    public static synchronized GeoIp getInstance(Context c) {
+        if (instance == null)
+            instance = new GeoIp(c.getApplicationContext());
+        return instance;
+    }
+
+    private static void extract(Context c, File file) throws IOException {
+        Log.i(TAG, "Extracting " + ASSET);
+
+        // Remove databases of previous versions
+        File[] files = c.getFilesDir().listFiles((dir, name) -> name.startsWith("GeoLite2-Country"));
+        if (files != null)
+            for (File old : files)
+                old.delete();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (InputStream is = c.getAssets().open(ASSET);
+             OutputStream os = new FileOutputStream(tmp)) {
+            byte[] buffer = new byte[64 * 1024];
+            int len;
+            while ((len = is.read(buffer)) > 0)
+                os.write(buffer, 0, len);
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Rename " + tmp + " failed");
+    }
+
+    /**
+     * Looks up the country of an IP address, without any network activity.
+     *
+     * @param ip numeric IPv4 or IPv6 address
+     * @return ISO country code, or null if unknown
+     */
+    public String getCountry(String ip) {
+        if (reader == null || ip == null || !Util.isNumericAddress(ip))
+            return null;
+
+        try {
+            return reader.country(InetAddress.getByName(ip)).getCountry().getIsoCode();
+        } catch (AddressNotFoundException ignored) {
+            return null;
+        } catch (Throwable ex) {
+            Log.w(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            return null;
+        }
+    }
+}
@@ -33,6 +33,7 @@ public class Tracker {
     public String category;
     public Boolean necessary;
     public Long lastSeen;
+    public long hits; // over the history period
     private Set<String> hosts = new HashSet<>();
 
     public Tracker(String name, String category, long lastSeen) {
@@ -48,6 +49,15 @@ public class Tracker {
         this.necessary = necessary;
     }
 
+    Tracker(Tracker tracker) {
+        this.name = tracker.name;
+        this.category = tracker.category;
+        this.necessary = tracker.necessary;
+        this.lastSeen = tracker.lastSeen;
+        this.hits = tracker.hits;
+        this.hosts.addAll(tracker.hosts);
+    }
+
     @Override
     @NonNull
     public String toString() {
@@ -64,6 +74,8 @@ public class Tracker {
         } else {
             title = name;
         }
+        if (hits > 0)
+            title += "\n" + hits + " contacts in the last 90 days";
 
         if ((TrackerList.necessaryTrackers.contains(name)
                 && !Util.isPlayStoreInstall()) ||
@@ -30,6 +30,13 @@ public class TrackerCategory {
         this.lastSeen = lastSeen;
     }
 
+    TrackerCategory(TrackerCategory category) {
+        this.name = category.name;
+        this.lastSeen = category.lastSeen;
+        for (Tracker child : category.getChildren())
+            getChildren().add(new Tracker(child));
+    }
+
     public List<Tracker> getChildren() {
         if (this.children == null) {
             this.children = new ArrayList<>();
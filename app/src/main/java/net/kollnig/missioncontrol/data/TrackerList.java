@@ -18,10 +18,15 @@
 package net.kollnig.missioncontrol.data;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.util.Log;
+import android.util.LruCache;
 
 import androidx.collection.ArrayMap;
+import androidx.preference.PreferenceManager;
+
+import net.kollnig.missioncontrol.BuildConfig;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -41,20 +46,26 @@ import java.util.Set;
 
 import eu.faircode.netguard.DatabaseHelper;
 
-public class TrackerList {
+public class TrackerList implements DatabaseHelper.TrackerChangedListener {
     private static final String TAG = TrackerList.class.getSimpleName();
+    private static final int APP_CACHE_SIZE = 64;
+    private static final long HISTORY_PERIOD = 90 * 24 * 3600 * 1000L;
     static Set<String> necessaryTrackers = new HashSet<>();
     private static Map<String, Tracker> hostnameToTracker = new ArrayMap<>();
     private static TrackerList instance;
     private DatabaseHelper databaseHelper;
+    private SharedPreferences prefs;
+    private final LruCache<Integer, AppTrackers> appTrackers = new LruCache<>(APP_CACHE_SIZE);
 
     /**
      * Database constructor
      */
     private TrackerList(Context c) {
         databaseHelper = DatabaseHelper.getInstance(c);
+        prefs = PreferenceManager.getDefaultSharedPreferences(c);
         loadXrayTrackerDomains(c);
         loadTrackerDomains(c);
+        databaseHelper.addTrackerChangedListener(this);
     }
 
     /**
@@ -64,7 +75,7 @@ public class TrackerList {
      * @return The current instance of PrivacyDB, if none, a new instance is created.
      * After calling this method, the database is open for writing.
      */
-    public static TrackerList getInstance(Context c) {
+    public static synchronized TrackerList getInstance(Context c) {
         if (instance == null)
             instance = new TrackerList(c);
 
@@ -96,34 +107,25 @@ public class TrackerList {
      * Cursor should have app name and leak summation based on a sort type
      */
     public synchronized Pair<Map<Integer, Integer>, Integer> getTrackerCountsAndTotal() {
-        Map<Integer, Set<String>> trackers = new ArrayMap<>();
-
-        Cursor cursor = databaseHelper.getHosts();
-
-        if (cursor.moveToFirst()) {
-            do {
-                int uid = cursor.getInt(cursor.getColumnIndex("uid"));
-                Set<String> observedTrackers = trackers.get(uid);
-                if (observedTrackers == null) {
-                    observedTrackers = new HashSet<>();
-                    trackers.put(uid, observedTrackers);
-                }
-
-                // Add tracker
-                String hostname = cursor.getString(cursor.getColumnIndex("daddr"));
-                Tracker tracker = findTracker(hostname);
-                if (tracker != null)
-                    observedTrackers.add(tracker.getName());
-            } while (cursor.moveToNext());
+        // Counts are maintained while logging, but depend on the bundled tracker lists
+        int version = prefs.getInt("app_tracker_version", 0);
+        if (version != BuildConfig.VERSION_CODE) {
+            Log.i(TAG, "Rebuilding tracker counts version=" + version);
+            databaseHelper.rebuildAppTrackers();
+            prefs.edit().putInt("app_tracker_version", BuildConfig.VERSION_CODE).apply();
         }
-        cursor.close();
 
-        // Reduce to counts
         int totalTracker = 0;
         Map<Integer, Integer> trackerCounts = new ArrayMap<>();
-        for (Map.Entry<Integer, Set<String>> entry : trackers.entrySet()) {
-            trackerCounts.put(entry.getKey(), entry.getValue().size());
-            totalTracker += entry.getValue().size();
+
+        try (Cursor cursor = databaseHelper.getAppTrackerCounts()) {
+            int colUid = cursor.getColumnIndex("uid");
+            int colTrackers = cursor.getColumnIndex("trackers");
+            while (cursor.moveToNext()) {
+                int count = cursor.getInt(colTrackers);
+                trackerCounts.put(cursor.getInt(colUid), count);
+                totalTracker += count;
+            }
         }
 
         return new Pair<>(trackerCounts, totalTracker);
@@ -144,57 +146,38 @@ public class TrackerList {
      * @return A list of seen trackers
      */
     public synchronized List<TrackerCategory> getAppTrackers(int uid) {
-        Map<String, TrackerCategory> categoryToTracker = new ArrayMap<>();
-
-        Cursor cursor = databaseHelper.getHosts(uid);
-
-        if (cursor.moveToFirst()) {
-            outer:
-            do {
-                String host = cursor.getString(cursor.getColumnIndex("daddr"));
-                long lastSeen = cursor.getLong(cursor.getColumnIndex("time"));
-
-                Tracker tracker = findTracker(host);
-                if (tracker == null)
-                    continue;
-
-                String category = tracker.category;
-                String name = tracker.name;
-                if (category == null || category.equals("null"))
-                    category = name;
-
-                TrackerCategory categoryCompany = categoryToTracker.get(category);
-                if (categoryCompany == null) {
-                    categoryCompany = new TrackerCategory(category, lastSeen);
-                    categoryToTracker.put(category, categoryCompany);
-                } else {
-                    if (categoryCompany.lastSeen < lastSeen)
-                        categoryCompany.lastSeen = lastSeen;
-                }
-
-                // check if tracker has already been added
-                for (Tracker child : categoryCompany.getChildren()) {
-                    if (child.name != null
-                            && child.name.equals(name)) {
-                        child.addHost(host);
-
-                        if (child.lastSeen < lastSeen)
-                            child.lastSeen = lastSeen;
-
-                        continue outer;
-                    }
-                }
+        AppTrackers cached = appTrackers.get(uid);
+        if (cached == null) {
+            cached = new AppTrackers();
+
+            Cursor cursor = databaseHelper.getHosts(uid);
+            if (cursor.moveToFirst()) {
+                int colDAddr = cursor.getColumnIndex("daddr");
+                int colTime = cursor.getColumnIndex("time");
+                do {
+                    String host = cursor.getString(colDAddr);
+                    Tracker tracker = findTracker(host);
+                    if (tracker != null)
+                        cached.add(host, tracker, cursor.getLong(colTime));
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
 
-                Tracker child = new Tracker(name, category, lastSeen);
-                child.addHost(host);
-                categoryCompany.getChildren().add(child);
-            } while (cursor.moveToNext());
+            appTrackers.put(uid, cached);
         }
 
-        cursor.close();
-
-        // map to list
-        List<TrackerCategory> trackerList = new ArrayList<>(categoryToTracker.values());
+        // Copy, the cache keeps changing while the list is shown
+        List<TrackerCategory> trackerList = new ArrayList<>();
+        for (TrackerCategory category : cached.categories.values())
+            trackerList.add(new TrackerCategory(category));
+
+        // Contacts over the history period, the history is kept per tracker name
+        Map<String, Long> hits = getTrackerHits(uid, System.currentTimeMillis() - HISTORY_PERIOD);
+        for (TrackerCategory category : trackerList)
+            for (Tracker child : category.getChildren()) {
+                Long count = hits.get(child.name);
+                child.hits = (count == null ? 0 : count);
+            }
 
         // sort lists
         Collections.sort(trackerList, (o1, o2) -> o1.name.compareTo(o2.name));
@@ -205,6 +188,65 @@ public class TrackerList {
         return trackerList;
     }
 
+    @Override
+    public synchronized void onSeen(int uid, String host, Tracker tracker, long time) {
+        AppTrackers cached = appTrackers.get(uid);
+        if (cached != null)
+            cached.add(host, tracker, time);
+    }
+
+    @Override
+    public synchronized void onCleared(int uid) {
+        if (uid < 0)
+            appTrackers.evictAll();
+        else
+            appTrackers.remove(uid);
+    }
+
+    private Map<String, Long> getTrackerHits(int uid, long since) {
+        Map<String, Long> hits = new HashMap<>();
+        try (Cursor cursor = databaseHelper.getTrackerHistory(uid, since)) {
+            int colTracker = cursor.getColumnIndex("tracker");
+            int colHits = cursor.getColumnIndex("hits");
+            while (cursor.moveToNext()) {
+                String tracker = cursor.getString(colTracker);
+                Long count = hits.get(tracker);
+                hits.put(tracker, (count == null ? 0 : count) + cursor.getLong(colHits));
+            }
+        }
+        return hits;
+    }
+
+    private static class AppTrackers {
+        private Map<String, TrackerCategory> categories = new ArrayMap<>();
+        // Keyed by category and tracker name
+        private Map<String, Tracker> children = new HashMap<>();
+
+        void add(String host, Tracker tracker, long lastSeen) {
+            String category = tracker.category;
+            String name = tracker.name;
+            if (category == null || category.equals("null"))
+                category = name;
+
+            TrackerCategory categoryCompany = categories.get(category);
+            if (categoryCompany == null) {
+                categoryCompany = new TrackerCategory(category, lastSeen);
+                categories.put(category, categoryCompany);
+            } else if (categoryCompany.lastSeen < lastSeen)
+                categoryCompany.lastSeen = lastSeen;
+
+            String key = category + "/" + name;
+            Tracker child = children.get(key);
+            if (child == null) {
+                child = new Tracker(name, category, lastSeen);
+                categoryCompany.getChildren().add(child);
+                children.put(key, child);
+            } else if (child.lastSeen < lastSeen)
+                child.lastSeen = lastSeen;
+            child.addHost(host);
+        }
+    }
+
     private void loadXrayTrackerDomains(Context context) {
         Map<String, Tracker> companies = new HashMap<>();
 
@@ -29,19 +29,13 @@ import android.widget.TextView;
 import androidx.collection.ArrayMap;
 import androidx.fragment.app.Fragment;
 
-import com.maxmind.geoip2.DatabaseReader;
-import com.maxmind.geoip2.exception.GeoIp2Exception;
-import com.maxmind.geoip2.model.CountryResponse;
-import com.maxmind.geoip2.record.Country;
-
 import net.kollnig.missioncontrol.R;
+import net.kollnig.missioncontrol.data.GeoIp;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.InetAddress;
 import java.util.Map;
 
 import eu.faircode.netguard.DatabaseHelper;
+import eu.faircode.netguard.Util;
 import jp.gr.java_conf.androtaku.geomap.GeoMapView;
 
 import static net.kollnig.missioncontrol.data.TrackerList.findTracker;
@@ -83,45 +77,39 @@ public class CountriesFragment extends Fragment {
     public synchronized Map<String, Integer> getHostCountriesCount(int uid) {
         Map<String, Integer> countryToCount = new ArrayMap<>();
 
-        Cursor cursor = null;
-        try {
-            Context context = getContext();
-            if (context == null)
-                return countryToCount;
-
-            InputStream database = context.getAssets().open("GeoLite2-Country.mmdb");
-            DatabaseReader reader = new DatabaseReader.Builder(database).build();
-
-            DatabaseHelper dh = DatabaseHelper.getInstance(getContext());
-            cursor = dh.getHosts(uid);
-
-            if (cursor.moveToFirst()) {
-                do {
-                    String host = cursor.getString(cursor.getColumnIndex("daddr"));
-                    if (findTracker(host) == null)
-                        continue;
-
-                    InetAddress ipAddress = InetAddress.getByName(host);
-                    CountryResponse response = reader.country(ipAddress);
-
-                    Country country = response.getCountry();
-                    String code = country.getIsoCode();
+        Context context = getContext();
+        if (context == null)
+            return countryToCount;
+
+        GeoIp geoIp = GeoIp.getInstance(context);
+        DatabaseHelper dh = DatabaseHelper.getInstance(context);
+        try (Cursor cursor = dh.getAccessCountries(uid)) {
+            int colId = cursor.getColumnIndex("_id");
+            int colDAddr = cursor.getColumnIndex("daddr");
+            int colCountry = cursor.getColumnIndex("country");
+            int colResource = cursor.getColumnIndex("resource");
+            while (cursor.moveToNext()) {
+                String host = cursor.getString(colDAddr);
+                if (findTracker(host) == null)
+                    continue;
+
+                // Rows from before countries were recorded, only use known addresses
+                String code = cursor.getString(colCountry);
+                if (code == null) {
+                    String ip = (Util.isNumericAddress(host) ? host : cursor.getString(colResource));
+                    code = geoIp.getCountry(ip);
                     if (code == null)
                         continue;
-
-                    Integer count = countryToCount.get(code);
-                    if (count == null) {
-                        countryToCount.put(code, 1);
-                    } else {
-                        countryToCount.put(code, count + 1);
-                    }
-                } while (cursor.moveToNext());
+                    dh.setAccessCountry(cursor.getLong(colId), code);
+                }
+
+                Integer count = countryToCount.get(code);
+                if (count == null) {
+                    countryToCount.put(code, 1);
+                } else {
+                    countryToCount.put(code, count + 1);
+                }
             }
-        } catch (IOException | GeoIp2Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (cursor != null)
-                cursor.close();
         }
         return countryToCount;
     }
@@ -57,6 +57,7 @@ int check_dhcp(const struct arguments *args, const struct udp_session *u,
 
         // Hack
         inet_pton(AF_INET, "10.1.10.1", (void *) &u->saddr);
+        ((struct udp_session *) u)->hdr.version = 0; // rebuild header template
 
         /*
         Discover:
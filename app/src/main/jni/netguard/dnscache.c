@@ -0,0 +1,437 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// All state below is only accessed from the events thread
+
+int dns_cache_size = 0; // entries, zero = disabled
+int dns_cache_negative = 60; // seconds
+
+int dns_cache_count = 0;
+struct dns_cache_entry *dns_cache = NULL;
+
+int dns_pending_count = 0;
+struct dns_pending *dns_pending = NULL;
+
+int dns_socket_count[2] = {0, 0};
+int dns_socket[2][DNS_POOL_SIZE];
+
+uint32_t get_dns_hash(const char *qname, uint16_t qtype, uint16_t qclass) {
+    // FNV-1a
+    uint32_t hash = 2166136261U;
+    for (const char *c = qname; *c; c++)
+        hash = (hash ^ (uint8_t) *c) * 16777619U;
+    hash = (hash ^ qtype) * 16777619U;
+    hash = (hash ^ qclass) * 16777619U;
+    return hash;
+}
+
+int32_t get_dns_question(const uint8_t *data, const size_t datalen,
+                         char *qname, uint16_t *qtype, uint16_t *qclass) {
+    if (datalen < sizeof(struct dns_header) + 1)
+        return -1;
+
+    // Only standard queries with a single question
+    const struct dns_header *dns = (struct dns_header *) data;
+    if (dns->opcode != 0 || ntohs(dns->q_count) != 1)
+        return -1;
+
+    int32_t off = get_qname(data, datalen, sizeof(struct dns_header), qname);
+    if (off < 0 || off + 4 > datalen)
+        return -1;
+
+    for (char *c = qname; *c; c++)
+        *c = (char) tolower(*c);
+
+    *qtype = ntohs(*((uint16_t *) (data + off)));
+    *qclass = ntohs(*((uint16_t *) (data + off + 2)));
+
+    return off + 4;
+}
+
+int32_t get_dns_ttl(uint8_t *data, const size_t datalen, int32_t off, int count,
+                    uint32_t elapsed, uint32_t *minttl) {
+    char name[DNS_QNAME_MAX + 1];
+    for (int r = 0; r < count; r++) {
+        off = get_qname(data, datalen, (uint16_t) off, name);
+        if (off < 0 || off + 10 > datalen)
+            return -1;
+
+        uint16_t qtype = ntohs(*((uint16_t *) (data + off)));
+        uint32_t ttl = ntohl(*((uint32_t *) (data + off + 4)));
+        uint16_t rdlength = ntohs(*((uint16_t *) (data + off + 8)));
+
+        // Skip EDNS pseudo records
+        if (qtype != 41) {
+            if (elapsed) {
+                ttl = (ttl > elapsed ? ttl - elapsed : 0);
+                *((uint32_t *) (data + off + 4)) = htonl(ttl);
+            }
+            if (ttl < *minttl)
+                *minttl = ttl;
+        }
+
+        off += 10 + rdlength;
+        if (off > datalen)
+            return -1;
+    }
+    return off;
+}
+
+void put_dns_cache(uint32_t hash, const char *qname, uint16_t qtype, uint16_t qclass,
+                   int32_t qoff, const uint8_t *data, size_t datalen, uint32_t ttl) {
+    long long now = get_ms();
+
+    // Resize cache on configuration change
+    if (dns_cache != NULL && dns_cache_count != dns_cache_size)
+        clear_dns_cache();
+
+    if (dns_cache == NULL) {
+        dns_cache = ng_calloc((size_t) dns_cache_size, sizeof(struct dns_cache_entry), "dns cache");
+        dns_cache_count = dns_cache_size;
+    }
+
+    // Reuse existing, free, expired or least recently used entry
+    int c = -1;
+    for (int i = 0; i < dns_cache_count && c < 0; i++)
+        if (dns_cache[i].response != NULL && dns_cache[i].hash == hash &&
+            dns_cache[i].qtype == qtype && dns_cache[i].qclass == qclass &&
+            strcmp(dns_cache[i].qname, qname) == 0)
+            c = i;
+    for (int i = 0; i < dns_cache_count && c < 0; i++)
+        if (dns_cache[i].response == NULL || now > dns_cache[i].time + dns_cache[i].ttl * 1000LL)
+            c = i;
+    if (c < 0) {
+        c = 0;
+        for (int i = 1; i < dns_cache_count; i++)
+            if (dns_cache[i].used < dns_cache[c].used)
+                c = i;
+    }
+    if (c >= dns_cache_count)
+        return;
+
+    struct dns_cache_entry *e = &dns_cache[c];
+    if (e->response != NULL)
+        ng_free(e->response, __FILE__, __LINE__);
+
+    e->hash = hash;
+    e->qtype = qtype;
+    e->qclass = qclass;
+    strcpy(e->qname, qname);
+    e->qoff = qoff;
+    e->response = ng_malloc(datalen, "dns cache response");
+    memcpy(e->response, data, datalen);
+    e->length = datalen;
+    e->time = now;
+    e->used = now;
+    e->ttl = ttl;
+
+    // Additional records (EDNS, glue) are not cached
+    ((struct dns_header *) e->response)->add_count = 0;
+
+    log_android(ANDROID_LOG_DEBUG, "DNS cache put %d qtype %d qname %s ttl %u length %d",
+                c, qtype, qname, ttl, datalen);
+}
+
+void clear_dns_cache() {
+    if (dns_cache != NULL) {
+        for (int i = 0; i < dns_cache_count; i++)
+            if (dns_cache[i].response != NULL)
+                ng_free(dns_cache[i].response, __FILE__, __LINE__);
+        ng_free(dns_cache, __FILE__, __LINE__);
+    }
+    dns_cache = NULL;
+    dns_cache_count = 0;
+}
+
+int check_dns_cache(const struct arguments *args, const struct udp_session *u,
+                    const uint8_t *data, const size_t datalen) {
+    if (dns_cache_size <= 0 || datalen < sizeof(struct dns_header) + 1)
+        return 0;
+
+    const struct dns_header *query = (struct dns_header *) data;
+    if (query->qr || query->cd)
+        return 0;
+
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    uint16_t qclass;
+    int32_t qoff = get_dns_question(data, datalen, qname, &qtype, &qclass);
+    if (qoff < 0)
+        return 0;
+
+    uint32_t hash = get_dns_hash(qname, qtype, qclass);
+    long long now = get_ms();
+
+    // Search cache
+    for (int i = 0; i < dns_cache_count; i++) {
+        struct dns_cache_entry *e = &dns_cache[i];
+        if (e->response != NULL && e->hash == hash &&
+            e->qtype == qtype && e->qclass == qclass && strcmp(e->qname, qname) == 0) {
+            if (now > e->time + e->ttl * 1000LL)
+                break;
+
+            e->used = now;
+
+            size_t rlen = e->length;
+            uint8_t *response = ng_malloc(rlen, "dns cache hit");
+            memcpy(response, e->response, rlen);
+
+            // Match query id and question case
+            struct dns_header *dns = (struct dns_header *) response;
+            dns->id = query->id;
+            dns->rd = query->rd;
+            if (e->qoff == qoff)
+                memcpy(response + sizeof(struct dns_header), data + sizeof(struct dns_header),
+                       qoff - sizeof(struct dns_header));
+
+            // Age records
+            uint32_t elapsed = (uint32_t) ((now - e->time) / 1000);
+            uint32_t minttl = UINT32_MAX;
+            if (elapsed)
+                get_dns_ttl(response, rlen, e->qoff,
+                            ntohs(dns->ans_count) + ntohs(dns->auth_count), elapsed, &minttl);
+
+            log_android(ANDROID_LOG_INFO, "DNS cache hit qtype %d qname %s age %u/%u",
+                        qtype, qname, elapsed, e->ttl);
+
+            // Apply blocking and register resolved addresses
+            struct ng_session s;
+            memset(&s, 0, sizeof(struct ng_session));
+            s.protocol = IPPROTO_UDP;
+            s.udp = *u;
+            s.socket = -1;
+            parse_dns_response(args, &s, response, &rlen);
+
+            write_udp(args, u, response, rlen);
+
+            ng_free(response, __FILE__, __LINE__);
+            return 1;
+        }
+    }
+
+    // Coalesce with identical query in flight
+    struct dns_pending *p = dns_pending;
+    while (p != NULL) {
+        if (p->hash == hash && p->qtype == qtype && p->qclass == qclass &&
+            strcmp(p->qname, qname) == 0) {
+            const struct udp_session *o = &p->session->udp;
+            if (o->state != UDP_ACTIVE || p->waiters >= DNS_WAITER_MAX ||
+                (o->source == u->source && o->version == u->version &&
+                 (u->version == 4 ? o->saddr.ip4 == u->saddr.ip4
+                                  : memcmp(&o->saddr.ip6, &u->saddr.ip6, 16) == 0)))
+                return 0;
+
+            struct dns_waiter *w = ng_malloc(sizeof(struct dns_waiter), "dns waiter");
+            w->udp = *u;
+            w->id = query->id;
+            w->next = p->waiter;
+            p->waiter = w;
+            p->waiters++;
+
+            log_android(ANDROID_LOG_INFO, "DNS coalesce qtype %d qname %s waiters %d",
+                        qtype, qname, p->waiters);
+            return 1;
+        }
+        p = p->next;
+    }
+
+    return 0;
+}
+
+void register_dns_query(struct ng_session *s, const uint8_t *data, const size_t datalen) {
+    if (dns_pending_count >= DNS_PENDING_MAX)
+        return;
+
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    uint16_t qclass;
+    if (get_dns_question(data, datalen, qname, &qtype, &qclass) < 0)
+        return;
+
+    // Identical queries of other sessions are registered too, responses are matched per session
+    struct dns_pending *p = ng_malloc(sizeof(struct dns_pending), "dns pending");
+    p->hash = get_dns_hash(qname, qtype, qclass);
+    p->qtype = qtype;
+    p->qclass = qclass;
+    strcpy(p->qname, qname);
+    p->id = ((struct dns_header *) data)->id;
+    p->session = s;
+    p->waiters = 0;
+    p->waiter = NULL;
+    p->next = dns_pending;
+    dns_pending = p;
+    dns_pending_count++;
+}
+
+void free_dns_pending(struct dns_pending *p) {
+    struct dns_waiter *w = p->waiter;
+    while (w != NULL) {
+        struct dns_waiter *n = w->next;
+        ng_free(w, __FILE__, __LINE__);
+        w = n;
+    }
+    ng_free(p, __FILE__, __LINE__);
+    dns_pending_count--;
+}
+
+void clear_dns_query(const struct ng_session *s) {
+    struct dns_pending *l = NULL;
+    struct dns_pending *p = dns_pending;
+    while (p != NULL) {
+        if (s == NULL || p->session == s) {
+            if (l == NULL)
+                dns_pending = p->next;
+            else
+                l->next = p->next;
+
+            struct dns_pending *c = p;
+            p = p->next;
+            free_dns_pending(c);
+        } else {
+            l = p;
+            p = p->next;
+        }
+    }
+}
+
+int store_dns_response(const struct arguments *args, const struct ng_session *s,
+                       const uint8_t *data, const size_t datalen) {
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    uint16_t qclass;
+    int32_t qoff = get_dns_question(data, datalen, qname, &qtype, &qclass);
+    const struct dns_header *dns = (struct dns_header *) data;
+    if (qoff < 0 || !dns->qr)
+        return 0;
+
+    uint32_t hash = get_dns_hash(qname, qtype, qclass);
+
+    // Find query, a session can have several queries pending, like A and AAAA
+    int queries = 0;
+    struct dns_pending *l = NULL;
+    struct dns_pending *p = dns_pending;
+    while (p != NULL) {
+        if (p->session == s) {
+            queries++;
+            if (p->id == dns->id && p->hash == hash &&
+                p->qtype == qtype && p->qclass == qclass && strcmp(p->qname, qname) == 0)
+                break;
+        }
+        l = p;
+        p = p->next;
+    }
+
+    // Late response to a previous user of a pooled socket
+    if (p == NULL && queries > 0)
+        return -1;
+
+    // Unregistered query, the response is not cached to not serve it to other apps
+    if (p == NULL)
+        return 0;
+
+    // Cache response
+    if (dns_cache_size > 0 && !dns->tc && (dns->rcode == 0 || dns->rcode == 3)) {
+        int acount = ntohs(dns->ans_count);
+        uint32_t ttl = DNS_CACHE_TTL_MAX;
+        int32_t off = get_dns_ttl((uint8_t *) data, datalen, qoff,
+                                  acount + ntohs(dns->auth_count), 0, &ttl);
+        if (off > 0 && off <= DNS_CACHE_RESPONSE_MAX) {
+            if ((dns->rcode == 3 || acount == 0) && ttl > dns_cache_negative)
+                ttl = (uint32_t) dns_cache_negative;
+            if (ttl > 0)
+                put_dns_cache(hash, qname, qtype, qclass, qoff, data, (size_t) off, ttl);
+        }
+    }
+
+    // Answer coalesced queries
+    if (l == NULL)
+        dns_pending = p->next;
+    else
+        l->next = p->next;
+
+    if (p->waiters > 0) {
+        log_android(ANDROID_LOG_INFO, "DNS answer qtype %d qname %s waiters %d",
+                    qtype, qname, p->waiters);
+
+        uint8_t *response = ng_malloc(datalen, "dns waiter response");
+        struct dns_waiter *w = p->waiter;
+        while (w != NULL) {
+            size_t rlen = datalen;
+            memcpy(response, data, datalen);
+            ((struct dns_header *) response)->id = w->id;
+
+            struct ng_session ws;
+            memset(&ws, 0, sizeof(struct ng_session));
+            ws.protocol = IPPROTO_UDP;
+            ws.udp = w->udp;
+            ws.socket = -1;
+            parse_dns_response(args, &ws, response, &rlen);
+
+            write_udp(args, &w->udp, response, rlen);
+            w = w->next;
+        }
+        ng_free(response, __FILE__, __LINE__);
+    }
+
+    free_dns_pending(p);
+
+    return 1;
+}
+
+int get_dns_socket(int version) {
+    int v = (version == 4 ? 0 : 1);
+    if (dns_socket_count[v] == 0)
+        return -1;
+
+    int sock = dns_socket[v][--dns_socket_count[v]];
+    log_android(ANDROID_LOG_DEBUG, "DNS%d pooled socket %d", version, sock);
+    return sock;
+}
+
+int put_dns_socket(int version, int sock, int epoll_fd) {
+    int v = (version == 4 ? 0 : 1);
+    if (dns_cache_size <= 0 || dns_socket_count[v] >= DNS_POOL_SIZE)
+        return 0;
+
+    if (epoll_ctl(epoll_fd, EPOLL_CTL_DEL, sock, NULL)) {
+        log_android(ANDROID_LOG_ERROR, "epoll del dns error %d: %s", errno, strerror(errno));
+        return 0;
+    }
+
+    // Discard pending datagrams
+    uint8_t buffer[512];
+    while (recv(sock, buffer, sizeof(buffer), MSG_DONTWAIT) > 0);
+
+    dns_socket[v][dns_socket_count[v]++] = sock;
+    log_android(ANDROID_LOG_DEBUG, "DNS%d pool socket %d count %d",
+                version, sock, dns_socket_count[v]);
+    return 1;
+}
+
+void clear_dns_sockets() {
+    for (int v = 0; v < 2; v++) {
+        for (int i = 0; i < dns_socket_count[v]; i++)
+            if (close(dns_socket[v][i]))
+                log_android(ANDROID_LOG_ERROR, "DNS close %d error %d: %s",
+                            dns_socket[v][i], errno, strerror(errno));
+        dns_socket_count[v] = 0;
+    }
+}
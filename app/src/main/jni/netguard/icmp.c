@@ -19,22 +19,16 @@
 
 #include "netguard.h"
 
-extern FILE *pcap_file;
+extern int pcap_enabled;
 
-int get_icmp_timeout(const struct icmp_session *u, int sessions, int maxsessions) {
-    int timeout = ICMP_TIMEOUT;
-
-    int scale = 100 - sessions * 100 / maxsessions;
-    timeout = timeout * scale / 100;
-
-    return timeout;
+int get_icmp_timeout(const struct icmp_session *u) {
+    return ICMP_TIMEOUT;
 }
 
-int check_icmp_session(const struct arguments *args, struct ng_session *s,
-                       int sessions, int maxsessions) {
+int check_icmp_session(const struct arguments *args, struct ng_session *s) {
     time_t now = time(NULL);
 
-    int timeout = get_icmp_timeout(&s->icmp, sessions, maxsessions);
+    int timeout = get_icmp_timeout(&s->icmp);
     if (s->icmp.stop || s->icmp.time + timeout < now) {
         char source[INET6_ADDRSTRLEN + 1];
         char dest[INET6_ADDRSTRLEN + 1];
@@ -120,14 +114,8 @@ void check_icmp_socket(const struct arguments *args, const struct epoll_event *e
                 uint16_t csum = 0;
                 if (s->icmp.version == 6) {
                     // Untested
-                    struct ip6_hdr_pseudo pseudo;
-                    memset(&pseudo, 0, sizeof(struct ip6_hdr_pseudo));
-                    memcpy(&pseudo.ip6ph_src, &s->icmp.daddr.ip6, 16);
-                    memcpy(&pseudo.ip6ph_dst, &s->icmp.saddr.ip6, 16);
-                    pseudo.ip6ph_len = bytes - sizeof(struct ip6_hdr);
-                    pseudo.ip6ph_nxt = IPPROTO_ICMPV6;
-                    csum = calc_checksum(
-                            0, (uint8_t *) &pseudo, sizeof(struct ip6_hdr_pseudo));
+                    csum = add_checksum(get_icmp_template(&s->icmp)->pseudo_sum,
+                                        htons((uint16_t) bytes));
                 }
                 icmp->icmp_cksum = 0;
                 icmp->icmp_cksum = ~calc_checksum(csum, buffer, (size_t) bytes);
@@ -187,6 +175,7 @@ jboolean handle_icmp(const struct arguments *args,
         // Register session
         struct ng_session *s = ng_malloc(sizeof(struct ng_session), "icmp session");
         s->protocol = (uint8_t) (version == 4 ? IPPROTO_ICMP : IPPROTO_ICMPV6);
+        s->start = time(NULL);
 
         s->icmp.time = time(NULL);
         s->icmp.uid = uid;
@@ -203,6 +192,7 @@ jboolean handle_icmp(const struct arguments *args,
         s->icmp.id = icmp->icmp_id; // store original ID
 
         s->icmp.stop = 0;
+        s->icmp.hdr.version = 0;
         s->next = NULL;
 
         // Open UDP socket
@@ -223,6 +213,8 @@ jboolean handle_icmp(const struct arguments *args,
 
         s->next = args->ctx->ng_session;
         args->ctx->ng_session = s;
+        args->ctx->sessions++;
+        args->ctx->memory += sizeof(struct ng_session);
 
         cur = s;
     }
@@ -295,6 +287,16 @@ int open_icmp_socket(const struct arguments *args, const struct icmp_session *cu
     return sock;
 }
 
+const struct hdr_template *get_icmp_template(const struct icmp_session *cur) {
+    // Built on first use, the addresses do not change during a session
+    struct hdr_template *t = (struct hdr_template *) &cur->hdr;
+    if (t->version != cur->version)
+        init_hdr_template(t, cur->version,
+                          (uint8_t) (cur->version == 4 ? IPPROTO_ICMP : IPPROTO_ICMPV6),
+                          &cur->daddr, &cur->saddr, 0, 0);
+    return t;
+}
+
 ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
                    uint8_t *data, size_t datalen) {
     size_t len;
@@ -304,42 +306,11 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
     char dest[INET6_ADDRSTRLEN + 1];
 
     // Build packet
-    if (cur->version == 4) {
-        len = sizeof(struct iphdr) + datalen;
-        buffer = ng_malloc(len, "icmp write4");
-        struct iphdr *ip4 = (struct iphdr *) buffer;
-        if (datalen)
-            memcpy(buffer + sizeof(struct iphdr), data, datalen);
-
-        // Build IP4 header
-        memset(ip4, 0, sizeof(struct iphdr));
-        ip4->version = 4;
-        ip4->ihl = sizeof(struct iphdr) >> 2;
-        ip4->tot_len = htons(len);
-        ip4->ttl = IPDEFTTL;
-        ip4->protocol = IPPROTO_ICMP;
-        ip4->saddr = cur->daddr.ip4;
-        ip4->daddr = cur->saddr.ip4;
-
-        // Calculate IP4 checksum
-        ip4->check = ~calc_checksum(0, (uint8_t *) ip4, sizeof(struct iphdr));
-    } else {
-        len = sizeof(struct ip6_hdr) + datalen;
-        buffer = ng_malloc(len, "icmp write6");
-        struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
-        if (datalen)
-            memcpy(buffer + sizeof(struct ip6_hdr), data, datalen);
-
-        // Build IP6 header
-        memset(ip6, 0, sizeof(struct ip6_hdr));
-        ip6->ip6_ctlun.ip6_un1.ip6_un1_flow = 0;
-        ip6->ip6_ctlun.ip6_un1.ip6_un1_plen = htons(len - sizeof(struct ip6_hdr));
-        ip6->ip6_ctlun.ip6_un1.ip6_un1_nxt = IPPROTO_ICMPV6;
-        ip6->ip6_ctlun.ip6_un1.ip6_un1_hlim = IPDEFTTL;
-        ip6->ip6_ctlun.ip6_un2_vfc = IPV6_VERSION;
-        memcpy(&(ip6->ip6_src), &cur->daddr.ip6, 16);
-        memcpy(&(ip6->ip6_dst), &cur->saddr.ip6, 16);
-    }
+    len = (cur->version == 4 ? sizeof(struct iphdr) : sizeof(struct ip6_hdr)) + datalen;
+    buffer = ng_malloc(len, "icmp write");
+    size_t iplen = put_hdr_template(get_icmp_template(cur), buffer, len);
+    if (datalen)
+        memcpy(buffer + iplen, data, datalen);
 
     inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
               cur->version == 4 ? (const void *) &cur->saddr.ip4 : (const void *) &cur->saddr.ip6,
@@ -355,10 +326,12 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
                 icmp->icmp_type, icmp->icmp_code, icmp->icmp_id, icmp->icmp_seq);
 
     ssize_t res = write(args->tun, buffer, len);
+    args->ctx->stat_syscalls++;
 
     // Write PCAP record
     if (res >= 0) {
-        if (pcap_file != NULL)
+        args->ctx->stat_bytes += res;
+        if (__atomic_load_n(&pcap_enabled, __ATOMIC_RELAXED))
             write_pcap_rec(buffer, (size_t) res);
     } else
         log_android(ANDROID_LOG_WARN, "ICMP write error %d: %s", errno, strerror(errno));
@@ -21,7 +21,7 @@
 
 int max_tun_msg = 0;
 extern int loglevel;
-extern FILE *pcap_file;
+extern int pcap_enabled;
 
 uint16_t get_mtu() {
     return 10000;
@@ -37,7 +37,7 @@ uint16_t get_default_mss(int version) {
 int check_tun(const struct arguments *args,
               const struct epoll_event *ev,
               const int epoll_fd,
-              int sessions, int maxsessions) {
+              int maxsessions) {
     // Check tun error
     if (ev->events & EPOLLERR) {
         log_android(ANDROID_LOG_ERROR, "tun %d exception", args->tun);
@@ -55,6 +55,7 @@ int check_tun(const struct arguments *args,
     if (ev->events & EPOLLIN) {
         uint8_t *buffer = ng_malloc(get_mtu(), "tun read");
         ssize_t length = read(args->tun, buffer, get_mtu());
+        args->ctx->stat_syscalls++;
         if (length < 0) {
             ng_free(buffer, __FILE__, __LINE__);
 
@@ -69,8 +70,10 @@ int check_tun(const struct arguments *args,
                 return -1;
             }
         } else if (length > 0) {
+            args->ctx->stat_bytes += length;
+
             // Write pcap record
-            if (pcap_file != NULL)
+            if (__atomic_load_n(&pcap_enabled, __ATOMIC_RELAXED))
                 write_pcap_rec(buffer, (size_t) length);
 
             if (length > max_tun_msg) {
@@ -79,7 +82,7 @@ int check_tun(const struct arguments *args,
             }
 
             // Handle IP from tun
-            handle_ip(args, buffer, (size_t) length, epoll_fd, sessions, maxsessions);
+            handle_ip(args, buffer, (size_t) length, epoll_fd, maxsessions);
 
             ng_free(buffer, __FILE__, __LINE__);
         } else {
@@ -119,7 +122,7 @@ int is_upper_layer(int protocol) {
 void handle_ip(const struct arguments *args,
                const uint8_t *pkt, const size_t length,
                const int epoll_fd,
-               int sessions, int maxsessions) {
+               int maxsessions) {
     uint8_t protocol;
     void *saddr;
     void *daddr;
@@ -269,15 +272,21 @@ void handle_ip(const struct arguments *args,
 
     flags[flen] = 0;
 
-    // Limit number of sessions
-    if (sessions >= maxsessions) {
+    // Limit number of sessions and memory, making room for new flows
+    if (args->ctx->sessions >= maxsessions || args->ctx->memory >= SESSION_MEMORY) {
         if ((protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) ||
             (protocol == IPPROTO_UDP && !has_udp_session(args, pkt, payload)) ||
             (protocol == IPPROTO_TCP && syn)) {
-            log_android(ANDROID_LOG_ERROR,
-                        "%d of max %d sessions, dropping version %d protocol %d",
-                        sessions, maxsessions, protocol, version);
-            return;
+            // Memory is mostly queued data, which only evicting a busy connection releases
+            while (args->ctx->memory >= SESSION_MEMORY && evict_memory(args));
+
+            if (args->ctx->sessions >= maxsessions && !evict_session(args, epoll_fd)) {
+                log_android(ANDROID_LOG_ERROR,
+                            "%d of max %d sessions memory %zu, dropping version %d protocol %d",
+                            args->ctx->sessions, maxsessions, args->ctx->memory,
+                            protocol, version);
+                return;
+            }
         }
     }
 
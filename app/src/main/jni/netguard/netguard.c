@@ -35,10 +35,18 @@ extern int max_tun_msg;
 extern FILE *pcap_file;
 extern size_t pcap_record_size;
 extern long pcap_file_size;
+extern int pcap_files;
+extern uint32_t pcap_dropped;
 
 extern int uid_cache_size;
 extern struct uid_cache_entry *uid_cache;
 
+extern int dns_cache_size;
+extern int dns_cache_negative;
+
+extern int epoll_edge;
+extern int epoll_events;
+
 // JNI
 
 jclass clsPacket;
@@ -124,6 +132,10 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1init(
     if (pthread_mutex_init(&ctx->lock, NULL))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
 
+#ifdef CHECK_CHECKSUM
+    check_checksum();
+#endif
+
     // Create signal pipe
     if (pipe(ctx->pipefds))
         log_android(ANDROID_LOG_ERROR, "Create pipe error %d: %s", errno, strerror(errno));
@@ -190,7 +202,14 @@ JNIEXPORT void JNICALL
 Java_eu_faircode_netguard_ServiceSinkhole_jni_1clear(
         JNIEnv *env, jobject instance, jlong context) {
     struct context *ctx = (struct context *) context;
+
+    if (pthread_mutex_lock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
     clear(ctx);
+
+    if (pthread_mutex_unlock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 }
 
 JNIEXPORT jint JNICALL
@@ -206,7 +225,7 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1stats(
     if (pthread_mutex_lock(&ctx->lock))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
-    jintArray jarray = (*env)->NewIntArray(env, 5);
+    jintArray jarray = (*env)->NewIntArray(env, 8);
     jint *jcount = (*env)->GetIntArrayElements(env, jarray, NULL);
 
     struct ng_session *s = ctx->ng_session;
@@ -242,66 +261,143 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1stats(
     getrlimit(RLIMIT_NOFILE, &rlim);
     jcount[4] = (jint) rlim.rlim_cur;
 
+    jcount[5] = (jint) ctx->evicted_udp;
+    jcount[6] = (jint) ctx->evicted_tcp;
+    jcount[7] = (jint) ctx->evicted_memory;
+
     (*env)->ReleaseIntArrayElements(env, jarray, jcount, 0);
     return jarray;
 }
 
-JNIEXPORT void JNICALL
-Java_eu_faircode_netguard_ServiceSinkhole_jni_1pcap(
-        JNIEnv *env, jclass type,
-        jstring name_, jint record_size, jint file_size) {
+JNIEXPORT jint JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1uid_1stats(
+        JNIEnv *env, jobject instance, jlong context, jlongArray stats_) {
+    struct context *ctx = (struct context *) context;
 
-    pcap_record_size = (size_t) record_size;
-    pcap_file_size = file_size;
+    // uid, sent, received triples
+    jsize max = (*env)->GetArrayLength(env, stats_) / 3;
+    jlong *stats = (*env)->GetLongArrayElements(env, stats_, NULL);
+
+    int count = 0;
+    for (int i = 0; i < UID_STATS_SLOTS && count < max; i++) {
+        struct uid_stats *u = &ctx->uid_stats[i];
+        uint32_t key = __atomic_load_n(&u->key, __ATOMIC_ACQUIRE);
+        if (key != 0) {
+            stats[count * 3] = (jlong) key - 1;
+            stats[count * 3 + 1] = (jlong) __atomic_load_n(&u->sent, __ATOMIC_RELAXED);
+            stats[count * 3 + 2] = (jlong) __atomic_load_n(&u->received, __ATOMIC_RELAXED);
+            count++;
+        }
+    }
 
-    //if (pthread_mutex_lock(&lock))
-    //    log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    (*env)->ReleaseLongArrayElements(env, stats_, stats, 0);
+    return count;
+}
 
-    if (name_ == NULL) {
-        if (pcap_file != NULL) {
-            int flags = fcntl(fileno(pcap_file), F_GETFL, 0);
-            if (flags < 0 || fcntl(fileno(pcap_file), F_SETFL, flags & ~O_NONBLOCK) < 0)
-                log_android(ANDROID_LOG_ERROR, "PCAP fcntl ~O_NONBLOCK error %d: %s",
-                            errno, strerror(errno));
+JNIEXPORT jint JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1sessions(
+        JNIEnv *env, jclass type, jlong context, jobject buffer) {
+    struct context *ctx = (struct context *) context;
 
-            if (fsync(fileno(pcap_file)))
-                log_android(ANDROID_LOG_ERROR, "PCAP fsync error %d: %s", errno, strerror(errno));
+    uint8_t *records = (*env)->GetDirectBufferAddress(env, buffer);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+    if (records == NULL || capacity < 0) {
+        log_android(ANDROID_LOG_ERROR, "Sessions buffer not direct");
+        return -1;
+    }
 
-            if (fclose(pcap_file))
-                log_android(ANDROID_LOG_ERROR, "PCAP fclose error %d: %s", errno, strerror(errno));
+    // Only copy under the lock, the caller decodes
+    int max = (int) (capacity / SESSION_RECORD_SIZE);
+    int count = 0;
+    time_t now = time(NULL);
+
+    if (pthread_mutex_lock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
-            pcap_file = NULL;
+    struct ng_session *s = ctx->ng_session;
+    while (s != NULL) {
+        if (count < max) {
+            struct session_record r;
+            memset(&r, 0, sizeof(struct session_record));
+            r.protocol = s->protocol;
+            r.age = (uint32_t) (now - s->start);
+
+            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
+                r.version = (uint8_t) s->icmp.version;
+                r.state = s->icmp.stop;
+                r.uid = s->icmp.uid;
+                r.source = ntohs(s->icmp.id);
+                memcpy(r.saddr, &s->icmp.saddr, s->icmp.version == 4 ? 4 : 16);
+                memcpy(r.daddr, &s->icmp.daddr, s->icmp.version == 4 ? 4 : 16);
+                r.idle = (uint32_t) (now - s->icmp.time);
+            } else if (s->protocol == IPPROTO_UDP) {
+                r.version = (uint8_t) s->udp.version;
+                r.state = s->udp.state;
+                r.uid = s->udp.uid;
+                r.source = ntohs(s->udp.source);
+                r.dest = ntohs(s->udp.dest);
+                memcpy(r.saddr, &s->udp.saddr, s->udp.version == 4 ? 4 : 16);
+                memcpy(r.daddr, &s->udp.daddr, s->udp.version == 4 ? 4 : 16);
+                r.sent = s->udp.sent;
+                r.received = s->udp.received;
+                r.idle = (uint32_t) (now - s->udp.time);
+            } else if (s->protocol == IPPROTO_TCP) {
+                r.version = (uint8_t) s->tcp.version;
+                r.state = s->tcp.state;
+                r.uid = s->tcp.uid;
+                r.source = ntohs(s->tcp.source);
+                r.dest = ntohs(s->tcp.dest);
+                memcpy(r.saddr, &s->tcp.saddr, s->tcp.version == 4 ? 4 : 16);
+                memcpy(r.daddr, &s->tcp.daddr, s->tcp.version == 4 ? 4 : 16);
+                r.sent = s->tcp.sent;
+                r.received = s->tcp.received;
+                r.idle = (uint32_t) (now - s->tcp.time);
+            }
+
+            memcpy(records + count * SESSION_RECORD_SIZE, &r, SESSION_RECORD_SIZE);
         }
+        count++;
+        s = s->next;
+    }
+
+    if (pthread_mutex_unlock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    // More than max means the buffer was too small
+    return count;
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1pcap(
+        JNIEnv *env, jclass type,
+        jstring name_, jint record_size, jint file_size, jint files) {
+
+    // Stop current capture first
+    stop_pcap();
+
+    pcap_record_size = (size_t) record_size;
+    pcap_file_size = file_size;
+    pcap_files = (files < 1 ? 1 : files);
+
+    if (name_ == NULL)
         log_android(ANDROID_LOG_WARN, "PCAP disabled");
-    } else {
+    else {
         const char *name = (*env)->GetStringUTFChars(env, name_, 0);
         ng_add_alloc(name, "name");
-        log_android(ANDROID_LOG_WARN, "PCAP file %s record size %d truncate @%ld",
-                    name, pcap_record_size, pcap_file_size);
+        log_android(ANDROID_LOG_WARN, "PCAP file %s record size %d rotate @%ld files %d",
+                    name, pcap_record_size, pcap_file_size, pcap_files);
 
-        pcap_file = fopen(name, "ab+");
-        if (pcap_file == NULL)
-            log_android(ANDROID_LOG_ERROR, "PCAP fopen error %d: %s", errno, strerror(errno));
-        else {
-            int flags = fcntl(fileno(pcap_file), F_GETFL, 0);
-            if (flags < 0 || fcntl(fileno(pcap_file), F_SETFL, flags | O_NONBLOCK) < 0)
-                log_android(ANDROID_LOG_ERROR, "PCAP fcntl O_NONBLOCK error %d: %s",
-                            errno, strerror(errno));
-
-            long size = ftell(pcap_file);
-            if (size == 0) {
-                log_android(ANDROID_LOG_WARN, "PCAP initialize");
-                write_pcap_hdr();
-            } else
-                log_android(ANDROID_LOG_WARN, "PCAP current size %ld", size);
-        }
+        start_pcap(name);
 
         (*env)->ReleaseStringUTFChars(env, name_, name);
         ng_delete_alloc(name, __FILE__, __LINE__);
     }
+}
 
-    //if (pthread_mutex_unlock(&lock))
-    //    log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+JNIEXPORT jint JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1pcap_1dropped(JNIEnv *env, jclass type) {
+    uint32_t dropped = __atomic_load_n(&pcap_dropped, __ATOMIC_RELAXED);
+    return (jint) (dropped > INT32_MAX ? INT32_MAX : dropped);
 }
 
 JNIEXPORT void JNICALL
@@ -331,6 +427,30 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1socks5(JNIEnv *env, jobject insta
     ng_delete_alloc(password, __FILE__, __LINE__);
 }
 
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1dns_1cache(
+        JNIEnv *env, jobject instance, jint size, jint negative) {
+    dns_cache_size = (size < 0 ? 0 : size);
+    dns_cache_negative = (negative < 0 ? 0 : negative);
+
+    log_android(ANDROID_LOG_WARN, "DNS cache size %d negative ttl %d",
+                dns_cache_size, dns_cache_negative);
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1epoll(
+        JNIEnv *env, jobject instance, jboolean edge, jint events) {
+    epoll_edge = (edge ? 1 : 0);
+    if (events < 1)
+        epoll_events = 1;
+    else if (events > EPOLL_EVENTS_MAX)
+        epoll_events = EPOLL_EVENTS_MAX;
+    else
+        epoll_events = events;
+
+    log_android(ANDROID_LOG_WARN, "epoll edge %d events %d", epoll_edge, epoll_events);
+}
+
 JNIEXPORT void JNICALL
 Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(
         JNIEnv *env, jobject instance, jlong context) {
@@ -351,6 +471,16 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(
     uid_cache_size = 0;
     uid_cache = NULL;
 
+    clear_dns_cache();
+
+    if (ctx->tcp_packet != NULL)
+        ng_free(ctx->tcp_packet, __FILE__, __LINE__);
+    if (ctx->udp_recv != NULL)
+        ng_free(ctx->udp_recv, __FILE__, __LINE__);
+    for (int i = 0; i < TUN_YIELD; i++)
+        if (ctx->udp_send[i].data != NULL)
+            ng_free(ctx->udp_send[i].data, __FILE__, __LINE__);
+
     ng_free(ctx, __FILE__, __LINE__);
 }
 
@@ -984,6 +1114,34 @@ void account_usage(const struct arguments *args, jint version, jint protocol,
 #endif
 }
 
+void account_uid(const struct arguments *args, jint uid, uint64_t sent, uint64_t received) {
+    if (uid < 0)
+        return;
+
+    // Open addressing, slots are never freed while the context exists
+    uint32_t key = (uint32_t) uid + 1;
+    uint32_t i = (key * 2654435761U) & (UID_STATS_SLOTS - 1);
+    for (int n = 0; n < UID_STATS_SLOTS; n++) {
+        struct uid_stats *u = &args->ctx->uid_stats[i];
+        uint32_t k = __atomic_load_n(&u->key, __ATOMIC_RELAXED);
+        if (k == 0) {
+            // Only the events thread adds slots
+            __atomic_store_n(&u->key, key, __ATOMIC_RELEASE);
+            k = key;
+        }
+        if (k == key) {
+            if (sent)
+                __atomic_add_fetch(&u->sent, sent, __ATOMIC_RELAXED);
+            if (received)
+                __atomic_add_fetch(&u->received, received, __ATOMIC_RELAXED);
+            return;
+        }
+        i = (i + 1) & (UID_STATS_SLOTS - 1);
+    }
+
+    log_android(ANDROID_LOG_WARN, "No uid stats slot for uid %d", uid);
+}
+
 struct alloc_record {
     const char *tag;
     time_t time;
@@ -1110,4 +1268,9 @@ Java_eu_faircode_netguard_Util_dump_1memory_1profile(JNIEnv *env, jclass type) {
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 
 #endif
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_Util_dump_1trace(JNIEnv *env, jclass type) {
+    dump_trace();
 }
\ No newline at end of file
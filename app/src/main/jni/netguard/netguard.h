@@ -18,6 +18,7 @@
 #include <dlfcn.h>
 #include <sys/stat.h>
 #include <sys/resource.h>
+#include <limits.h>
 
 #include <netdb.h>
 #include <arpa/inet.h>
@@ -38,8 +39,14 @@
 // #define PROFILE_JNI 5
 // #define PROFILE_MEMORY
 
+#ifndef NDEBUG
+#define CHECK_CHECKSUM 1000 // random rounds at init
+#endif
+
 #define EPOLL_TIMEOUT 3600 // seconds
-#define EPOLL_EVENTS 20
+#define EPOLL_EVENTS 64 // default
+#define EPOLL_EVENTS_MAX 1024
+#define EPOLL_STATS 60000 // milliseconds
 #define EPOLL_MIN_CHECK 100 // milliseconds
 
 #define TUN_YIELD 10 // packets
@@ -55,15 +62,20 @@
 #define UDP_TIMEOUT_ANY 300 // seconds
 #define UDP_KEEP_TIMEOUT 60 // seconds
 #define UDP_YIELD 10 // packets
+#define UDP_RECV_SLOT (sizeof(struct ip6_hdr) + sizeof(struct udphdr) + IP_MAXPACKET) // bytes
 
 #define TCP_INIT_TIMEOUT 20 // seconds ~net.inet.tcp.keepinit
 #define TCP_IDLE_TIMEOUT 3600 // seconds ~net.inet.tcp.keepidle
 #define TCP_CLOSE_TIMEOUT 20 // seconds
 #define TCP_KEEP_TIMEOUT 300 // seconds
+#define TCP_RECV_YIELD 16 // segments
+#define TCP_SEND_IOV 32 // segments
 // https://en.wikipedia.org/wiki/Maximum_segment_lifetime
 
 #define SESSION_LIMIT 40 // percent
-#define SESSION_MAX (1024 * SESSION_LIMIT / 100) // number
+#define SESSION_MAX (8192 * SESSION_LIMIT / 100) // number
+#define SESSION_MEMORY (32 * 1024 * 1024) // bytes
+#define SESSION_EVICT_IDLE 10 // seconds
 
 #define SEND_BUF_DEFAULT 163840 // bytes
 
@@ -75,12 +87,50 @@
 #define SOCKS5_CONNECT 4
 #define SOCKS5_CONNECTED 5
 
+// Datagram from the tun waiting for sendmmsg
+struct udp_send {
+    struct ng_session *session;
+    union {
+        struct sockaddr_in addr4;
+        struct sockaddr_in6 addr6;
+    } addr;
+    socklen_t addrlen;
+    uint8_t *data; // get_mtu() bytes, allocated on first use
+    size_t datalen;
+};
+
+#define UID_STATS_SLOTS 1024 // power of two
+
+// Written by the events thread, read lock free by the statistics thread
+struct uid_stats {
+    uint32_t key; // uid + 1, 0 for a free slot
+    uint64_t sent;
+    uint64_t received;
+};
+
 struct context {
     pthread_mutex_t lock;
     int pipefds[2];
     int stopping;
     int sdk;
     struct ng_session *ng_session;
+    uint8_t *tcp_packet; // events thread only
+    size_t tcp_packet_size;
+    uint8_t *udp_recv; // events thread only, UDP_YIELD slots
+    struct udp_send udp_send[TUN_YIELD]; // events thread only
+    int udp_sends;
+    int edge; // edge triggered epoll for TCP sockets, fixed while running
+    int sessions; // active, counted every loop, updated on creation and eviction
+    size_t memory; // used by sessions, counted every loop
+    uint32_t evicted_udp;
+    uint32_t evicted_tcp;
+    uint32_t evicted_memory;
+    struct uid_stats uid_stats[UID_STATS_SLOTS]; // bytes forwarded by uid
+
+    // Events thread statistics, reported every EPOLL_STATS
+    uint64_t stat_wakeups;
+    uint64_t stat_syscalls;
+    uint64_t stat_bytes;
 };
 
 struct arguments {
@@ -97,15 +147,24 @@ struct allowed {
     uint16_t rport; // host notation
 };
 
+// Queued byte ranges never overlap
 struct segment {
     uint32_t seq;
-    uint16_t len;
-    uint16_t sent;
+    uint32_t len;
+    uint32_t sent;
     int psh;
     uint8_t *data;
     struct segment *next;
 };
 
+// IP header of packets to the tun with the sums of the fields which do not change
+struct hdr_template {
+    uint8_t version; // zero until built
+    uint8_t ip[sizeof(struct ip6_hdr)]; // length and checksum zero
+    uint16_t ip_sum; // IP4 header without length
+    uint16_t pseudo_sum; // pseudo header without length, plus ports
+};
+
 struct icmp_session {
     time_t time;
     jint uid;
@@ -124,6 +183,7 @@ struct icmp_session {
     uint16_t id;
 
     uint8_t stop;
+    struct hdr_template hdr;
 };
 
 #define UDP_ACTIVE 0
@@ -153,6 +213,8 @@ struct udp_session {
     __be16 dest; // network notation
 
     uint8_t state;
+    uint8_t pooled; // DNS socket
+    struct hdr_template hdr;
 };
 
 struct tcp_session {
@@ -191,7 +253,12 @@ struct tcp_session {
 
     uint8_t state;
     uint8_t socks5;
-    struct segment *forward;
+    struct segment *forward; // ordered by seq
+    struct segment *forward_last;
+    struct hdr_template hdr;
+
+    uint8_t readable; // edge triggered, not drained yet
+    uint8_t writable; // edge triggered, no EAGAIN yet
 };
 
 struct ng_session {
@@ -201,11 +268,50 @@ struct ng_session {
         struct udp_session udp;
         struct tcp_session tcp;
     };
+    time_t start;
     jint socket;
     struct epoll_event ev;
     struct ng_session *next;
 };
 
+// Packet and session of handle_tcp, only formatted when logged
+struct tcp_desc {
+    int version;
+    const void *saddr; // network notation
+    const void *daddr;
+    const struct tcphdr *tcphdr;
+    uint16_t datalen;
+    int uid;
+    int state; // at arrival, -1 for no session
+    uint32_t remote_start;
+    uint32_t local_start;
+    uint32_t local; // relative
+    uint32_t remote;
+    uint32_t acked;
+    char packet[250]; // empty until formatted
+    char session[320];
+};
+
+// Fixed size record of jni_get_sessions, native byte order
+#define SESSION_RECORD_SIZE 72 // bytes
+
+struct session_record {
+    uint8_t version;
+    uint8_t protocol;
+    uint8_t state; // UDP_x or TCP_x, stopped for ICMP
+    uint8_t reserved;
+    int32_t uid;
+    uint16_t source; // host notation, ICMP id
+    uint16_t dest; // host notation
+    uint32_t age; // seconds
+    uint8_t saddr[16]; // network notation, IPv4 in the first 4 bytes
+    uint8_t daddr[16];
+    uint64_t sent;
+    uint64_t received;
+    uint32_t idle; // seconds
+    uint32_t reserved2;
+} __packed;
+
 struct uid_cache_entry {
     uint8_t version;
     uint8_t protocol;
@@ -253,6 +359,44 @@ typedef struct pcaprec_hdr_s {
 
 #define LINKTYPE_RAW 101
 
+#define PCAP_RING_SIZE (512 * 1024) // bytes
+#define PCAP_FLUSH_INTERVAL 100 // milliseconds
+
+// Trace
+
+#define TRACE_RING_SIZE 4096 // records, power of two
+#define TRACE_THREADS 4
+
+#define TRACE_TCP_PACKET 1 // flags, seq, ack, data
+#define TRACE_TCP_WRITE 2 // flags, seq, ack, data
+#define TRACE_TCP_STATE 3 // old state, state, local seq, remote seq
+#define TRACE_TCP_QUEUE 4 // from, to
+#define TRACE_TCP_FORWARD 5 // from, to, sent, segments
+#define TRACE_TCP_RECV 6 // bytes
+#define TRACE_UDP_RECV 7 // bytes
+#define TRACE_UDP_WRITE 8 // bytes
+#define TRACE_EPOLL 9 // events, socket
+#define TRACE_UDP_FORWARD 10 // bytes
+
+// IP version, protocol and app side port (ICMP id), host notation
+#define TRACE_SESSION(version, protocol, port) \
+    ((((uint32_t) (version)) << 24) | (((uint32_t) (protocol) & 0xFF) << 16) | (uint16_t) (port))
+
+struct trace_record {
+    uint64_t time; // nanoseconds, monotonic
+    uint32_t session;
+    uint16_t event;
+    uint16_t reserved;
+    uint32_t arg[4];
+};
+
+// Written by one thread only, records are overwritten when full
+struct trace_ring {
+    int owner; // thread id, 0 when free
+    uint32_t head; // records written
+    struct trace_record record[TRACE_RING_SIZE];
+};
+
 // DNS
 
 #define DNS_QCLASS_IN 1
@@ -262,6 +406,12 @@ typedef struct pcaprec_hdr_s {
 #define DNS_QNAME_MAX 255
 #define DNS_TTL (10 * 60) // seconds
 
+#define DNS_CACHE_TTL_MAX (24 * 3600) // seconds
+#define DNS_CACHE_RESPONSE_MAX 4096 // bytes
+#define DNS_PENDING_MAX 64 // queries
+#define DNS_WAITER_MAX 16 // queries
+#define DNS_POOL_SIZE 8 // sockets per IP version
+
 struct dns_header {
     uint16_t id; // identification number
 # if __BYTE_ORDER == __LITTLE_ENDIAN
@@ -303,6 +453,37 @@ typedef struct dns_rr {
     __be16 rdlength;
 } __packed dns_rr;
 
+struct dns_cache_entry {
+    uint32_t hash;
+    uint16_t qtype;
+    uint16_t qclass;
+    char qname[DNS_QNAME_MAX + 1];
+    int32_t qoff; // end of question
+    uint8_t *response;
+    size_t length;
+    long long time; // milliseconds
+    long long used; // milliseconds
+    uint32_t ttl; // seconds
+};
+
+struct dns_waiter {
+    struct udp_session udp;
+    uint16_t id; // network notation
+    struct dns_waiter *next;
+};
+
+struct dns_pending {
+    uint32_t hash;
+    uint16_t qtype;
+    uint16_t qclass;
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t id; // network notation
+    struct ng_session *session;
+    int waiters;
+    struct dns_waiter *waiter;
+    struct dns_pending *next;
+};
+
 // DHCP
 
 #define DHCP_OPTION_MAGIC_NUMBER (0x63825363)
@@ -344,25 +525,35 @@ void check_allowed(const struct arguments *args);
 
 void clear(struct context *ctx);
 
+int evict_session(const struct arguments *args, const int epoll_fd);
+
+int evict_memory(const struct arguments *args);
+
 int check_icmp_session(const struct arguments *args,
-                       struct ng_session *s,
-                       int sessions, int maxsessions);
+                       struct ng_session *s);
 
 int check_udp_session(const struct arguments *args,
                       struct ng_session *s,
-                      int sessions, int maxsessions);
+                      const int epoll_fd);
 
 int check_tcp_session(const struct arguments *args,
-                      struct ng_session *s,
-                      int sessions, int maxsessions);
+                      struct ng_session *s);
 
 int monitor_tcp_session(const struct arguments *args, struct ng_session *s, int epoll_fd);
 
-int get_icmp_timeout(const struct icmp_session *u, int sessions, int maxsessions);
+uint32_t get_tcp_interest(const struct ng_session *s);
+
+uint32_t get_tcp_pending(const struct ng_session *s);
+
+void check_tcp_pending(const struct arguments *args, int epoll_fd);
+
+int get_icmp_timeout(const struct icmp_session *u);
+
+int get_udp_timeout(const struct udp_session *u);
 
-int get_udp_timeout(const struct udp_session *u, int sessions, int maxsessions);
+int get_tcp_timeout(const struct tcp_session *t);
 
-int get_tcp_timeout(const struct tcp_session *t, int sessions, int maxsessions);
+uint32_t get_forward_size(const struct tcp_session *cur);
 
 uint16_t get_mtu();
 
@@ -371,7 +562,7 @@ uint16_t get_default_mss(int version);
 int check_tun(const struct arguments *args,
               const struct epoll_event *ev,
               const int epoll_fd,
-              int sessions, int maxsessions);
+              int maxsessions);
 
 void check_icmp_socket(const struct arguments *args, const struct epoll_event *ev);
 
@@ -382,6 +573,37 @@ int32_t get_qname(const uint8_t *data, const size_t datalen, uint16_t off, char
 void parse_dns_response(const struct arguments *args, const struct ng_session *session,
                         const uint8_t *data, size_t *datalen);
 
+uint32_t get_dns_hash(const char *qname, uint16_t qtype, uint16_t qclass);
+
+int32_t get_dns_question(const uint8_t *data, const size_t datalen,
+                         char *qname, uint16_t *qtype, uint16_t *qclass);
+
+int32_t get_dns_ttl(uint8_t *data, const size_t datalen, int32_t off, int count,
+                    uint32_t elapsed, uint32_t *minttl);
+
+void put_dns_cache(uint32_t hash, const char *qname, uint16_t qtype, uint16_t qclass,
+                   int32_t qoff, const uint8_t *data, size_t datalen, uint32_t ttl);
+
+void clear_dns_cache();
+
+int check_dns_cache(const struct arguments *args, const struct udp_session *u,
+                    const uint8_t *data, const size_t datalen);
+
+void register_dns_query(struct ng_session *s, const uint8_t *data, const size_t datalen);
+
+void free_dns_pending(struct dns_pending *p);
+
+void clear_dns_query(const struct ng_session *s);
+
+int store_dns_response(const struct arguments *args, const struct ng_session *s,
+                       const uint8_t *data, const size_t datalen);
+
+int get_dns_socket(int version);
+
+int put_dns_socket(int version, int sock, int epoll_fd);
+
+void clear_dns_sockets();
+
 uint32_t get_send_window(const struct tcp_session *cur);
 
 uint32_t get_receive_buffer(const struct ng_session *cur);
@@ -399,7 +621,7 @@ int is_upper_layer(int protocol);
 void handle_ip(const struct arguments *args,
                const uint8_t *buffer, size_t length,
                const int epoll_fd,
-               int sessions, int maxsessions);
+               int maxsessions);
 
 jboolean handle_icmp(const struct arguments *args,
                      const uint8_t *pkt, size_t length,
@@ -433,11 +655,16 @@ jboolean handle_tcp(const struct arguments *args,
 
 void queue_tcp(const struct arguments *args,
                const struct tcphdr *tcphdr,
-               const char *session, struct tcp_session *cur,
+               struct tcp_desc *desc, struct tcp_session *cur,
                const uint8_t *data, uint16_t datalen);
 
+struct segment *new_segment(const struct tcphdr *tcphdr, const uint8_t *data,
+                            uint32_t seq, uint32_t end);
+
 int open_icmp_socket(const struct arguments *args, const struct icmp_session *cur);
 
+void flush_udp(const struct arguments *args);
+
 int open_udp_socket(const struct arguments *args,
                     const struct udp_session *cur, const struct allowed *redirect);
 
@@ -451,7 +678,7 @@ int write_syn_ack(const struct arguments *args, struct tcp_session *cur);
 int write_ack(const struct arguments *args, struct tcp_session *cur);
 
 int write_data(const struct arguments *args, struct tcp_session *cur,
-               const uint8_t *buffer, size_t length);
+               uint8_t *packet, size_t length);
 
 int write_fin_ack(const struct arguments *args, struct tcp_session *cur);
 
@@ -459,16 +686,29 @@ void write_rst(const struct arguments *args, struct tcp_session *cur);
 
 void write_rst_ack(const struct arguments *args, struct tcp_session *cur);
 
+const struct hdr_template *get_icmp_template(const struct icmp_session *cur);
+
 ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
                    uint8_t *data, size_t datalen);
 
 ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
                   uint8_t *data, size_t datalen);
 
+ssize_t write_udp_packet(const struct arguments *args, const struct udp_session *cur,
+                         uint8_t *packet, size_t datalen);
+
 ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                   const uint8_t *data, size_t datalen,
                   int syn, int ack, int fin, int rst);
 
+size_t get_tcp_header_len(const struct tcp_session *cur, int syn);
+
+uint8_t *get_tcp_packet(const struct arguments *args, size_t size);
+
+ssize_t write_tcp_packet(const struct arguments *args, const struct tcp_session *cur,
+                         uint8_t *buffer, size_t datalen,
+                         int syn, int ack, int fin, int rst);
+
 uint8_t char2nible(const char c);
 
 void hex2bytes(const char *hex, uint8_t *buffer);
@@ -487,6 +727,15 @@ int protect_socket(const struct arguments *args, int socket);
 
 uint16_t calc_checksum(uint16_t start, const uint8_t *buffer, size_t length);
 
+uint16_t add_checksum(uint16_t sum, uint16_t word);
+
+int check_checksum();
+
+void init_hdr_template(struct hdr_template *t, int version, uint8_t protocol,
+                       const void *saddr, const void *daddr, __be16 sport, __be16 dport);
+
+size_t put_hdr_template(const struct hdr_template *t, uint8_t *buffer, size_t len);
+
 jobject jniGlobalRef(JNIEnv *env, jobject cls);
 
 jclass jniFindClass(JNIEnv *env, const char *name);
@@ -501,7 +750,15 @@ int jniCheckException(JNIEnv *env);
 
 int sdk_int(JNIEnv *env);
 
-void log_android(int prio, const char *fmt, ...);
+extern int loglevel;
+
+void (log_android)(int prio, const char *fmt, ...);
+
+#define LOG_ENABLED(prio) ((prio) >= loglevel)
+
+// The arguments, like formatted addresses, are only evaluated when the message is logged
+#define log_android(prio, ...) \
+    do { if (LOG_ENABLED(prio)) (log_android)(prio, __VA_ARGS__); } while (0)
 
 void log_packet(const struct arguments *args, jobject jpacket);
 
@@ -535,17 +792,34 @@ jobject create_packet(const struct arguments *args,
 void account_usage(const struct arguments *args, jint version, jint protocol,
                    const char *daddr, jint dport, jint uid, jlong sent, jlong received);
 
+void account_uid(const struct arguments *args, jint uid, uint64_t sent, uint64_t received);
+
 void write_pcap_hdr();
 
 void write_pcap_rec(const uint8_t *buffer, size_t len);
 
 void write_pcap(const void *ptr, size_t len);
 
+void copy_pcap_ring(size_t pos, const void *ptr, size_t len);
+
+void rotate_pcap();
+
+void *handle_pcap(void *a);
+
+void start_pcap(const char *name);
+
+void stop_pcap();
+
+void trace(uint16_t event, uint32_t session,
+           uint32_t arg0, uint32_t arg1, uint32_t arg2, uint32_t arg3);
+
+void dump_trace();
+
 int compare_u32(uint32_t seq1, uint32_t seq2);
 
 const char *strstate(const int state);
 
-char *hex(const u_int8_t *data, const size_t len);
+char *hex(const u_int8_t *data, const size_t len, char *hexout, size_t size);
 
 int is_readable(int fd);
 
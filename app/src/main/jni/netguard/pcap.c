@@ -22,6 +22,22 @@
 FILE *pcap_file = NULL;
 size_t pcap_record_size = 64;
 long pcap_file_size = 2 * 1024 * 1024;
+int pcap_files = 1;
+char pcap_name[PATH_MAX + 1];
+
+// Single producer (events thread), single consumer (writer thread)
+uint8_t pcap_ring[PCAP_RING_SIZE];
+size_t pcap_head = 0;
+size_t pcap_tail = 0;
+uint32_t pcap_dropped = 0;
+
+// The file belongs to the writer thread, the producer only checks enabled
+int pcap_enabled = 0;
+int pcap_producing = 0;
+
+int pcap_running = 0;
+int pcap_stopping = 0;
+pthread_t pcap_thread;
 
 void write_pcap_hdr() {
     struct pcap_hdr_s pcap_hdr;
@@ -35,44 +51,203 @@ void write_pcap_hdr() {
     write_pcap(&pcap_hdr, sizeof(struct pcap_hdr_s));
 }
 
+void copy_pcap_ring(size_t pos, const void *ptr, size_t len) {
+    size_t off = pos % PCAP_RING_SIZE;
+    size_t first = (len < PCAP_RING_SIZE - off ? len : PCAP_RING_SIZE - off);
+    memcpy(pcap_ring + off, ptr, first);
+    if (len > first)
+        memcpy(pcap_ring, ((const uint8_t *) ptr) + first, len - first);
+}
+
 void write_pcap_rec(const uint8_t *buffer, size_t length) {
+    // stop_pcap waits until the record is complete
+    __atomic_store_n(&pcap_producing, 1, __ATOMIC_SEQ_CST);
+    if (!__atomic_load_n(&pcap_enabled, __ATOMIC_SEQ_CST)) {
+        __atomic_store_n(&pcap_producing, 0, __ATOMIC_RELEASE);
+        return;
+    }
+
     struct timespec ts;
     if (clock_gettime(CLOCK_REALTIME, &ts))
         log_android(ANDROID_LOG_ERROR, "clock_gettime error %d: %s", errno, strerror(errno));
 
     size_t plen = (length < pcap_record_size ? length : pcap_record_size);
     size_t rlen = sizeof(struct pcaprec_hdr_s) + plen;
-    struct pcaprec_hdr_s *pcap_rec = ng_malloc(rlen, "pcap");
 
-    pcap_rec->ts_sec = (guint32_t) ts.tv_sec;
-    pcap_rec->ts_usec = (guint32_t) (ts.tv_nsec / 1000);
-    pcap_rec->incl_len = (guint32_t) plen;
-    pcap_rec->orig_len = (guint32_t) length;
+    // Drop record when the writer cannot keep up
+    size_t head = pcap_head;
+    size_t tail = __atomic_load_n(&pcap_tail, __ATOMIC_ACQUIRE);
+    if (rlen > PCAP_RING_SIZE - (head - tail)) {
+        __atomic_add_fetch(&pcap_dropped, 1, __ATOMIC_RELAXED);
+        __atomic_store_n(&pcap_producing, 0, __ATOMIC_RELEASE);
+        return;
+    }
 
-    memcpy(((uint8_t *) pcap_rec) + sizeof(struct pcaprec_hdr_s), buffer, plen);
+    struct pcaprec_hdr_s pcap_rec;
+    pcap_rec.ts_sec = (guint32_t) ts.tv_sec;
+    pcap_rec.ts_usec = (guint32_t) (ts.tv_nsec / 1000);
+    pcap_rec.incl_len = (guint32_t) plen;
+    pcap_rec.orig_len = (guint32_t) length;
 
-    write_pcap(pcap_rec, rlen);
+    copy_pcap_ring(head, &pcap_rec, sizeof(struct pcaprec_hdr_s));
+    copy_pcap_ring(head + sizeof(struct pcaprec_hdr_s), buffer, plen);
 
-    ng_free(pcap_rec, __FILE__, __LINE__);
+    __atomic_store_n(&pcap_head, head + rlen, __ATOMIC_RELEASE);
+    __atomic_store_n(&pcap_producing, 0, __ATOMIC_RELEASE);
 }
 
 void write_pcap(const void *ptr, size_t len) {
     if (fwrite(ptr, len, 1, pcap_file) < 1)
         log_android(ANDROID_LOG_ERROR, "PCAP fwrite error %d: %s", errno, strerror(errno));
-    else {
-        long fsize = ftell(pcap_file);
-        log_android(ANDROID_LOG_VERBOSE, "PCAP wrote %d @%ld", len, fsize);
-
-        if (fsize > pcap_file_size) {
-            log_android(ANDROID_LOG_WARN, "PCAP truncate @%ld", fsize);
-            if (ftruncate(fileno(pcap_file), sizeof(struct pcap_hdr_s)))
-                log_android(ANDROID_LOG_ERROR, "PCAP ftruncate error %d: %s",
-                            errno, strerror(errno));
-            else {
-                if (!lseek(fileno(pcap_file), sizeof(struct pcap_hdr_s), SEEK_SET))
-                    log_android(ANDROID_LOG_ERROR, "PCAP ftruncate error %d: %s",
-                                errno, strerror(errno));
-            }
+}
+
+void rotate_pcap() {
+    long fsize = ftell(pcap_file);
+    if (fsize <= pcap_file_size)
+        return;
+
+    if (pcap_files <= 1) {
+        log_android(ANDROID_LOG_WARN, "PCAP truncate @%ld", fsize);
+        if (ftruncate(fileno(pcap_file), sizeof(struct pcap_hdr_s)))
+            log_android(ANDROID_LOG_ERROR, "PCAP ftruncate error %d: %s",
+                        errno, strerror(errno));
+        else if (fseek(pcap_file, sizeof(struct pcap_hdr_s), SEEK_SET))
+            log_android(ANDROID_LOG_ERROR, "PCAP fseek error %d: %s",
+                        errno, strerror(errno));
+        return;
+    }
+
+    log_android(ANDROID_LOG_WARN, "PCAP rotate @%ld files %d", fsize, pcap_files);
+
+    if (fclose(pcap_file))
+        log_android(ANDROID_LOG_ERROR, "PCAP fclose error %d: %s", errno, strerror(errno));
+
+    // name.(n-2) > name.(n-1) ... name > name.1
+    char from[PATH_MAX + 16];
+    char to[PATH_MAX + 16];
+    for (int i = pcap_files - 1; i > 0; i--) {
+        if (i == 1)
+            strcpy(from, pcap_name);
+        else
+            sprintf(from, "%s.%d", pcap_name, i - 1);
+        sprintf(to, "%s.%d", pcap_name, i);
+        if (rename(from, to) && errno != ENOENT)
+            log_android(ANDROID_LOG_ERROR, "PCAP rename %s error %d: %s",
+                        from, errno, strerror(errno));
+    }
+
+    pcap_file = fopen(pcap_name, "wb");
+    if (pcap_file == NULL)
+        log_android(ANDROID_LOG_ERROR, "PCAP fopen error %d: %s", errno, strerror(errno));
+    else
+        write_pcap_hdr();
+}
+
+void *handle_pcap(void *a) {
+    log_android(ANDROID_LOG_WARN, "PCAP writer started");
+
+    uint32_t reported = __atomic_load_n(&pcap_dropped, __ATOMIC_RELAXED);
+    while (pcap_file != NULL) {
+        size_t head = __atomic_load_n(&pcap_head, __ATOMIC_ACQUIRE);
+        size_t tail = pcap_tail;
+
+        if (head != tail) {
+            // Write all complete records in one go
+            size_t off = tail % PCAP_RING_SIZE;
+            size_t len = head - tail;
+            size_t first = (len < PCAP_RING_SIZE - off ? len : PCAP_RING_SIZE - off);
+            write_pcap(pcap_ring + off, first);
+            if (len > first)
+                write_pcap(pcap_ring, len - first);
+
+            __atomic_store_n(&pcap_tail, head, __ATOMIC_RELEASE);
+
+            if (fflush(pcap_file))
+                log_android(ANDROID_LOG_ERROR, "PCAP fflush error %d: %s", errno, strerror(errno));
+
+            log_android(ANDROID_LOG_VERBOSE, "PCAP wrote %d @%ld", len, ftell(pcap_file));
+
+            // Rotate at record boundary
+            rotate_pcap();
+        } else if (__atomic_load_n(&pcap_stopping, __ATOMIC_ACQUIRE))
+            break;
+        else {
+            struct timespec ts;
+            ts.tv_sec = 0;
+            ts.tv_nsec = PCAP_FLUSH_INTERVAL * 1000000L;
+            nanosleep(&ts, NULL);
+        }
+
+        uint32_t dropped = __atomic_load_n(&pcap_dropped, __ATOMIC_RELAXED);
+        if (dropped != reported) {
+            log_android(ANDROID_LOG_WARN, "PCAP dropped %u records", dropped - reported);
+            reported = dropped;
         }
     }
+
+    // The file might have failed to reopen on rotation
+    __atomic_store_n(&pcap_enabled, 0, __ATOMIC_SEQ_CST);
+
+    log_android(ANDROID_LOG_WARN, "PCAP writer stopped");
+    return NULL;
+}
+
+void start_pcap(const char *name) {
+    strncpy(pcap_name, name, PATH_MAX);
+    pcap_name[PATH_MAX] = 0;
+
+    pcap_file = fopen(pcap_name, "ab+");
+    if (pcap_file == NULL) {
+        log_android(ANDROID_LOG_ERROR, "PCAP fopen error %d: %s", errno, strerror(errno));
+        return;
+    }
+
+    long size = ftell(pcap_file);
+    if (size == 0) {
+        log_android(ANDROID_LOG_WARN, "PCAP initialize");
+        write_pcap_hdr();
+    } else
+        log_android(ANDROID_LOG_WARN, "PCAP current size %ld", size);
+
+    // Records of a previous capture were written or discarded by stop_pcap
+    pcap_head = 0;
+    pcap_tail = 0;
+    __atomic_store_n(&pcap_dropped, 0, __ATOMIC_RELAXED);
+
+    __atomic_store_n(&pcap_stopping, 0, __ATOMIC_RELEASE);
+    int err = pthread_create(&pcap_thread, NULL, handle_pcap, NULL);
+    if (err == 0) {
+        pcap_running = 1;
+        __atomic_store_n(&pcap_enabled, 1, __ATOMIC_SEQ_CST);
+    } else {
+        log_android(ANDROID_LOG_ERROR, "pthread_create error %d: %s", err, strerror(err));
+        if (fclose(pcap_file))
+            log_android(ANDROID_LOG_ERROR, "PCAP fclose error %d: %s", errno, strerror(errno));
+        pcap_file = NULL;
+    }
+}
+
+void stop_pcap() {
+    // No new records, wait for a record being written
+    __atomic_store_n(&pcap_enabled, 0, __ATOMIC_SEQ_CST);
+    while (__atomic_load_n(&pcap_producing, __ATOMIC_SEQ_CST))
+        sched_yield();
+
+    if (pcap_running) {
+        __atomic_store_n(&pcap_stopping, 1, __ATOMIC_RELEASE);
+        int err = pthread_join(pcap_thread, NULL);
+        if (err != 0)
+            log_android(ANDROID_LOG_ERROR, "pthread_join error %d: %s", err, strerror(err));
+        pcap_running = 0;
+    }
+
+    if (pcap_file != NULL) {
+        if (fsync(fileno(pcap_file)))
+            log_android(ANDROID_LOG_ERROR, "PCAP fsync error %d: %s", errno, strerror(errno));
+
+        if (fclose(pcap_file))
+            log_android(ANDROID_LOG_ERROR, "PCAP fclose error %d: %s", errno, strerror(errno));
+
+        pcap_file = NULL;
+    }
 }
@@ -19,6 +19,9 @@
 
 #include "netguard.h"
 
+int epoll_edge = 0;
+int epoll_events = EPOLL_EVENTS;
+
 void clear(struct context *ctx) {
     struct ng_session *s = ctx->ng_session;
     while (s != NULL) {
@@ -32,6 +35,19 @@ void clear(struct context *ctx) {
         ng_free(p, __FILE__, __LINE__);
     }
     ctx->ng_session = NULL;
+
+    clear_dns_query(NULL);
+    clear_dns_sockets();
+}
+
+static uint32_t get_trace_session(const struct ng_session *s) {
+    // App side port, ICMP sessions are identified by their id
+    if (s->protocol == IPPROTO_TCP)
+        return TRACE_SESSION(s->tcp.version, IPPROTO_TCP, ntohs(s->tcp.source));
+    else if (s->protocol == IPPROTO_UDP)
+        return TRACE_SESSION(s->udp.version, IPPROTO_UDP, ntohs(s->udp.source));
+    else
+        return TRACE_SESSION(s->icmp.version, s->protocol, ntohs(s->icmp.id));
 }
 
 void *handle_events(void *a) {
@@ -44,6 +60,19 @@ void *handle_events(void *a) {
     if (getrlimit(RLIMIT_NOFILE, &rlim))
         log_android(ANDROID_LOG_WARN, "getrlimit error %d: %s", errno, strerror(errno));
     else {
+        // Every session uses a file descriptor, so raise the soft limit as far as useful
+        rlim_t want = (rlim_t) SESSION_MAX * 100 / SESSION_LIMIT;
+        if (want > rlim.rlim_max)
+            want = rlim.rlim_max;
+        if (rlim.rlim_cur < want) {
+            rlim_t cur = rlim.rlim_cur;
+            rlim.rlim_cur = want;
+            if (setrlimit(RLIMIT_NOFILE, &rlim)) {
+                log_android(ANDROID_LOG_WARN, "setrlimit error %d: %s", errno, strerror(errno));
+                rlim.rlim_cur = cur;
+            }
+        }
+
         maxsessions = (int) (rlim.rlim_cur * SESSION_LIMIT / 100);
         if (maxsessions > SESSION_MAX)
             maxsessions = SESSION_MAX;
@@ -54,6 +83,13 @@ void *handle_events(void *a) {
     // Terminate existing sessions not allowed anymore
     check_allowed(args);
 
+    // Sessions are registered according to the mode, so it cannot change while running
+    args->ctx->edge = epoll_edge;
+    int maxevents = epoll_events;
+    struct epoll_event *ev = ng_malloc(maxevents * sizeof(struct epoll_event), "epoll events");
+    log_android(ANDROID_LOG_WARN, "epoll %s events %d",
+                args->ctx->edge ? "edge" : "level", maxevents);
+
     // Open epoll file
     int epoll_fd = epoll_create(1);
     if (epoll_fd < 0) {
@@ -86,18 +122,25 @@ void *handle_events(void *a) {
 
     // Loop
     long long last_check = 0;
+    long long last_stats = get_ms();
+    args->ctx->stat_wakeups = 0;
+    args->ctx->stat_syscalls = 0;
+    args->ctx->stat_bytes = 0;
     while (!args->ctx->stopping) {
         log_android(ANDROID_LOG_DEBUG, "Loop");
 
         int recheck = 0;
+        int pending = 0;
         int timeout = EPOLL_TIMEOUT;
 
         // Count sessions
         int isessions = 0;
         int usessions = 0;
         int tsessions = 0;
+        size_t memory = 0;
         struct ng_session *s = args->ctx->ng_session;
         while (s != NULL) {
+            memory += sizeof(struct ng_session);
             if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
                 if (!s->icmp.stop)
                     isessions++;
@@ -107,12 +150,18 @@ void *handle_events(void *a) {
             } else if (s->protocol == IPPROTO_TCP) {
                 if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
                     tsessions++;
-                if (s->socket >= 0)
+                memory += get_forward_size(&s->tcp);
+                if (s->socket >= 0) {
                     recheck = recheck | monitor_tcp_session(args, s, epoll_fd);
+                    if (args->ctx->edge && get_tcp_pending(s))
+                        pending = 1;
+                }
             }
             s = s->next;
         }
         int sessions = isessions + usessions + tsessions;
+        args->ctx->sessions = sessions;
+        args->ctx->memory = memory;
 
         // Check sessions
         long long ms = get_ms();
@@ -125,37 +174,44 @@ void *handle_events(void *a) {
             while (s != NULL) {
                 int del = 0;
                 if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                    del = check_icmp_session(args, s, sessions, maxsessions);
+                    del = check_icmp_session(args, s);
                     if (!s->icmp.stop && !del) {
                         int stimeout = s->icmp.time +
-                                       get_icmp_timeout(&s->icmp, sessions, maxsessions) - now + 1;
+                                       get_icmp_timeout(&s->icmp) - now + 1;
                         if (stimeout > 0 && stimeout < timeout)
                             timeout = stimeout;
                     }
                 } else if (s->protocol == IPPROTO_UDP) {
-                    del = check_udp_session(args, s, sessions, maxsessions);
+                    del = check_udp_session(args, s, epoll_fd);
                     if (s->udp.state == UDP_ACTIVE && !del) {
                         int stimeout = s->udp.time +
-                                       get_udp_timeout(&s->udp, sessions, maxsessions) - now + 1;
+                                       get_udp_timeout(&s->udp) - now + 1;
                         if (stimeout > 0 && stimeout < timeout)
                             timeout = stimeout;
                     }
                 } else if (s->protocol == IPPROTO_TCP) {
-                    del = check_tcp_session(args, s, sessions, maxsessions);
+                    del = check_tcp_session(args, s);
                     if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE && !del) {
                         int stimeout = s->tcp.time +
-                                       get_tcp_timeout(&s->tcp, sessions, maxsessions) - now + 1;
+                                       get_tcp_timeout(&s->tcp) - now + 1;
                         if (stimeout > 0 && stimeout < timeout)
                             timeout = stimeout;
                     }
                 }
 
                 if (del) {
+                    // Snapshots walk the list from other threads
+                    if (pthread_mutex_lock(&args->ctx->lock))
+                        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
                     if (sl == NULL)
                         args->ctx->ng_session = s->next;
                     else
                         sl->next = s->next;
 
+                    if (pthread_mutex_unlock(&args->ctx->lock))
+                        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
                     struct ng_session *c = s;
                     s = s->next;
                     if (c->protocol == IPPROTO_TCP)
@@ -172,13 +228,31 @@ void *handle_events(void *a) {
         }
 
         log_android(ANDROID_LOG_DEBUG,
-                    "sessions ICMP %d UDP %d TCP %d max %d/%d timeout %d recheck %d",
-                    isessions, usessions, tsessions, sessions, maxsessions, timeout, recheck);
+                    "sessions ICMP %d UDP %d TCP %d max %d/%d memory %zu timeout %d recheck %d",
+                    isessions, usessions, tsessions, sessions, maxsessions, memory,
+                    timeout, recheck);
+
+        // Report wakeups and system calls
+        long long now_ms = get_ms();
+        if (now_ms - last_stats >= EPOLL_STATS) {
+            struct context *ctx = args->ctx;
+            log_android(ANDROID_LOG_DEBUG,
+                        "epoll %s wakeups %.1f/s syscalls %llu bytes %llu = %.1f/MB",
+                        ctx->edge ? "edge" : "level",
+                        ctx->stat_wakeups * 1000.0 / (now_ms - last_stats),
+                        ctx->stat_syscalls, ctx->stat_bytes,
+                        ctx->stat_bytes ? ctx->stat_syscalls * 1048576.0 / ctx->stat_bytes : 0.0);
+            last_stats = now_ms;
+            ctx->stat_wakeups = 0;
+            ctx->stat_syscalls = 0;
+            ctx->stat_bytes = 0;
+        }
 
-        // Poll
-        struct epoll_event ev[EPOLL_EVENTS];
-        int ready = epoll_wait(epoll_fd, ev, EPOLL_EVENTS,
-                               recheck ? EPOLL_MIN_CHECK : timeout * 1000);
+        // Poll, without waiting when there is pending readiness to process
+        int ready = epoll_wait(epoll_fd, ev, maxevents,
+                               pending ? 0 : recheck ? EPOLL_MIN_CHECK : timeout * 1000);
+        args->ctx->stat_wakeups++;
+        args->ctx->stat_syscalls++;
 
         if (ready < 0) {
             if (errno == EINTR) {
@@ -196,7 +270,7 @@ void *handle_events(void *a) {
 
         if (ready == 0)
             log_android(ANDROID_LOG_DEBUG, "epoll timeout");
-        else {
+        if (ready > 0 || pending) {
 
             if (pthread_mutex_lock(&args->ctx->lock))
                 log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
@@ -215,53 +289,58 @@ void *handle_events(void *a) {
 
                 } else if (ev[i].data.ptr == NULL) {
                     // Check upstream
-                    log_android(ANDROID_LOG_DEBUG, "epoll ready %d/%d in %d out %d err %d hup %d",
-                                i, ready,
-                                (ev[i].events & EPOLLIN) != 0,
-                                (ev[i].events & EPOLLOUT) != 0,
-                                (ev[i].events & EPOLLERR) != 0,
-                                (ev[i].events & EPOLLHUP) != 0);
+                    trace(TRACE_EPOLL, TRACE_SESSION(0, 0, 0),
+                          ev[i].events, (uint32_t) args->tun, 0, 0);
 
                     int count = 0;
                     while (count < TUN_YIELD && !error && !args->ctx->stopping &&
                            is_readable(args->tun)) {
+                        args->ctx->stat_syscalls++;
                         count++;
-                        if (check_tun(args, &ev[i], epoll_fd, sessions, maxsessions) < 0)
+                        if (check_tun(args, &ev[i], epoll_fd, maxsessions) < 0)
                             error = 1;
                     }
 
+                    // Send queued datagrams
+                    flush_udp(args);
+
                 } else {
                     // Check downstream
-                    log_android(ANDROID_LOG_DEBUG,
-                                "epoll ready %d/%d in %d out %d err %d hup %d prot %d sock %d",
-                                i, ready,
-                                (ev[i].events & EPOLLIN) != 0,
-                                (ev[i].events & EPOLLOUT) != 0,
-                                (ev[i].events & EPOLLERR) != 0,
-                                (ev[i].events & EPOLLHUP) != 0,
-                                ((struct ng_session *) ev[i].data.ptr)->protocol,
-                                ((struct ng_session *) ev[i].data.ptr)->socket);
-
                     struct ng_session *session = (struct ng_session *) ev[i].data.ptr;
+                    trace(TRACE_EPOLL, get_trace_session(session),
+                          ev[i].events, (uint32_t) session->socket, 0, 0);
+
+                    // Evicted earlier in this batch, freed by the next check
+                    if (session->socket < 0)
+                        continue;
+
                     if (session->protocol == IPPROTO_ICMP ||
                         session->protocol == IPPROTO_ICMPV6)
                         check_icmp_socket(args, &ev[i]);
                     else if (session->protocol == IPPROTO_UDP) {
-                        int count = 0;
-                        while (count < UDP_YIELD && !args->ctx->stopping &&
-                               !(ev[i].events & EPOLLERR) && (ev[i].events & EPOLLIN) &&
-                               is_readable(session->socket)) {
-                            count++;
+                        // Receives up to UDP_YIELD datagrams at once
+                        if (!args->ctx->stopping &&
+                            !(ev[i].events & EPOLLERR) && (ev[i].events & EPOLLIN))
                             check_udp_socket(args, &ev[i]);
-                        }
-                    } else if (session->protocol == IPPROTO_TCP)
-                        check_tcp_socket(args, &ev[i], epoll_fd);
+                    } else if (session->protocol == IPPROTO_TCP) {
+                        if (args->ctx->edge && !(ev[i].events & EPOLLERR)) {
+                            // Processed below as far as the windows allow
+                            if (ev[i].events & (EPOLLIN | EPOLLHUP))
+                                session->tcp.readable = 1;
+                            if (ev[i].events & EPOLLOUT)
+                                session->tcp.writable = 1;
+                        } else
+                            check_tcp_socket(args, &ev[i], epoll_fd);
+                    }
                 }
 
                 if (error)
                     break;
             }
 
+            if (args->ctx->edge && !error)
+                check_tcp_pending(args, epoll_fd);
+
             if (pthread_mutex_unlock(&args->ctx->lock))
                 log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 
@@ -270,11 +349,16 @@ void *handle_events(void *a) {
         }
     }
 
+    ng_free(ev, __FILE__, __LINE__);
+
     // Close epoll file
     if (epoll_fd >= 0 && close(epoll_fd))
         log_android(ANDROID_LOG_ERROR,
                     "epoll close error %d: %s", errno, strerror(errno));
 
+    // Pooled DNS sockets might be bound to the previous network
+    clear_dns_sockets();
+
     // Cleanup
     ng_free(args, __FILE__, __LINE__);
 
@@ -282,6 +366,87 @@ void *handle_events(void *a) {
     return NULL;
 }
 
+int evict_session(const struct arguments *args, const int epoll_fd) {
+    time_t now = time(NULL);
+
+    // Least recently active idle UDP flow first
+    struct ng_session *lru = NULL;
+    struct ng_session *s = args->ctx->ng_session;
+    while (s != NULL) {
+        if (s->protocol == IPPROTO_UDP && s->udp.state == UDP_ACTIVE &&
+            s->udp.time + SESSION_EVICT_IDLE < now &&
+            (lru == NULL || s->udp.time < lru->udp.time))
+            lru = s;
+        s = s->next;
+    }
+
+    if (lru != NULL) {
+        log_android(ANDROID_LOG_WARN, "UDP evict session idle %d sec socket %d",
+                    now - lru->udp.time, lru->socket);
+        lru->udp.state = UDP_FINISHING;
+        check_udp_session(args, lru, epoll_fd); // closes the socket now
+        args->ctx->sessions--;
+        args->ctx->evicted_udp++;
+        return 1;
+    }
+
+    // Then the least recently active half-closed TCP connection
+    s = args->ctx->ng_session;
+    while (s != NULL) {
+        if (s->protocol == IPPROTO_TCP && s->socket >= 0 &&
+            (s->tcp.state == TCP_FIN_WAIT1 || s->tcp.state == TCP_FIN_WAIT2 ||
+             s->tcp.state == TCP_CLOSE_WAIT || s->tcp.state == TCP_LAST_ACK) &&
+            s->tcp.time + SESSION_EVICT_IDLE < now &&
+            (lru == NULL || s->tcp.time < lru->tcp.time))
+            lru = s;
+        s = s->next;
+    }
+
+    if (lru != NULL) {
+        log_android(ANDROID_LOG_WARN, "TCP evict session %s idle %d sec socket %d",
+                    strstate(lru->tcp.state), now - lru->tcp.time, lru->socket);
+        write_rst(args, &lru->tcp);
+        check_tcp_session(args, lru); // closes the socket now
+        args->ctx->sessions--;
+        args->ctx->evicted_tcp++;
+        return 1;
+    }
+
+    return 0;
+}
+
+int evict_memory(const struct arguments *args) {
+    // The connection holding the most queued data
+    struct ng_session *max = NULL;
+    uint32_t max_size = 0;
+    struct ng_session *s = args->ctx->ng_session;
+    while (s != NULL) {
+        if (s->protocol == IPPROTO_TCP && s->socket >= 0) {
+            uint32_t size = get_forward_size(&s->tcp);
+            if (size > max_size) {
+                max = s;
+                max_size = size;
+            }
+        }
+        s = s->next;
+    }
+
+    if (max == NULL)
+        return 0;
+
+    log_android(ANDROID_LOG_WARN, "TCP evict session %s queued %u memory %zu socket %d",
+                strstate(max->tcp.state), max_size, args->ctx->memory, max->socket);
+    int counted = (max->tcp.state != TCP_CLOSING && max->tcp.state != TCP_CLOSE);
+    write_rst(args, &max->tcp);
+    check_tcp_session(args, max); // closes the socket now
+    clear_tcp_data(&max->tcp);
+    args->ctx->memory -= (max_size < args->ctx->memory ? max_size : args->ctx->memory);
+    if (counted)
+        args->ctx->sessions--;
+    args->ctx->evicted_memory++;
+    return 1;
+}
+
 void check_allowed(const struct arguments *args) {
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
@@ -330,11 +495,18 @@ void check_allowed(const struct arguments *args) {
             } else if (s->udp.state == UDP_BLOCKED) {
                 log_android(ANDROID_LOG_WARN, "UDP remove blocked session uid %d", s->udp.uid);
 
+                // Snapshots walk the list from other threads
+                if (pthread_mutex_lock(&args->ctx->lock))
+                    log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
                 if (l == NULL)
                     args->ctx->ng_session = s->next;
                 else
                     l->next = s->next;
 
+                if (pthread_mutex_unlock(&args->ctx->lock))
+                    log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
                 struct ng_session *c = s;
                 s = s->next;
                 ng_free(c, __FILE__, __LINE__);
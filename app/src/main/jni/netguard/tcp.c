@@ -24,7 +24,11 @@ extern int socks5_port;
 extern char socks5_username[127 + 1];
 extern char socks5_password[127 + 1];
 
-extern FILE *pcap_file;
+extern int pcap_enabled;
+
+static uint32_t get_tcp_trace_session(const struct tcp_session *cur) {
+    return TRACE_SESSION(cur->version, IPPROTO_TCP, ntohs(cur->source));
+}
 
 void clear_tcp_data(struct tcp_session *cur) {
     struct segment *s = cur->forward;
@@ -34,9 +38,11 @@ void clear_tcp_data(struct tcp_session *cur) {
         ng_free(p->data, __FILE__, __LINE__);
         ng_free(p, __FILE__, __LINE__);
     }
+    cur->forward = NULL;
+    cur->forward_last = NULL;
 }
 
-int get_tcp_timeout(const struct tcp_session *t, int sessions, int maxsessions) {
+int get_tcp_timeout(const struct tcp_session *t) {
     int timeout;
     if (t->state == TCP_LISTEN || t->state == TCP_SYN_RECV)
         timeout = TCP_INIT_TIMEOUT;
@@ -45,37 +51,44 @@ int get_tcp_timeout(const struct tcp_session *t, int sessions, int maxsessions)
     else
         timeout = TCP_CLOSE_TIMEOUT;
 
-    int scale = 100 - sessions * 100 / maxsessions;
-    timeout = timeout * scale / 100;
-
     return timeout;
 }
 
-int check_tcp_session(const struct arguments *args, struct ng_session *s,
-                      int sessions, int maxsessions) {
-    time_t now = time(NULL);
-
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    if (s->tcp.version == 4) {
-        inet_ntop(AF_INET, &s->tcp.saddr.ip4, source, sizeof(source));
-        inet_ntop(AF_INET, &s->tcp.daddr.ip4, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &s->tcp.saddr.ip6, source, sizeof(source));
-        inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
+static const char *get_tcp_socket_desc(const struct ng_session *s, char *session) {
+    // Formatted on first use only, most sessions are never logged
+    if (*session == 0) {
+        char source[INET6_ADDRSTRLEN + 1];
+        char dest[INET6_ADDRSTRLEN + 1];
+        if (s->tcp.version == 4) {
+            inet_ntop(AF_INET, &s->tcp.saddr.ip4, source, sizeof(source));
+            inet_ntop(AF_INET, &s->tcp.daddr.ip4, dest, sizeof(dest));
+        } else {
+            inet_ntop(AF_INET6, &s->tcp.saddr.ip6, source, sizeof(source));
+            inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
+        }
+        sprintf(session, "TCP socket from %s/%u to %s/%u %s loc %u rem %u socket %d",
+                source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest),
+                strstate(s->tcp.state),
+                s->tcp.local_seq - s->tcp.local_start,
+                s->tcp.remote_seq - s->tcp.remote_start,
+                s->socket);
     }
+    return session;
+}
+
+int check_tcp_session(const struct arguments *args, struct ng_session *s) {
+    time_t now = time(NULL);
 
     char session[250];
-    sprintf(session, "TCP socket from %s/%u to %s/%u %s socket %d",
-            source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest),
-            strstate(s->tcp.state), s->socket);
+    *session = 0;
 
-    int timeout = get_tcp_timeout(&s->tcp, sessions, maxsessions);
+    int timeout = get_tcp_timeout(&s->tcp);
 
     // Check session timeout
     if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE &&
         s->tcp.time + timeout < now) {
-        log_android(ANDROID_LOG_WARN, "%s idle %d/%d sec ", session, now - s->tcp.time,
+        log_android(ANDROID_LOG_WARN, "%s idle %d/%d sec ",
+                    get_tcp_socket_desc(s, session), now - s->tcp.time,
                     timeout);
         if (s->tcp.state == TCP_LISTEN)
             s->tcp.state = TCP_CLOSING;
@@ -89,9 +102,9 @@ int check_tcp_session(const struct arguments *args, struct ng_session *s,
         if (s->socket >= 0) {
             if (close(s->socket))
                 log_android(ANDROID_LOG_ERROR, "%s close error %d: %s",
-                            session, errno, strerror(errno));
+                            get_tcp_socket_desc(s, session), errno, strerror(errno));
             else
-                log_android(ANDROID_LOG_WARN, "%s close", session);
+                log_android(ANDROID_LOG_WARN, "%s close", get_tcp_socket_desc(s, session));
             s->socket = -1;
         }
 
@@ -101,6 +114,11 @@ int check_tcp_session(const struct arguments *args, struct ng_session *s,
 
     if ((s->tcp.state == TCP_CLOSING || s->tcp.state == TCP_CLOSE) &&
         (s->tcp.sent || s->tcp.received)) {
+        char dest[INET6_ADDRSTRLEN + 1];
+        if (s->tcp.version == 4)
+            inet_ntop(AF_INET, &s->tcp.daddr.ip4, dest, sizeof(dest));
+        else
+            inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
         account_usage(args, s->tcp.version, IPPROTO_TCP,
                       dest, ntohs(s->tcp.dest), s->tcp.uid, s->tcp.sent, s->tcp.received);
         s->tcp.sent = 0;
@@ -114,9 +132,8 @@ int check_tcp_session(const struct arguments *args, struct ng_session *s,
     return 0;
 }
 
-int monitor_tcp_session(const struct arguments *args, struct ng_session *s, int epoll_fd) {
-    int recheck = 0;
-    unsigned int events = EPOLLERR;
+uint32_t get_tcp_interest(const struct ng_session *s) {
+    uint32_t events = 0;
 
     if (s->tcp.state == TCP_LISTEN) {
         // Check for connected = writable
@@ -129,7 +146,46 @@ int monitor_tcp_session(const struct arguments *args, struct ng_session *s, int
         // Check for incoming data
         if (get_send_window(&s->tcp) > 0)
             events = events | EPOLLIN;
-        else {
+
+        // Check for outgoing data
+        if (s->tcp.forward != NULL &&
+            s->tcp.forward->seq == s->tcp.remote_seq &&
+            s->tcp.forward->len - s->tcp.forward->sent < get_receive_buffer(s))
+            events = events | EPOLLOUT;
+    }
+
+    return events;
+}
+
+uint32_t get_tcp_pending(const struct ng_session *s) {
+    // Readiness reported earlier which the windows allow to use now
+    return get_tcp_interest(s) &
+           ((s->tcp.readable ? EPOLLIN : 0) | (s->tcp.writable ? EPOLLOUT : 0));
+}
+
+void check_tcp_pending(const struct arguments *args, int epoll_fd) {
+    struct ng_session *s = args->ctx->ng_session;
+    while (s != NULL) {
+        if (s->protocol == IPPROTO_TCP && s->socket >= 0) {
+            uint32_t events = get_tcp_pending(s);
+            if (events) {
+                struct epoll_event ev;
+                memset(&ev, 0, sizeof(struct epoll_event));
+                ev.events = events;
+                ev.data.ptr = s;
+                check_tcp_socket(args, &ev, epoll_fd);
+            }
+        }
+        s = s->next;
+    }
+}
+
+int monitor_tcp_session(const struct arguments *args, struct ng_session *s, int epoll_fd) {
+    int recheck = 0;
+    unsigned int events = EPOLLERR | get_tcp_interest(s);
+
+    if (s->tcp.state == TCP_ESTABLISHED || s->tcp.state == TCP_CLOSE_WAIT) {
+        if (!(events & EPOLLIN)) {
             recheck = 1;
 
             long long ms = get_ms();
@@ -142,19 +198,17 @@ int monitor_tcp_session(const struct arguments *args, struct ng_session *s, int
             }
         }
 
-        // Check for outgoing data
-        if (s->tcp.forward != NULL) {
-            uint32_t buffer_size = get_receive_buffer(s);
-            if (s->tcp.forward->seq == s->tcp.remote_seq &&
-                s->tcp.forward->len - s->tcp.forward->sent < buffer_size)
-                events = events | EPOLLOUT;
-            else
-                recheck = 1;
-        }
+        if (s->tcp.forward != NULL && !(events & EPOLLOUT))
+            recheck = 1;
     }
 
+    // Edge triggered sockets are registered for everything once
+    if (args->ctx->edge)
+        return recheck;
+
     if (events != s->ev.events) {
         s->ev.events = events;
+        args->ctx->stat_syscalls++;
         if (epoll_ctl(epoll_fd, EPOLL_CTL_MOD, s->socket, &s->ev)) {
             s->tcp.state = TCP_CLOSING;
             log_android(ANDROID_LOG_ERROR, "epoll mod tcp error %d: %s", errno, strerror(errno));
@@ -209,14 +263,19 @@ uint32_t get_receive_buffer(const struct ng_session *cur) {
     return total;
 }
 
-uint32_t get_receive_window(const struct ng_session *cur) {
-    // Get data to forward size
-    uint32_t toforward = 0;
-    struct segment *q = cur->tcp.forward;
+uint32_t get_forward_size(const struct tcp_session *cur) {
+    uint32_t size = 0;
+    struct segment *q = cur->forward;
     while (q != NULL) {
-        toforward += (q->len - q->sent);
+        size += (q->len - q->sent);
         q = q->next;
     }
+    return size;
+}
+
+uint32_t get_receive_window(const struct ng_session *cur) {
+    // Get data to forward size
+    uint32_t toforward = get_forward_size(&cur->tcp);
 
     uint32_t window = get_receive_buffer(cur);
 
@@ -243,21 +302,8 @@ void check_tcp_socket(const struct arguments *args,
     uint32_t oldlocal = s->tcp.local_seq;
     uint32_t oldremote = s->tcp.remote_seq;
 
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    if (s->tcp.version == 4) {
-        inet_ntop(AF_INET, &s->tcp.saddr.ip4, source, sizeof(source));
-        inet_ntop(AF_INET, &s->tcp.daddr.ip4, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &s->tcp.saddr.ip6, source, sizeof(source));
-        inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
-    }
     char session[250];
-    sprintf(session, "TCP socket from %s/%u to %s/%u %s loc %u rem %u",
-            source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest),
-            strstate(s->tcp.state),
-            s->tcp.local_seq - s->tcp.local_start,
-            s->tcp.remote_seq - s->tcp.remote_start);
+    *session = 0;
 
     // Check socket error
     if (ev->events & EPOLLERR) {
@@ -268,10 +314,10 @@ void check_tcp_socket(const struct arguments *args,
         int err = getsockopt(s->socket, SOL_SOCKET, SO_ERROR, &serr, &optlen);
         if (err < 0)
             log_android(ANDROID_LOG_ERROR, "%s getsockopt error %d: %s",
-                        session, errno, strerror(errno));
+                        get_tcp_socket_desc(s, session), errno, strerror(errno));
         else if (serr)
             log_android(ANDROID_LOG_ERROR, "%s SO_ERROR %d: %s",
-                        session, serr, strerror(serr));
+                        get_tcp_socket_desc(s, session), serr, strerror(serr));
 
         write_rst(args, &s->tcp);
 
@@ -307,7 +353,7 @@ void check_tcp_socket(const struct arguments *args,
             // Check socket connect
             if (s->tcp.socks5 == SOCKS5_NONE) {
                 if (ev->events & EPOLLOUT) {
-                    log_android(ANDROID_LOG_INFO, "%s connected", session);
+                    log_android(ANDROID_LOG_INFO, "%s connected", get_tcp_socket_desc(s, session));
 
                     // https://tools.ietf.org/html/rfc1928
                     // https://tools.ietf.org/html/rfc1929
@@ -320,15 +366,19 @@ void check_tcp_socket(const struct arguments *args,
             } else {
                 if (ev->events & EPOLLIN) {
                     uint8_t buffer[32];
+                    args->ctx->stat_syscalls++;
                     ssize_t bytes = recv(s->socket, buffer, sizeof(buffer), 0);
+                    if (bytes < (ssize_t) sizeof(buffer))
+                        s->tcp.readable = 0;
                     if (bytes < 0) {
                         log_android(ANDROID_LOG_ERROR, "%s recv SOCKS5 error %d: %s",
-                                    session, errno, strerror(errno));
+                                    get_tcp_socket_desc(s, session), errno, strerror(errno));
                         write_rst(args, &s->tcp);
                     } else {
-                        char *h = hex(buffer, (const size_t) bytes);
-                        log_android(ANDROID_LOG_INFO, "%s recv SOCKS5 %s", session, h);
-                        ng_free(h, __FILE__, __LINE__);
+                        char h[3 * 32 + 1];
+                        hex(buffer, (const size_t) bytes, h, sizeof(h));
+                        log_android(ANDROID_LOG_INFO, "%s recv SOCKS5 %s",
+                                    get_tcp_socket_desc(s, session), h);
 
                         if (s->tcp.socks5 == SOCKS5_HELLO &&
                             bytes == 2 && buffer[0] == 5) {
@@ -339,7 +389,7 @@ void check_tcp_socket(const struct arguments *args,
                             else {
                                 s->tcp.socks5 = 0;
                                 log_android(ANDROID_LOG_ERROR, "%s SOCKS5 auth %d not supported",
-                                            session, buffer[1]);
+                                            get_tcp_socket_desc(s, session), buffer[1]);
                                 write_rst(args, &s->tcp);
                             }
 
@@ -348,11 +398,12 @@ void check_tcp_socket(const struct arguments *args,
                                    (buffer[0] == 1 || buffer[0] == 5)) {
                             if (buffer[1] == 0) {
                                 s->tcp.socks5 = SOCKS5_CONNECT;
-                                log_android(ANDROID_LOG_WARN, "%s SOCKS5 auth OK", session);
+                                log_android(ANDROID_LOG_WARN, "%s SOCKS5 auth OK",
+                                            get_tcp_socket_desc(s, session));
                             } else {
                                 s->tcp.socks5 = 0;
                                 log_android(ANDROID_LOG_ERROR, "%s SOCKS5 auth error %d",
-                                            session, buffer[1]);
+                                            get_tcp_socket_desc(s, session), buffer[1]);
                                 write_rst(args, &s->tcp);
                             }
 
@@ -361,11 +412,12 @@ void check_tcp_socket(const struct arguments *args,
                                    buffer[0] == 5) {
                             if (buffer[1] == 0) {
                                 s->tcp.socks5 = SOCKS5_CONNECTED;
-                                log_android(ANDROID_LOG_WARN, "%s SOCKS5 connected", session);
+                                log_android(ANDROID_LOG_WARN, "%s SOCKS5 connected",
+                                            get_tcp_socket_desc(s, session));
                             } else {
                                 s->tcp.socks5 = 0;
                                 log_android(ANDROID_LOG_ERROR, "%s SOCKS5 connect error %d",
-                                            session, buffer[1]);
+                                            get_tcp_socket_desc(s, session), buffer[1]);
                                 write_rst(args, &s->tcp);
                                 /*
                                     0x00 = request granted
@@ -383,7 +435,7 @@ void check_tcp_socket(const struct arguments *args,
                         } else {
                             s->tcp.socks5 = 0;
                             log_android(ANDROID_LOG_ERROR, "%s recv SOCKS5 state %d",
-                                        session, s->tcp.socks5);
+                                        get_tcp_socket_desc(s, session), s->tcp.socks5);
                             write_rst(args, &s->tcp);
                         }
                     }
@@ -392,14 +444,14 @@ void check_tcp_socket(const struct arguments *args,
 
             if (s->tcp.socks5 == SOCKS5_HELLO) {
                 uint8_t buffer[4] = {5, 2, 0, 2};
-                char *h = hex(buffer, sizeof(buffer));
+                char h[3 * 32 + 1];
+                hex(buffer, sizeof(buffer), h, sizeof(h));
                 log_android(ANDROID_LOG_INFO, "%s sending SOCKS5 hello: %s",
-                            session, h);
-                ng_free(h, __FILE__, __LINE__);
+                            get_tcp_socket_desc(s, session), h);
                 ssize_t sent = send(s->socket, buffer, sizeof(buffer), MSG_NOSIGNAL);
                 if (sent < 0) {
                     log_android(ANDROID_LOG_ERROR, "%s send SOCKS5 hello error %d: %s",
-                                session, errno, strerror(errno));
+                                get_tcp_socket_desc(s, session), errno, strerror(errno));
                     write_rst(args, &s->tcp);
                 }
 
@@ -415,15 +467,15 @@ void check_tcp_socket(const struct arguments *args,
 
                 size_t len = 2 + ulen + 1 + plen;
 
-                char *h = hex(buffer, len);
+                char h[3 * 32 + 1];
+                hex(buffer, len, h, sizeof(h));
                 log_android(ANDROID_LOG_INFO, "%s sending SOCKS5 auth: %s",
-                            session, h);
-                ng_free(h, __FILE__, __LINE__);
+                            get_tcp_socket_desc(s, session), h);
                 ssize_t sent = send(s->socket, buffer, len, MSG_NOSIGNAL);
                 if (sent < 0) {
                     log_android(ANDROID_LOG_ERROR,
                                 "%s send SOCKS5 connect error %d: %s",
-                                session, errno, strerror(errno));
+                                get_tcp_socket_desc(s, session), errno, strerror(errno));
                     write_rst(args, &s->tcp);
                 }
 
@@ -443,15 +495,15 @@ void check_tcp_socket(const struct arguments *args,
 
                 size_t len = (s->tcp.version == 4 ? 10 : 22);
 
-                char *h = hex(buffer, len);
+                char h[3 * 32 + 1];
+                hex(buffer, len, h, sizeof(h));
                 log_android(ANDROID_LOG_INFO, "%s sending SOCKS5 connect: %s",
-                            session, h);
-                ng_free(h, __FILE__, __LINE__);
+                            get_tcp_socket_desc(s, session), h);
                 ssize_t sent = send(s->socket, buffer, len, MSG_NOSIGNAL);
                 if (sent < 0) {
                     log_android(ANDROID_LOG_ERROR,
                                 "%s send SOCKS5 connect error %d: %s",
-                                session, errno, strerror(errno));
+                                get_tcp_socket_desc(s, session), errno, strerror(errno));
                     write_rst(args, &s->tcp);
                 }
 
@@ -468,28 +520,48 @@ void check_tcp_socket(const struct arguments *args,
             // Always forward data
             int fwd = 0;
             if (ev->events & EPOLLOUT) {
-                // Forward data
+                // Forward contiguous data with one vectored send
                 uint32_t buffer_size = get_receive_buffer(s);
                 while (s->tcp.forward != NULL &&
                        s->tcp.forward->seq == s->tcp.remote_seq &&
                        s->tcp.forward->len - s->tcp.forward->sent < buffer_size) {
-                    log_android(ANDROID_LOG_DEBUG, "%s fwd %u...%u sent %u",
-                                session,
-                                s->tcp.forward->seq - s->tcp.remote_start,
-                                s->tcp.forward->seq + s->tcp.forward->len - s->tcp.remote_start,
-                                s->tcp.forward->sent);
-
-                    ssize_t sent = send(s->socket,
-                                        s->tcp.forward->data + s->tcp.forward->sent,
-                                        s->tcp.forward->len - s->tcp.forward->sent,
-                                        (unsigned int) (MSG_NOSIGNAL | (s->tcp.forward->psh
-                                                                        ? 0
-                                                                        : MSG_MORE)));
+                    struct iovec iov[TCP_SEND_IOV];
+                    int count = 0;
+                    int psh = 0;
+                    size_t total = 0;
+                    uint32_t next = s->tcp.forward->seq;
+                    struct segment *seg = s->tcp.forward;
+                    while (seg != NULL && count < TCP_SEND_IOV && seg->seq == next &&
+                           total + (seg->len - seg->sent) < buffer_size) {
+                        iov[count].iov_base = seg->data + seg->sent;
+                        iov[count].iov_len = seg->len - seg->sent;
+                        total += iov[count].iov_len;
+                        psh = seg->psh;
+                        next = seg->seq + seg->len;
+                        count++;
+                        seg = seg->next;
+                    }
+
+                    trace(TRACE_TCP_FORWARD, get_tcp_trace_session(&s->tcp),
+                          s->tcp.forward->seq - s->tcp.remote_start,
+                          next - s->tcp.remote_start,
+                          s->tcp.forward->sent, (uint32_t) count);
+
+                    struct msghdr msg;
+                    memset(&msg, 0, sizeof(struct msghdr));
+                    msg.msg_iov = iov;
+                    msg.msg_iovlen = (size_t) count;
+
+                    args->ctx->stat_syscalls++;
+                    ssize_t sent = sendmsg(s->socket, &msg,
+                                           (unsigned int) (MSG_NOSIGNAL | (psh ? 0 : MSG_MORE)));
                     if (sent < 0) {
                         log_android(ANDROID_LOG_ERROR, "%s send error %d: %s",
-                                    session, errno, strerror(errno));
+                                    get_tcp_socket_desc(s, session), errno, strerror(errno));
                         if (errno == EINTR || errno == EAGAIN) {
                             // Retry later
+                            if (errno == EAGAIN)
+                                s->tcp.writable = 0;
                             break;
                         } else {
                             write_rst(args, &s->tcp);
@@ -499,29 +571,43 @@ void check_tcp_socket(const struct arguments *args,
                         fwd = 1;
                         buffer_size -= sent;
                         s->tcp.sent += sent;
-                        s->tcp.forward->sent += sent;
+                        account_uid(args, s->tcp.uid, (uint64_t) sent, 0);
 
-                        if (s->tcp.forward->len == s->tcp.forward->sent) {
-                            s->tcp.remote_seq = s->tcp.forward->seq + s->tcp.forward->sent;
+                        // Release the segments which were sent completely
+                        size_t left = (size_t) sent;
+                        while (s->tcp.forward != NULL &&
+                               left >= s->tcp.forward->len - s->tcp.forward->sent) {
+                            left -= s->tcp.forward->len - s->tcp.forward->sent;
+                            s->tcp.remote_seq = s->tcp.forward->seq + s->tcp.forward->len;
 
                             struct segment *p = s->tcp.forward;
                             s->tcp.forward = s->tcp.forward->next;
+                            if (s->tcp.forward == NULL)
+                                s->tcp.forward_last = NULL;
                             ng_free(p->data, __FILE__, __LINE__);
                             ng_free(p, __FILE__, __LINE__);
-                        } else {
+                            if (left == 0)
+                                break;
+                        }
+
+                        if ((size_t) sent < total) {
+                            // Socket buffer full
+                            s->tcp.forward->sent += left;
+                            s->tcp.writable = 0;
                             log_android(ANDROID_LOG_WARN,
                                         "%s partial send %u/%u",
-                                        session, s->tcp.forward->sent, s->tcp.forward->len);
+                                        get_tcp_socket_desc(s, session),
+                                        s->tcp.forward->sent, s->tcp.forward->len);
                             break;
                         }
                     }
                 }
 
                 // Log data buffered
-                struct segment *seg = s->tcp.forward;
+                struct segment *seg = (LOG_ENABLED(ANDROID_LOG_DEBUG) ? s->tcp.forward : NULL);
                 while (seg != NULL) {
-                    log_android(ANDROID_LOG_WARN, "%s queued %u...%u sent %u",
-                                session,
+                    log_android(ANDROID_LOG_DEBUG, "%s queued %u...%u sent %u",
+                                get_tcp_socket_desc(s, session),
                                 seg->seq - s->tcp.remote_start,
                                 seg->seq + seg->len - s->tcp.remote_start,
                                 seg->sent);
@@ -535,12 +621,13 @@ void check_tcp_socket(const struct arguments *args,
             s->tcp.recv_window = window;
             if ((prev == 0 && window > 0) || (prev > 0 && window == 0))
                 log_android(ANDROID_LOG_WARN, "%s recv window %u > %u",
-                            session, prev, window);
+                            get_tcp_socket_desc(s, session), prev, window);
 
             // Acknowledge forwarded data
             if (fwd || (prev == 0 && window > 0)) {
                 if (fwd && s->tcp.forward == NULL && s->tcp.state == TCP_CLOSE_WAIT) {
-                    log_android(ANDROID_LOG_WARN, "%s confirm FIN", session);
+                    log_android(ANDROID_LOG_WARN, "%s confirm FIN",
+                                get_tcp_socket_desc(s, session));
                     s->tcp.remote_seq++; // remote FIN
                 }
                 if (write_ack(args, &s->tcp) >= 0)
@@ -555,61 +642,90 @@ void check_tcp_socket(const struct arguments *args,
                 if ((ev->events & EPOLLIN) && send_window > 0) {
                     s->tcp.time = time(NULL);
 
-                    uint32_t buffer_size = (send_window > s->tcp.mss
-                                            ? s->tcp.mss : send_window);
-                    uint8_t *buffer = ng_malloc(buffer_size, "tcp socket");
-                    ssize_t bytes = recv(s->socket, buffer, (size_t) buffer_size, 0);
-                    if (bytes < 0) {
-                        // Socket error
-                        log_android(ANDROID_LOG_ERROR, "%s recv error %d: %s",
-                                    session, errno, strerror(errno));
-
-                        if (errno != EINTR && errno != EAGAIN)
-                            write_rst(args, &s->tcp);
-                    } else if (bytes == 0) {
-                        log_android(ANDROID_LOG_WARN, "%s recv eof", session);
-
-                        if (s->tcp.forward == NULL) {
-                            if (write_fin_ack(args, &s->tcp) >= 0) {
-                                log_android(ANDROID_LOG_WARN, "%s FIN sent", session);
-                                s->tcp.local_seq++; // local FIN
+                    // Receive behind the headers and keep reading while the send window allows
+                    size_t hlen = get_tcp_header_len(&s->tcp, 0);
+                    int segments = 0;
+                    while (send_window > 0 && segments++ < TCP_RECV_YIELD) {
+                        uint32_t buffer_size = (send_window > s->tcp.mss
+                                                ? s->tcp.mss : send_window);
+                        uint8_t *packet = get_tcp_packet(args, hlen + buffer_size);
+                        uint8_t *buffer = packet + hlen;
+                        args->ctx->stat_syscalls++;
+                        ssize_t bytes = recv(s->socket, buffer, (size_t) buffer_size, 0);
+                        if (bytes < 0) {
+                            // Socket drained
+                            if (errno == EAGAIN || errno == EWOULDBLOCK)
+                                s->tcp.readable = 0;
+                            if (segments > 1 && (errno == EAGAIN || errno == EWOULDBLOCK))
+                                break;
+
+                            // Socket error
+                            log_android(ANDROID_LOG_ERROR, "%s recv error %d: %s",
+                                        get_tcp_socket_desc(s, session), errno, strerror(errno));
+
+                            if (errno != EINTR && errno != EAGAIN)
+                                write_rst(args, &s->tcp);
+                            break;
+                        } else if (bytes == 0) {
+                            log_android(ANDROID_LOG_WARN, "%s recv eof",
+                                        get_tcp_socket_desc(s, session));
+
+                            if (s->tcp.forward == NULL) {
+                                if (write_fin_ack(args, &s->tcp) >= 0) {
+                                    log_android(ANDROID_LOG_WARN, "%s FIN sent",
+                                                get_tcp_socket_desc(s, session));
+                                    s->tcp.local_seq++; // local FIN
+                                }
+
+                                if (s->tcp.state == TCP_ESTABLISHED)
+                                    s->tcp.state = TCP_FIN_WAIT1;
+                                else if (s->tcp.state == TCP_CLOSE_WAIT)
+                                    s->tcp.state = TCP_LAST_ACK;
+                                else
+                                    log_android(ANDROID_LOG_ERROR, "%s invalid close",
+                                                get_tcp_socket_desc(s, session));
+                            } else {
+                                // There was still data to send
+                                log_android(ANDROID_LOG_ERROR, "%s close with queue",
+                                            get_tcp_socket_desc(s, session));
+                                write_rst(args, &s->tcp);
                             }
 
-                            if (s->tcp.state == TCP_ESTABLISHED)
-                                s->tcp.state = TCP_FIN_WAIT1;
-                            else if (s->tcp.state == TCP_CLOSE_WAIT)
-                                s->tcp.state = TCP_LAST_ACK;
-                            else
-                                log_android(ANDROID_LOG_ERROR, "%s invalid close", session);
-                        } else {
-                            // There was still data to send
-                            log_android(ANDROID_LOG_ERROR, "%s close with queue", session);
-                            write_rst(args, &s->tcp);
-                        }
-
-                        if (close(s->socket))
-                            log_android(ANDROID_LOG_ERROR, "%s close error %d: %s",
-                                        session, errno, strerror(errno));
-                        s->socket = -1;
+                            if (close(s->socket))
+                                log_android(ANDROID_LOG_ERROR, "%s close error %d: %s",
+                                            get_tcp_socket_desc(s, session),
+                                            errno, strerror(errno));
+                            s->socket = -1;
+                            break;
 
-                    } else {
-                        // Socket read data
-                        log_android(ANDROID_LOG_DEBUG, "%s recv bytes %d", session, bytes);
-                        s->tcp.received += bytes;
-
-                        // Process DNS response
-                        if (ntohs(s->tcp.dest) == 53 && bytes > 2) {
-                            ssize_t dlen = bytes - 2;
-                            parse_dns_response(args, s, buffer + 2, (size_t *) &dlen);
-                        }
+                        } else {
+                            // Socket read data
+                            trace(TRACE_TCP_RECV, get_tcp_trace_session(&s->tcp),
+                                  (uint32_t) bytes, 0, 0, 0);
+                            s->tcp.received += bytes;
+                            account_uid(args, s->tcp.uid, 0, (uint64_t) bytes);
+
+                            // Process DNS response
+                            if (ntohs(s->tcp.dest) == 53 && bytes > 2) {
+                                ssize_t dlen = bytes - 2;
+                                parse_dns_response(args, s, buffer + 2, (size_t *) &dlen);
+                            }
 
-                        // Forward to tun
-                        if (write_data(args, &s->tcp, buffer, (size_t) bytes) >= 0) {
+                            // Forward to tun
+                            if (write_data(args, &s->tcp, packet, (size_t) bytes) < 0)
+                                break;
                             s->tcp.local_seq += bytes;
                             s->tcp.unconfirmed++;
+
+                            // Short read: nothing more available right now
+                            if (bytes < buffer_size) {
+                                s->tcp.readable = 0;
+                                break;
+                            }
+
+                            send_window = get_send_window(&s->tcp);
                         }
                     }
-                    ng_free(buffer, __FILE__, __LINE__);
                 }
             }
         }
@@ -617,7 +733,57 @@ void check_tcp_socket(const struct arguments *args,
 
     if (s->tcp.state != oldstate || s->tcp.local_seq != oldlocal ||
         s->tcp.remote_seq != oldremote)
-        log_android(ANDROID_LOG_DEBUG, "%s new state", session);
+        trace(TRACE_TCP_STATE, get_tcp_trace_session(&s->tcp),
+              (uint32_t) oldstate, (uint32_t) s->tcp.state,
+              s->tcp.local_seq - s->tcp.local_start,
+              s->tcp.remote_seq - s->tcp.remote_start);
+}
+
+static const char *get_tcp_packet_desc(struct tcp_desc *desc) {
+    if (*desc->packet == 0) {
+        const struct tcphdr *tcphdr = desc->tcphdr;
+
+        char source[INET6_ADDRSTRLEN + 1];
+        char dest[INET6_ADDRSTRLEN + 1];
+        inet_ntop(desc->version == 4 ? AF_INET : AF_INET6, desc->saddr, source, sizeof(source));
+        inet_ntop(desc->version == 4 ? AF_INET : AF_INET6, desc->daddr, dest, sizeof(dest));
+
+        char flags[10];
+        int flen = 0;
+        if (tcphdr->syn)
+            flags[flen++] = 'S';
+        if (tcphdr->ack)
+            flags[flen++] = 'A';
+        if (tcphdr->psh)
+            flags[flen++] = 'P';
+        if (tcphdr->fin)
+            flags[flen++] = 'F';
+        if (tcphdr->rst)
+            flags[flen++] = 'R';
+        if (tcphdr->urg)
+            flags[flen++] = 'U';
+        flags[flen] = 0;
+
+        sprintf(desc->packet,
+                "TCP %s %s/%u > %s/%u seq %u ack %u data %u win %u uid %d",
+                flags,
+                source, ntohs(tcphdr->source),
+                dest, ntohs(tcphdr->dest),
+                ntohl(tcphdr->seq) - desc->remote_start,
+                tcphdr->ack ? ntohl(tcphdr->ack_seq) - desc->local_start : 0,
+                desc->datalen, ntohs(tcphdr->window), desc->uid);
+    }
+    return desc->packet;
+}
+
+static const char *get_tcp_session_desc(struct tcp_desc *desc) {
+    if (*desc->session == 0)
+        sprintf(desc->session,
+                "%s %s loc %u rem %u acked %u",
+                get_tcp_packet_desc(desc),
+                strstate(desc->state),
+                desc->local, desc->remote, desc->acked);
+    return desc->session;
 }
 
 jboolean handle_tcp(const struct arguments *args,
@@ -647,47 +813,43 @@ jboolean handle_tcp(const struct arguments *args,
                              memcmp(&cur->tcp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
         cur = cur->next;
 
-    // Prepare logging
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    if (version == 4) {
-        inet_ntop(AF_INET, &ip4->saddr, source, sizeof(source));
-        inet_ntop(AF_INET, &ip4->daddr, dest, sizeof(dest));
+    // Prepare logging, the text is formatted only when a message is logged
+    struct tcp_desc desc;
+    desc.version = version;
+    desc.saddr = (version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src);
+    desc.daddr = (version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst);
+    desc.tcphdr = tcphdr;
+    desc.datalen = datalen;
+    desc.uid = uid;
+    if (cur == NULL) {
+        desc.state = -1;
+        desc.remote_start = 0;
+        desc.local_start = 0;
+        desc.local = 0;
+        desc.remote = 0;
+        desc.acked = 0;
     } else {
-        inet_ntop(AF_INET6, &ip6->ip6_src, source, sizeof(source));
-        inet_ntop(AF_INET6, &ip6->ip6_dst, dest, sizeof(dest));
+        desc.state = cur->tcp.state;
+        desc.remote_start = cur->tcp.remote_start;
+        desc.local_start = cur->tcp.local_start;
+        desc.local = cur->tcp.local_seq - cur->tcp.local_start;
+        desc.remote = cur->tcp.remote_seq - cur->tcp.remote_start;
+        desc.acked = cur->tcp.acked - cur->tcp.local_start;
     }
+    *desc.packet = 0;
+    *desc.session = 0;
 
-    char flags[10];
-    int flen = 0;
-    if (tcphdr->syn)
-        flags[flen++] = 'S';
-    if (tcphdr->ack)
-        flags[flen++] = 'A';
-    if (tcphdr->psh)
-        flags[flen++] = 'P';
-    if (tcphdr->fin)
-        flags[flen++] = 'F';
-    if (tcphdr->rst)
-        flags[flen++] = 'R';
-    if (tcphdr->urg)
-        flags[flen++] = 'U';
-    flags[flen] = 0;
-
-    char packet[250];
-    sprintf(packet,
-            "TCP %s %s/%u > %s/%u seq %u ack %u data %u win %u uid %d",
-            flags,
-            source, ntohs(tcphdr->source),
-            dest, ntohs(tcphdr->dest),
-            ntohl(tcphdr->seq) - (cur == NULL ? 0 : cur->tcp.remote_start),
-            tcphdr->ack ? ntohl(tcphdr->ack_seq) - (cur == NULL ? 0 : cur->tcp.local_start) : 0,
-            datalen, ntohs(tcphdr->window), uid);
-    log_android(tcphdr->urg ? ANDROID_LOG_WARN : ANDROID_LOG_DEBUG, packet);
+    trace(TRACE_TCP_PACKET, TRACE_SESSION(version, IPPROTO_TCP, ntohs(tcphdr->source)),
+          ((const uint8_t *) tcphdr)[13], // flags
+          ntohl(tcphdr->seq) - desc.remote_start,
+          tcphdr->ack ? ntohl(tcphdr->ack_seq) - desc.local_start : 0,
+          datalen);
 
     // Drop URG data
-    if (tcphdr->urg)
+    if (tcphdr->urg) {
+        log_android(ANDROID_LOG_WARN, "%s", get_tcp_packet_desc(&desc));
         return 1;
+    }
 
     // Check session
     if (cur == NULL) {
@@ -720,11 +882,12 @@ jboolean handle_tcp(const struct arguments *args,
             }
 
             log_android(ANDROID_LOG_WARN, "%s new session mss %u ws %u window %u",
-                        packet, mss, ws, ntohs(tcphdr->window) << ws);
+                        get_tcp_packet_desc(&desc), mss, ws, ntohs(tcphdr->window) << ws);
 
             // Register session
             struct ng_session *s = ng_malloc(sizeof(struct ng_session), "tcp session");
             s->protocol = IPPROTO_TCP;
+            s->start = time(NULL);
 
             s->tcp.time = time(NULL);
             s->tcp.uid = uid;
@@ -756,10 +919,14 @@ jboolean handle_tcp(const struct arguments *args,
             s->tcp.state = TCP_LISTEN;
             s->tcp.socks5 = SOCKS5_NONE;
             s->tcp.forward = NULL;
+            s->tcp.forward_last = NULL;
+            s->tcp.hdr.version = 0;
+            s->tcp.readable = 0;
+            s->tcp.writable = 0;
             s->next = NULL;
 
             if (datalen) {
-                log_android(ANDROID_LOG_WARN, "%s SYN data", packet);
+                log_android(ANDROID_LOG_WARN, "%s SYN data", get_tcp_packet_desc(&desc));
                 s->tcp.forward = ng_malloc(sizeof(struct segment), "syn segment");
                 s->tcp.forward->seq = s->tcp.remote_seq;
                 s->tcp.forward->len = datalen;
@@ -768,6 +935,7 @@ jboolean handle_tcp(const struct arguments *args,
                 s->tcp.forward->data = ng_malloc(datalen, "syn segment data");
                 memcpy(s->tcp.forward->data, data, datalen);
                 s->tcp.forward->next = NULL;
+                s->tcp.forward_last = s->tcp.forward;
             }
 
             // Open socket
@@ -785,7 +953,10 @@ jboolean handle_tcp(const struct arguments *args,
 
             // Monitor events
             memset(&s->ev, 0, sizeof(struct epoll_event));
-            s->ev.events = EPOLLOUT | EPOLLERR;
+            if (args->ctx->edge)
+                s->ev.events = EPOLLIN | EPOLLOUT | EPOLLERR | EPOLLET;
+            else
+                s->ev.events = EPOLLOUT | EPOLLERR;
             s->ev.data.ptr = s;
             if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
                 log_android(ANDROID_LOG_ERROR, "epoll add tcp error %d: %s",
@@ -793,13 +964,16 @@ jboolean handle_tcp(const struct arguments *args,
 
             s->next = args->ctx->ng_session;
             args->ctx->ng_session = s;
+            args->ctx->sessions++;
+            args->ctx->memory += sizeof(struct ng_session);
 
             if (!allowed) {
-                log_android(ANDROID_LOG_WARN, "%s resetting blocked session", packet);
+                log_android(ANDROID_LOG_WARN, "%s resetting blocked session",
+                            get_tcp_packet_desc(&desc));
                 write_rst(args, &s->tcp);
             }
         } else {
-            log_android(ANDROID_LOG_WARN, "%s unknown session", packet);
+            log_android(ANDROID_LOG_WARN, "%s unknown session", get_tcp_packet_desc(&desc));
 
             struct tcp_session rst;
             memset(&rst, 0, sizeof(struct tcp_session));
@@ -822,18 +996,9 @@ jboolean handle_tcp(const struct arguments *args,
             return 0;
         }
     } else {
-        char session[250];
-        sprintf(session,
-                "%s %s loc %u rem %u acked %u",
-                packet,
-                strstate(cur->tcp.state),
-                cur->tcp.local_seq - cur->tcp.local_start,
-                cur->tcp.remote_seq - cur->tcp.remote_start,
-                cur->tcp.acked - cur->tcp.local_start);
-
         // Session found
         if (cur->tcp.state == TCP_CLOSING || cur->tcp.state == TCP_CLOSE) {
-            log_android(ANDROID_LOG_WARN, "%s was closed", session);
+            log_android(ANDROID_LOG_WARN, "%s was closed", get_tcp_session_desc(&desc));
             write_rst(args, &cur->tcp);
             return 0;
         } else {
@@ -841,8 +1006,6 @@ jboolean handle_tcp(const struct arguments *args,
             uint32_t oldlocal = cur->tcp.local_seq;
             uint32_t oldremote = cur->tcp.remote_seq;
 
-            log_android(ANDROID_LOG_DEBUG, "%s handling", session);
-
             if (!tcphdr->syn)
                 cur->tcp.time = time(NULL);
             cur->tcp.send_window = ((uint32_t) ntohs(tcphdr->window)) << cur->tcp.send_scale;
@@ -853,33 +1016,37 @@ jboolean handle_tcp(const struct arguments *args,
             // Queue data to forward
             if (datalen) {
                 if (cur->socket < 0) {
-                    log_android(ANDROID_LOG_ERROR, "%s data while local closed", session);
+                    log_android(ANDROID_LOG_ERROR, "%s data while local closed",
+                                get_tcp_session_desc(&desc));
                     write_rst(args, &cur->tcp);
                     return 0;
                 }
                 if (cur->tcp.state == TCP_CLOSE_WAIT) {
-                    log_android(ANDROID_LOG_ERROR, "%s data while remote closed", session);
+                    log_android(ANDROID_LOG_ERROR, "%s data while remote closed",
+                                get_tcp_session_desc(&desc));
                     write_rst(args, &cur->tcp);
                     return 0;
                 }
-                queue_tcp(args, tcphdr, session, &cur->tcp, data, datalen);
+                queue_tcp(args, tcphdr, &desc, &cur->tcp, data, datalen);
             }
 
             if (tcphdr->rst /* +ACK */) {
                 // No sequence check
                 // http://tools.ietf.org/html/rfc1122#page-87
-                log_android(ANDROID_LOG_WARN, "%s received reset", session);
+                log_android(ANDROID_LOG_WARN, "%s received reset", get_tcp_session_desc(&desc));
                 cur->tcp.state = TCP_CLOSING;
                 return 0;
             } else {
                 if (!tcphdr->ack || ntohl(tcphdr->ack_seq) == cur->tcp.local_seq) {
                     if (tcphdr->syn) {
-                        log_android(ANDROID_LOG_WARN, "%s repeated SYN", session);
+                        log_android(ANDROID_LOG_WARN, "%s repeated SYN",
+                                    get_tcp_session_desc(&desc));
                         // The socket is probably not opened yet
 
                     } else if (tcphdr->fin /* +ACK */) {
                         if (cur->tcp.state == TCP_ESTABLISHED) {
-                            log_android(ANDROID_LOG_WARN, "%s FIN received", session);
+                            log_android(ANDROID_LOG_WARN, "%s FIN received",
+                                        get_tcp_session_desc(&desc));
                             if (cur->tcp.forward == NULL) {
                                 cur->tcp.remote_seq++; // remote FIN
                                 if (write_ack(args, &cur->tcp) >= 0)
@@ -887,15 +1054,18 @@ jboolean handle_tcp(const struct arguments *args,
                             } else
                                 cur->tcp.state = TCP_CLOSE_WAIT;
                         } else if (cur->tcp.state == TCP_CLOSE_WAIT) {
-                            log_android(ANDROID_LOG_WARN, "%s repeated FIN", session);
+                            log_android(ANDROID_LOG_WARN, "%s repeated FIN",
+                                        get_tcp_session_desc(&desc));
                             // The socket is probably not closed yet
                         } else if (cur->tcp.state == TCP_FIN_WAIT1) {
-                            log_android(ANDROID_LOG_WARN, "%s last ACK", session);
+                            log_android(ANDROID_LOG_WARN, "%s last ACK",
+                                        get_tcp_session_desc(&desc));
                             cur->tcp.remote_seq++; // remote FIN
                             if (write_ack(args, &cur->tcp) >= 0)
                                 cur->tcp.state = TCP_CLOSE;
                         } else {
-                            log_android(ANDROID_LOG_ERROR, "%s invalid FIN", session);
+                            log_android(ANDROID_LOG_ERROR, "%s invalid FIN",
+                                        get_tcp_session_desc(&desc));
                             return 0;
                         }
 
@@ -915,11 +1085,13 @@ jboolean handle_tcp(const struct arguments *args,
                         } else if (cur->tcp.state == TCP_FIN_WAIT1) {
                             // Do nothing
                         } else {
-                            log_android(ANDROID_LOG_ERROR, "%s invalid state", session);
+                            log_android(ANDROID_LOG_ERROR, "%s invalid state",
+                                        get_tcp_session_desc(&desc));
                             return 0;
                         }
                     } else {
-                        log_android(ANDROID_LOG_ERROR, "%s unknown packet", session);
+                        log_android(ANDROID_LOG_ERROR, "%s unknown packet",
+                                    get_tcp_session_desc(&desc));
                         return 0;
                     }
                 } else {
@@ -931,29 +1103,32 @@ jboolean handle_tcp(const struct arguments *args,
                             if (setsockopt(cur->socket, SOL_SOCKET, SO_KEEPALIVE, &on, sizeof(on)))
                                 log_android(ANDROID_LOG_ERROR,
                                             "%s setsockopt SO_KEEPALIVE error %d: %s",
-                                            session, errno, strerror(errno));
+                                            get_tcp_session_desc(&desc), errno, strerror(errno));
                             else
-                                log_android(ANDROID_LOG_WARN, "%s enabled keep alive", session);
+                                log_android(ANDROID_LOG_WARN, "%s enabled keep alive",
+                                            get_tcp_session_desc(&desc));
                         } else
-                            log_android(ANDROID_LOG_WARN, "%s keep alive", session);
+                            log_android(ANDROID_LOG_WARN, "%s keep alive",
+                                        get_tcp_session_desc(&desc));
 
                     } else if (compare_u32(ack, cur->tcp.local_seq) < 0) {
                         if (compare_u32(ack, cur->tcp.acked) <= 0)
                             log_android(
                                     ack == cur->tcp.acked ? ANDROID_LOG_WARN : ANDROID_LOG_ERROR,
                                     "%s repeated ACK %u/%u",
-                                    session,
+                                    get_tcp_session_desc(&desc),
                                     ack - cur->tcp.local_start,
                                     cur->tcp.acked - cur->tcp.local_start);
                         else {
                             log_android(ANDROID_LOG_WARN, "%s previous ACK %u",
-                                        session, ack - cur->tcp.local_seq);
+                                        get_tcp_session_desc(&desc), ack - cur->tcp.local_seq);
                             cur->tcp.acked = ack;
                         }
 
                         return 1;
                     } else {
-                        log_android(ANDROID_LOG_ERROR, "%s future ACK", session);
+                        log_android(ANDROID_LOG_ERROR, "%s future ACK",
+                                    get_tcp_session_desc(&desc));
                         write_rst(args, &cur->tcp);
                         return 0;
                     }
@@ -963,11 +1138,10 @@ jboolean handle_tcp(const struct arguments *args,
             if (cur->tcp.state != oldstate ||
                 cur->tcp.local_seq != oldlocal ||
                 cur->tcp.remote_seq != oldremote)
-                log_android(ANDROID_LOG_INFO, "%s > %s loc %u rem %u",
-                            session,
-                            strstate(cur->tcp.state),
-                            cur->tcp.local_seq - cur->tcp.local_start,
-                            cur->tcp.remote_seq - cur->tcp.remote_start);
+                trace(TRACE_TCP_STATE, get_tcp_trace_session(&cur->tcp),
+                      (uint32_t) oldstate, (uint32_t) cur->tcp.state,
+                      cur->tcp.local_seq - cur->tcp.local_start,
+                      cur->tcp.remote_seq - cur->tcp.remote_start);
         }
     }
 
@@ -976,63 +1150,85 @@ jboolean handle_tcp(const struct arguments *args,
 
 void queue_tcp(const struct arguments *args,
                const struct tcphdr *tcphdr,
-               const char *session, struct tcp_session *cur,
+               struct tcp_desc *desc, struct tcp_session *cur,
                const uint8_t *data, uint16_t datalen) {
     uint32_t seq = ntohl(tcphdr->seq);
-    if (compare_u32(seq, cur->remote_seq) < 0)
+    uint32_t end = seq + datalen;
+    if (compare_u32(end, cur->remote_seq) <= 0) {
         log_android(ANDROID_LOG_WARN, "%s already forwarded %u..%u",
-                    session,
-                    seq - cur->remote_start, seq + datalen - cur->remote_start);
-    else {
-        struct segment *p = NULL;
-        struct segment *s = cur->forward;
-        while (s != NULL && compare_u32(s->seq, seq) < 0) {
+                    get_tcp_session_desc(desc),
+                    seq - cur->remote_start, end - cur->remote_start);
+        return;
+    }
+
+    // Forwarded bytes of a retransmission
+    if (compare_u32(seq, cur->remote_seq) < 0)
+        seq = cur->remote_seq;
+
+    // In order after the last queued segment
+    struct segment *last = cur->forward_last;
+    if (last == NULL || compare_u32(last->seq + last->len, seq) <= 0) {
+        trace(TRACE_TCP_QUEUE, get_tcp_trace_session(cur),
+              seq - cur->remote_start, end - cur->remote_start, 0, 0);
+        struct segment *n = new_segment(tcphdr, data + (seq - ntohl(tcphdr->seq)), seq, end);
+        if (last == NULL)
+            cur->forward = n;
+        else
+            last->next = n;
+        cur->forward_last = n;
+        return;
+    }
+
+    // Out of order: store only the bytes which fill gaps between queued segments
+    int queued = 0;
+    struct segment *p = NULL;
+    struct segment *s = cur->forward;
+    while (compare_u32(seq, end) < 0) {
+        while (s != NULL && compare_u32(s->seq + s->len, seq) <= 0) {
             p = s;
             s = s->next;
         }
 
-        if (s == NULL || compare_u32(s->seq, seq) > 0) {
-            log_android(ANDROID_LOG_DEBUG, "%s queuing %u...%u",
-                        session,
-                        seq - cur->remote_start, seq + datalen - cur->remote_start);
-            struct segment *n = ng_malloc(sizeof(struct segment), "tcp segment");
-            n->seq = seq;
-            n->len = datalen;
-            n->sent = 0;
-            n->psh = tcphdr->psh;
-            n->data = ng_malloc(datalen, "tcp segment");
-            memcpy(n->data, data, datalen);
-            n->next = s;
-            if (p == NULL)
-                cur->forward = n;
-            else
-                p->next = n;
-        } else if (s != NULL && s->seq == seq) {
-            if (s->len == datalen)
-                log_android(ANDROID_LOG_WARN, "%s segment already queued %u..%u",
-                            session,
-                            s->seq - cur->remote_start, s->seq + s->len - cur->remote_start);
-            else if (s->len < datalen) {
-                log_android(ANDROID_LOG_WARN, "%s segment smaller %u..%u > %u",
-                            session,
-                            s->seq - cur->remote_start, s->seq + s->len - cur->remote_start,
-                            s->seq + datalen - cur->remote_start);
-                ng_free(s->data, __FILE__, __LINE__);
-                s->len = datalen;
-                s->data = ng_malloc(datalen, "tcp segment smaller");
-                memcpy(s->data, data, datalen);
-            } else {
-                log_android(ANDROID_LOG_ERROR, "%s segment larger %u..%u < %u",
-                            session,
-                            s->seq - cur->remote_start, s->seq + s->len - cur->remote_start,
-                            s->seq + datalen - cur->remote_start);
-                ng_free(s->data, __FILE__, __LINE__);
-                s->len = datalen;
-                s->data = ng_malloc(datalen, "tcp segment larger");
-                memcpy(s->data, data, datalen);
-            }
+        if (s != NULL && compare_u32(s->seq, seq) <= 0) {
+            // Already queued
+            seq = s->seq + s->len;
+            continue;
         }
+
+        uint32_t gap = (s != NULL && compare_u32(s->seq, end) < 0 ? s->seq : end);
+        trace(TRACE_TCP_QUEUE, get_tcp_trace_session(cur),
+              seq - cur->remote_start, gap - cur->remote_start, 0, 0);
+        struct segment *n = new_segment(tcphdr, data + (seq - ntohl(tcphdr->seq)), seq, gap);
+        n->psh = (gap == end ? tcphdr->psh : 0);
+        n->next = s;
+        if (p == NULL)
+            cur->forward = n;
+        else
+            p->next = n;
+        if (s == NULL)
+            cur->forward_last = n;
+        p = n;
+        seq = gap;
+        queued = 1;
     }
+
+    if (!queued)
+        log_android(ANDROID_LOG_WARN, "%s segment already queued %u..%u",
+                    get_tcp_session_desc(desc),
+                    ntohl(tcphdr->seq) - cur->remote_start, end - cur->remote_start);
+}
+
+struct segment *new_segment(const struct tcphdr *tcphdr, const uint8_t *data,
+                            uint32_t seq, uint32_t end) {
+    struct segment *n = ng_malloc(sizeof(struct segment), "tcp segment");
+    n->seq = seq;
+    n->len = end - seq;
+    n->sent = 0;
+    n->psh = tcphdr->psh;
+    n->data = ng_malloc(n->len, "tcp segment");
+    memcpy(n->data, data, n->len);
+    n->next = NULL;
+    return n;
 }
 
 int open_tcp_socket(const struct arguments *args,
@@ -1144,9 +1340,10 @@ int write_ack(const struct arguments *args, struct tcp_session *cur) {
     return 0;
 }
 
+// The data is in packet at get_tcp_header_len(cur, 0), the headers are built in front of it
 int write_data(const struct arguments *args, struct tcp_session *cur,
-               const uint8_t *buffer, size_t length) {
-    if (write_tcp(args, cur, buffer, length, 0, 1, 0, 0) < 0) {
+               uint8_t *packet, size_t length) {
+    if (write_tcp_packet(args, cur, packet, length, 0, 1, 0, 0) < 0) {
         cur->state = TCP_CLOSING;
         return -1;
     }
@@ -1173,79 +1370,59 @@ void write_rst(const struct arguments *args, struct tcp_session *cur) {
         cur->state = TCP_CLOSING;
 }
 
+size_t get_tcp_header_len(const struct tcp_session *cur, int syn) {
+    return (cur->version == 4 ? sizeof(struct iphdr) : sizeof(struct ip6_hdr)) +
+           sizeof(struct tcphdr) + (syn ? 4 + 3 + 1 : 0);
+}
+
+uint8_t *get_tcp_packet(const struct arguments *args, size_t size) {
+    // Reused for all sessions, grows to the largest packet
+    struct context *ctx = args->ctx;
+    if (ctx->tcp_packet_size < size) {
+        ctx->tcp_packet = ng_realloc(ctx->tcp_packet, size, "tcp packet");
+        ctx->tcp_packet_size = size;
+    }
+    return ctx->tcp_packet;
+}
+
+static const struct hdr_template *get_tcp_template(const struct tcp_session *cur) {
+    // Built on first use, addresses and ports do not change during a session
+    struct hdr_template *t = (struct hdr_template *) &cur->hdr;
+    if (t->version != cur->version)
+        init_hdr_template(t, cur->version, IPPROTO_TCP,
+                          &cur->daddr, &cur->saddr, cur->dest, cur->source);
+    return t;
+}
+
 ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                   const uint8_t *data, size_t datalen,
                   int syn, int ack, int fin, int rst) {
+    size_t hlen = get_tcp_header_len(cur, syn);
+    if (datalen == 0) {
+        uint8_t buffer[sizeof(struct ip6_hdr) + sizeof(struct tcphdr) + 4 + 3 + 1];
+        return write_tcp_packet(args, cur, buffer, 0, syn, ack, fin, rst);
+    }
+
+    uint8_t *buffer = get_tcp_packet(args, hlen + datalen);
+    memcpy(buffer + hlen, data, datalen);
+    return write_tcp_packet(args, cur, buffer, datalen, syn, ack, fin, rst);
+}
+
+ssize_t write_tcp_packet(const struct arguments *args, const struct tcp_session *cur,
+                         uint8_t *buffer, size_t datalen,
+                         int syn, int ack, int fin, int rst) {
     size_t len;
-    u_int8_t *buffer;
     struct tcphdr *tcp;
     uint16_t csum;
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
 
-    // Build packet
+    // Build headers in front of the data
     int optlen = (syn ? 4 + 3 + 1 : 0);
-    uint8_t *options;
-    if (cur->version == 4) {
-        len = sizeof(struct iphdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = ng_malloc(len, "tcp write4");
-        struct iphdr *ip4 = (struct iphdr *) buffer;
-        tcp = (struct tcphdr *) (buffer + sizeof(struct iphdr));
-        options = buffer + sizeof(struct iphdr) + sizeof(struct tcphdr);
-        if (datalen)
-            memcpy(buffer + sizeof(struct iphdr) + sizeof(struct tcphdr) + optlen, data, datalen);
-
-        // Build IP4 header
-        memset(ip4, 0, sizeof(struct iphdr));
-        ip4->version = 4;
-        ip4->ihl = sizeof(struct iphdr) >> 2;
-        ip4->tot_len = htons(len);
-        ip4->ttl = IPDEFTTL;
-        ip4->protocol = IPPROTO_TCP;
-        ip4->saddr = cur->daddr.ip4;
-        ip4->daddr = cur->saddr.ip4;
-
-        // Calculate IP4 checksum
-        ip4->check = ~calc_checksum(0, (uint8_t *) ip4, sizeof(struct iphdr));
-
-        // Calculate TCP4 checksum
-        struct ippseudo pseudo;
-        memset(&pseudo, 0, sizeof(struct ippseudo));
-        pseudo.ippseudo_src.s_addr = (__be32) ip4->saddr;
-        pseudo.ippseudo_dst.s_addr = (__be32) ip4->daddr;
-        pseudo.ippseudo_p = ip4->protocol;
-        pseudo.ippseudo_len = htons(sizeof(struct tcphdr) + optlen + datalen);
-
-        csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
-    } else {
-        len = sizeof(struct ip6_hdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = ng_malloc(len, "tcp write 6");
-        struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
-        tcp = (struct tcphdr *) (buffer + sizeof(struct ip6_hdr));
-        options = buffer + sizeof(struct ip6_hdr) + sizeof(struct tcphdr);
-        if (datalen)
-            memcpy(buffer + sizeof(struct ip6_hdr) + sizeof(struct tcphdr) + optlen, data, datalen);
-
-        // Build IP6 header
-        memset(ip6, 0, sizeof(struct ip6_hdr));
-        ip6->ip6_ctlun.ip6_un1.ip6_un1_plen = htons(len - sizeof(struct ip6_hdr));
-        ip6->ip6_ctlun.ip6_un1.ip6_un1_nxt = IPPROTO_TCP;
-        ip6->ip6_ctlun.ip6_un1.ip6_un1_hlim = IPDEFTTL;
-        ip6->ip6_ctlun.ip6_un2_vfc = 0x60;
-        memcpy(&(ip6->ip6_src), &cur->daddr.ip6, 16);
-        memcpy(&(ip6->ip6_dst), &cur->saddr.ip6, 16);
-
-        // Calculate TCP6 checksum
-        struct ip6_hdr_pseudo pseudo;
-        memset(&pseudo, 0, sizeof(struct ip6_hdr_pseudo));
-        memcpy(&pseudo.ip6ph_src, &ip6->ip6_dst, 16);
-        memcpy(&pseudo.ip6ph_dst, &ip6->ip6_src, 16);
-        pseudo.ip6ph_len = ip6->ip6_ctlun.ip6_un1.ip6_un1_plen;
-        pseudo.ip6ph_nxt = ip6->ip6_ctlun.ip6_un1.ip6_un1_nxt;
-
-        csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ip6_hdr_pseudo));
-    }
-
+    const struct hdr_template *t = get_tcp_template(cur);
+    len = get_tcp_header_len(cur, syn) + datalen;
+    size_t iplen = put_hdr_template(t, buffer, len);
+    tcp = (struct tcphdr *) (buffer + iplen);
+    uint8_t *options = buffer + iplen + sizeof(struct tcphdr);
+    uint8_t *data = options + optlen;
 
     // Build TCP header
     memset(tcp, 0, sizeof(struct tcphdr));
@@ -1276,36 +1453,27 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
         *(options + 7) = 0; // End, padding
     }
 
-    // Continue checksum
-    csum = calc_checksum(csum, (uint8_t *) tcp, sizeof(struct tcphdr));
+    // Addresses, protocol and ports are in the template sum, add the remaining fields
+    csum = add_checksum(t->pseudo_sum, htons(len - iplen));
+    csum = calc_checksum(csum, ((uint8_t *) tcp) + 4, sizeof(struct tcphdr) - 4);
     csum = calc_checksum(csum, options, (size_t) optlen);
     csum = calc_checksum(csum, data, datalen);
     tcp->check = ~csum;
 
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              cur->version == 4 ? (const void *) &cur->saddr.ip4 : (const void *) &cur->saddr.ip6,
-              source, sizeof(source));
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              cur->version == 4 ? (const void *) &cur->daddr.ip4 : (const void *) &cur->daddr.ip6,
-              dest, sizeof(dest));
-
     // Send packet
-    log_android(ANDROID_LOG_DEBUG,
-                "TCP sending%s%s%s%s to tun %s/%u seq %u ack %u data %u",
-                (tcp->syn ? " SYN" : ""),
-                (tcp->ack ? " ACK" : ""),
-                (tcp->fin ? " FIN" : ""),
-                (tcp->rst ? " RST" : ""),
-                dest, ntohs(tcp->dest),
-                ntohl(tcp->seq) - cur->local_start,
-                ntohl(tcp->ack_seq) - cur->remote_start,
-                datalen);
+    trace(TRACE_TCP_WRITE, get_tcp_trace_session(cur),
+          ((const uint8_t *) tcp)[13], // flags
+          ntohl(tcp->seq) - cur->local_start,
+          ntohl(tcp->ack_seq) - cur->remote_start,
+          (uint32_t) datalen);
 
     ssize_t res = write(args->tun, buffer, len);
+    args->ctx->stat_syscalls++;
 
     // Write pcap record
     if (res >= 0) {
-        if (pcap_file != NULL)
+        args->ctx->stat_bytes += res;
+        if (__atomic_load_n(&pcap_enabled, __ATOMIC_RELAXED))
             write_pcap_rec(buffer, (size_t) res);
     } else
         log_android(ANDROID_LOG_ERROR, "TCP write%s%s%s%s data %d error %d: %s",
@@ -1316,8 +1484,6 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                     datalen,
                     errno, strerror((errno)));
 
-    ng_free(buffer, __FILE__, __LINE__);
-
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "TCP write %d/%d", res, len);
         return -1;
@@ -0,0 +1,199 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// One ring per thread, claimed on first use and released when the thread exits
+struct trace_ring trace_rings[TRACE_THREADS];
+
+static pthread_once_t trace_once = PTHREAD_ONCE_INIT;
+static pthread_key_t trace_key;
+static __thread struct trace_ring *trace_ring = NULL;
+static __thread int trace_disabled = 0;
+
+static void release_trace_ring(void *ring) {
+    __atomic_store_n(&((struct trace_ring *) ring)->owner, 0, __ATOMIC_RELEASE);
+}
+
+static void create_trace_key() {
+    if (pthread_key_create(&trace_key, release_trace_ring))
+        log_android(ANDROID_LOG_ERROR, "pthread_key_create failed");
+}
+
+static struct trace_ring *claim_trace_ring() {
+    pthread_once(&trace_once, create_trace_key);
+
+    int tid = (int) gettid();
+    for (int i = 0; i < TRACE_THREADS; i++) {
+        int expected = 0;
+        if (__atomic_compare_exchange_n(&trace_rings[i].owner, &expected, tid, 0,
+                                        __ATOMIC_ACQ_REL, __ATOMIC_RELAXED)) {
+            if (pthread_setspecific(trace_key, &trace_rings[i]))
+                log_android(ANDROID_LOG_ERROR, "pthread_setspecific failed");
+            return &trace_rings[i];
+        }
+    }
+
+    log_android(ANDROID_LOG_WARN, "No trace ring for thread %d", tid);
+    return NULL;
+}
+
+void trace(uint16_t event, uint32_t session,
+           uint32_t arg0, uint32_t arg1, uint32_t arg2, uint32_t arg3) {
+    struct trace_ring *ring = trace_ring;
+    if (ring == NULL) {
+        if (trace_disabled)
+            return;
+        ring = trace_ring = claim_trace_ring();
+        if (ring == NULL) {
+            trace_disabled = 1;
+            return;
+        }
+    }
+
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+
+    uint32_t head = ring->head;
+    struct trace_record *r = &ring->record[head & (TRACE_RING_SIZE - 1)];
+    r->time = (uint64_t) ts.tv_sec * 1000000000ULL + (uint64_t) ts.tv_nsec;
+    r->session = session;
+    r->event = event;
+    r->arg[0] = arg0;
+    r->arg[1] = arg1;
+    r->arg[2] = arg2;
+    r->arg[3] = arg3;
+
+    __atomic_store_n(&ring->head, head + 1, __ATOMIC_RELEASE);
+}
+
+static const char *trace_protocol(uint32_t session) {
+    switch ((session >> 16) & 0xFF) {
+        case IPPROTO_ICMP:
+        case IPPROTO_ICMPV6:
+            return "ICMP";
+        case IPPROTO_TCP:
+            return "TCP";
+        case IPPROTO_UDP:
+            return "UDP";
+        default:
+            return "-";
+    }
+}
+
+static void trace_flags(uint32_t flags, char *text) {
+    // Flags byte of the TCP header
+    int len = 0;
+    if (flags & 0x02)
+        text[len++] = 'S';
+    if (flags & 0x10)
+        text[len++] = 'A';
+    if (flags & 0x08)
+        text[len++] = 'P';
+    if (flags & 0x01)
+        text[len++] = 'F';
+    if (flags & 0x04)
+        text[len++] = 'R';
+    text[len] = 0;
+}
+
+static void format_trace(const struct trace_record *r, char *text, size_t size) {
+    char flags[8];
+    const uint32_t *a = r->arg;
+    switch (r->event) {
+        case TRACE_TCP_PACKET:
+            trace_flags(a[0], flags);
+            snprintf(text, size, "packet %s seq %u ack %u data %u", flags, a[1], a[2], a[3]);
+            break;
+        case TRACE_TCP_WRITE:
+            trace_flags(a[0], flags);
+            snprintf(text, size, "write %s seq %u ack %u data %u", flags, a[1], a[2], a[3]);
+            break;
+        case TRACE_TCP_STATE:
+            snprintf(text, size, "%s > %s loc %u rem %u",
+                     strstate(a[0]), strstate(a[1]), a[2], a[3]);
+            break;
+        case TRACE_TCP_QUEUE:
+            snprintf(text, size, "queue %u...%u", a[0], a[1]);
+            break;
+        case TRACE_TCP_FORWARD:
+            snprintf(text, size, "fwd %u...%u sent %u segments %u", a[0], a[1], a[2], a[3]);
+            break;
+        case TRACE_TCP_RECV:
+        case TRACE_UDP_RECV:
+            snprintf(text, size, "recv %u", a[0]);
+            break;
+        case TRACE_UDP_WRITE:
+            snprintf(text, size, "write %u", a[0]);
+            break;
+        case TRACE_UDP_FORWARD:
+            snprintf(text, size, "forward %u", a[0]);
+            break;
+        case TRACE_EPOLL:
+            snprintf(text, size, "epoll events %x socket %d", a[0], (int) a[1]);
+            break;
+        default:
+            snprintf(text, size, "event %u %u %u %u %u", r->event, a[0], a[1], a[2], a[3]);
+    }
+}
+
+void dump_trace() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    uint64_t now = (uint64_t) ts.tv_sec * 1000000000ULL + (uint64_t) ts.tv_nsec;
+
+    struct trace_record *copy =
+            ng_malloc(TRACE_RING_SIZE * sizeof(struct trace_record), "trace dump");
+
+    for (int i = 0; i < TRACE_THREADS; i++) {
+        struct trace_ring *ring = &trace_rings[i];
+        uint32_t head = __atomic_load_n(&ring->head, __ATOMIC_ACQUIRE);
+        if (head == 0)
+            continue;
+
+        // Copy first, the owner keeps writing while formatting
+        uint32_t first = (head > TRACE_RING_SIZE ? head - TRACE_RING_SIZE : 0);
+        uint32_t count = head - first;
+        for (uint32_t n = 0; n < count; n++)
+            copy[n] = ring->record[(first + n) & (TRACE_RING_SIZE - 1)];
+
+        // Skip records which might have been overwritten during the copy
+        __atomic_thread_fence(__ATOMIC_ACQUIRE);
+        uint32_t now_head = __atomic_load_n(&ring->head, __ATOMIC_ACQUIRE);
+        uint32_t skip = (now_head - first >= TRACE_RING_SIZE
+                         ? now_head - first - TRACE_RING_SIZE + 1 : 0);
+        if (skip > count)
+            skip = count;
+
+        log_android(ANDROID_LOG_WARN, "Trace ring %d thread %d records %u",
+                    i, __atomic_load_n(&ring->owner, __ATOMIC_RELAXED), count - skip);
+
+        char text[128];
+        for (uint32_t n = skip; n < count; n++) {
+            const struct trace_record *r = &copy[n];
+            uint64_t ago = (now - r->time) / 1000000ULL; // milliseconds
+            format_trace(r, text, sizeof(text));
+            log_android(ANDROID_LOG_WARN, "Trace -%llu.%03llu %s%u/%u %s",
+                        ago / 1000, ago % 1000,
+                        trace_protocol(r->session), r->session >> 24, r->session & 0xFFFF, text);
+        }
+    }
+
+    ng_free(copy, __FILE__, __LINE__);
+}
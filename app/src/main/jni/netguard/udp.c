@@ -19,46 +19,63 @@
 
 #include "netguard.h"
 
-extern FILE *pcap_file;
+extern int pcap_enabled;
+extern int dns_cache_size;
 
-int get_udp_timeout(const struct udp_session *u, int sessions, int maxsessions) {
-    int timeout = (ntohs(u->dest) == 53 ? UDP_TIMEOUT_53 : UDP_TIMEOUT_ANY);
+static uint32_t get_udp_trace_session(const struct udp_session *cur) {
+    return TRACE_SESSION(cur->version, IPPROTO_UDP, ntohs(cur->source));
+}
 
-    int scale = 100 - sessions * 100 / maxsessions;
-    timeout = timeout * scale / 100;
+static const char *get_udp_session_desc(const struct udp_session *u, char *desc) {
+    // Formatted on first use only
+    if (*desc == 0) {
+        char source[INET6_ADDRSTRLEN + 1];
+        char dest[INET6_ADDRSTRLEN + 1];
+        inet_ntop(u->version == 4 ? AF_INET : AF_INET6,
+                  u->version == 4 ? (const void *) &u->saddr.ip4 : (const void *) &u->saddr.ip6,
+                  source, sizeof(source));
+        inet_ntop(u->version == 4 ? AF_INET : AF_INET6,
+                  u->version == 4 ? (const void *) &u->daddr.ip4 : (const void *) &u->daddr.ip6,
+                  dest, sizeof(dest));
+        sprintf(desc, "from %s/%u to %s/%u", source, ntohs(u->source), dest, ntohs(u->dest));
+    }
+    return desc;
+}
 
-    return timeout;
+int get_udp_timeout(const struct udp_session *u) {
+    return (ntohs(u->dest) == 53 ? UDP_TIMEOUT_53 : UDP_TIMEOUT_ANY);
 }
 
 int check_udp_session(const struct arguments *args, struct ng_session *s,
-                      int sessions, int maxsessions) {
+                      const int epoll_fd) {
     time_t now = time(NULL);
 
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    if (s->udp.version == 4) {
-        inet_ntop(AF_INET, &s->udp.saddr.ip4, source, sizeof(source));
-        inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &s->udp.saddr.ip6, source, sizeof(source));
-        inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
-    }
+    char desc[120];
+    *desc = 0;
 
     // Check session timeout
-    int timeout = get_udp_timeout(&s->udp, sessions, maxsessions);
+    int timeout = get_udp_timeout(&s->udp);
     if (s->udp.state == UDP_ACTIVE && s->udp.time + timeout < now) {
-        log_android(ANDROID_LOG_WARN, "UDP idle %d/%d sec state %d from %s/%u to %s/%u",
+        log_android(ANDROID_LOG_WARN, "UDP idle %d/%d sec state %d %s",
                     now - s->udp.time, timeout, s->udp.state,
-                    source, ntohs(s->udp.source), dest, ntohs(s->udp.dest));
+                    get_udp_session_desc(&s->udp, desc));
         s->udp.state = UDP_FINISHING;
     }
 
     // Check finished sessions
     if (s->udp.state == UDP_FINISHING) {
-        log_android(ANDROID_LOG_INFO, "UDP close from %s/%u to %s/%u socket %d",
-                    source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), s->socket);
+        log_android(ANDROID_LOG_INFO, "UDP close %s socket %d",
+                    get_udp_session_desc(&s->udp, desc), s->socket);
+
+        // Pooling might have been cancelled by a socket error, queries might be pending still
+        clear_dns_query(s);
 
-        if (close(s->socket))
+        // Keep answered DNS sockets for reuse
+        if (s->udp.pooled &&
+            (!s->udp.received || !put_dns_socket(s->udp.version, s->socket, epoll_fd)))
+            s->udp.pooled = 0;
+
+        if (!s->udp.pooled && close(s->socket))
             log_android(ANDROID_LOG_ERROR, "UDP close %d error %d: %s",
                         s->socket, errno, strerror(errno));
         s->socket = -1;
@@ -68,6 +85,11 @@ int check_udp_session(const struct arguments *args, struct ng_session *s,
     }
 
     if (s->udp.state == UDP_CLOSED && (s->udp.sent || s->udp.received)) {
+        char dest[INET6_ADDRSTRLEN + 1];
+        if (s->udp.version == 4)
+            inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
+        else
+            inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
         account_usage(args, s->udp.version, IPPROTO_UDP,
                       dest, ntohs(s->udp.dest), s->udp.uid, s->udp.sent, s->udp.received);
         s->udp.sent = 0;
@@ -98,43 +120,80 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
         else if (serr)
             log_android(ANDROID_LOG_ERROR, "UDP SO_ERROR %d: %s", serr, strerror(serr));
 
+        s->udp.pooled = 0;
         s->udp.state = UDP_FINISHING;
     } else {
         // Check socket read
         if (ev->events & EPOLLIN) {
             s->udp.time = time(NULL);
 
-            uint8_t *buffer = ng_malloc(s->udp.mss, "udp recv");
-            ssize_t bytes = recv(s->socket, buffer, s->udp.mss, 0);
-            if (bytes < 0) {
+            // Receive a burst of datagrams behind room for the headers
+            size_t hlen = (s->udp.version == 4 ? sizeof(struct iphdr) : sizeof(struct ip6_hdr)) +
+                          sizeof(struct udphdr);
+            struct context *ctx = args->ctx;
+            if (ctx->udp_recv == NULL)
+                ctx->udp_recv = ng_malloc(UDP_YIELD * UDP_RECV_SLOT, "udp recv");
+
+            struct mmsghdr msgs[UDP_YIELD];
+            struct iovec iov[UDP_YIELD];
+            memset(msgs, 0, sizeof(msgs));
+            for (int i = 0; i < UDP_YIELD; i++) {
+                iov[i].iov_base = ctx->udp_recv + i * UDP_RECV_SLOT + hlen;
+                iov[i].iov_len = s->udp.mss;
+                msgs[i].msg_hdr.msg_iov = &iov[i];
+                msgs[i].msg_hdr.msg_iovlen = 1;
+            }
+
+            ctx->stat_syscalls++;
+            int count = recvmmsg(s->socket, msgs, UDP_YIELD, MSG_DONTWAIT, NULL);
+            if (count < 0) {
                 // Socket error
-                log_android(ANDROID_LOG_WARN, "UDP recv error %d: %s",
-                            errno, strerror(errno));
+                if (errno != EAGAIN && errno != EWOULDBLOCK)
+                    log_android(ANDROID_LOG_WARN, "UDP recvmmsg error %d: %s",
+                                errno, strerror(errno));
 
-                if (errno != EINTR && errno != EAGAIN)
+                if (errno != EINTR && errno != EAGAIN && errno != EWOULDBLOCK) {
+                    s->udp.pooled = 0;
                     s->udp.state = UDP_FINISHING;
-            } else if (bytes == 0) {
-                log_android(ANDROID_LOG_WARN, "UDP recv eof");
-                s->udp.state = UDP_FINISHING;
+                }
+                return;
+            }
+
+            for (int i = 0; i < count; i++) {
+                uint8_t *buffer = iov[i].iov_base;
+                ssize_t bytes = msgs[i].msg_len;
+                if (bytes == 0) {
+                    log_android(ANDROID_LOG_WARN, "UDP recv eof");
+                    s->udp.state = UDP_FINISHING;
+                    continue;
+                }
 
-            } else {
                 // Socket read data
-                char dest[INET6_ADDRSTRLEN + 1];
-                if (s->udp.version == 4)
-                    inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
-                else
-                    inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
-                log_android(ANDROID_LOG_INFO, "UDP recv bytes %d from %s/%u for tun",
-                            bytes, dest, ntohs(s->udp.dest));
+                trace(TRACE_UDP_RECV, get_udp_trace_session(&s->udp),
+                      (uint32_t) bytes, 0, 0, 0);
+
+                // Cache DNS response and answer coalesced queries
+                if (s->udp.pooled &&
+                    store_dns_response(args, s, buffer, (size_t) bytes) < 0) {
+                    char dest[INET6_ADDRSTRLEN + 1];
+                    if (s->udp.version == 4)
+                        inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
+                    else
+                        inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
+                    log_android(ANDROID_LOG_WARN, "UDP discard stale DNS response from %s/%u",
+                                dest, ntohs(s->udp.dest));
+                    continue;
+                }
 
                 s->udp.received += bytes;
+                account_uid(args, s->udp.uid, 0, (uint64_t) bytes);
 
                 // Process DNS response
                 if (ntohs(s->udp.dest) == 53)
                     parse_dns_response(args, s, buffer, (size_t *) &bytes);
 
                 // Forward to tun
-                if (write_udp(args, &s->udp, buffer, (size_t) bytes) < 0)
+                if (write_udp_packet(args, &s->udp, buffer - hlen, (size_t) bytes) < 0)
                     s->udp.state = UDP_FINISHING;
                 else {
                     // Prevent too many open files
@@ -142,7 +201,6 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
                         s->udp.state = UDP_FINISHING;
                 }
             }
-            ng_free(buffer, __FILE__, __LINE__);
         }
     }
 }
@@ -182,22 +240,25 @@ void block_udp(const struct arguments *args,
     const struct ip6_hdr *ip6 = (struct ip6_hdr *) pkt;
     const struct udphdr *udphdr = (struct udphdr *) payload;
 
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    if (version == 4) {
-        inet_ntop(AF_INET, &ip4->saddr, source, sizeof(source));
-        inet_ntop(AF_INET, &ip4->daddr, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &ip6->ip6_src, source, sizeof(source));
-        inet_ntop(AF_INET6, &ip6->ip6_dst, dest, sizeof(dest));
-    }
+    if (LOG_ENABLED(ANDROID_LOG_INFO)) {
+        char source[INET6_ADDRSTRLEN + 1];
+        char dest[INET6_ADDRSTRLEN + 1];
+        if (version == 4) {
+            inet_ntop(AF_INET, &ip4->saddr, source, sizeof(source));
+            inet_ntop(AF_INET, &ip4->daddr, dest, sizeof(dest));
+        } else {
+            inet_ntop(AF_INET6, &ip6->ip6_src, source, sizeof(source));
+            inet_ntop(AF_INET6, &ip6->ip6_dst, dest, sizeof(dest));
+        }
 
-    log_android(ANDROID_LOG_INFO, "UDP blocked session from %s/%u to %s/%u",
-                source, ntohs(udphdr->source), dest, ntohs(udphdr->dest));
+        log_android(ANDROID_LOG_INFO, "UDP blocked session from %s/%u to %s/%u",
+                    source, ntohs(udphdr->source), dest, ntohs(udphdr->dest));
+    }
 
     // Register session
     struct ng_session *s = ng_malloc(sizeof(struct ng_session), "udp session block");
     s->protocol = IPPROTO_UDP;
+    s->start = time(NULL);
 
     s->udp.time = time(NULL);
     s->udp.uid = uid;
@@ -214,6 +275,8 @@ void block_udp(const struct arguments *args,
     s->udp.source = udphdr->source;
     s->udp.dest = udphdr->dest;
     s->udp.state = UDP_BLOCKED;
+    s->udp.pooled = 0;
+    s->udp.hdr.version = 0;
     s->socket = -1;
 
     s->next = args->ctx->ng_session;
@@ -245,14 +308,39 @@ jboolean handle_udp(const struct arguments *args,
                              memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
         cur = cur->next;
 
+    // Only new and ignored sessions are logged by address
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
-    if (version == 4) {
-        inet_ntop(AF_INET, &ip4->saddr, source, sizeof(source));
-        inet_ntop(AF_INET, &ip4->daddr, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &ip6->ip6_src, source, sizeof(source));
-        inet_ntop(AF_INET6, &ip6->ip6_dst, dest, sizeof(dest));
+    if ((cur == NULL || cur->udp.state != UDP_ACTIVE) && LOG_ENABLED(ANDROID_LOG_INFO)) {
+        if (version == 4) {
+            inet_ntop(AF_INET, &ip4->saddr, source, sizeof(source));
+            inet_ntop(AF_INET, &ip4->daddr, dest, sizeof(dest));
+        } else {
+            inet_ntop(AF_INET6, &ip6->ip6_src, source, sizeof(source));
+            inet_ntop(AF_INET6, &ip6->ip6_dst, dest, sizeof(dest));
+        }
+    }
+
+    // Answer DNS query from cache
+    if (ntohs(udphdr->dest) == 53 && redirect == NULL && dns_cache_size > 0) {
+        struct udp_session u;
+        memset(&u, 0, sizeof(struct udp_session));
+        u.time = time(NULL);
+        u.uid = uid;
+        u.version = version;
+        if (version == 4) {
+            u.saddr.ip4 = (__be32) ip4->saddr;
+            u.daddr.ip4 = (__be32) ip4->daddr;
+        } else {
+            memcpy(&u.saddr.ip6, &ip6->ip6_src, 16);
+            memcpy(&u.daddr.ip6, &ip6->ip6_dst, 16);
+        }
+        u.source = udphdr->source;
+        u.dest = udphdr->dest;
+        u.state = UDP_ACTIVE;
+
+        if (check_dns_cache(args, &u, data, datalen))
+            return 1;
     }
 
     if (cur != NULL && cur->udp.state != UDP_ACTIVE) {
@@ -269,6 +357,7 @@ jboolean handle_udp(const struct arguments *args,
         // Register session
         struct ng_session *s = ng_malloc(sizeof(struct ng_session), "udp session");
         s->protocol = IPPROTO_UDP;
+        s->start = time(NULL);
 
         s->udp.time = time(NULL);
         s->udp.uid = uid;
@@ -295,10 +384,15 @@ jboolean handle_udp(const struct arguments *args,
         s->udp.source = udphdr->source;
         s->udp.dest = udphdr->dest;
         s->udp.state = UDP_ACTIVE;
+        s->udp.pooled = (uint8_t) (ntohs(udphdr->dest) == 53 && redirect == NULL &&
+                                   dns_cache_size > 0);
+        s->udp.hdr.version = 0;
         s->next = NULL;
 
         // Open UDP socket
-        s->socket = open_udp_socket(args, &s->udp, redirect);
+        s->socket = (s->udp.pooled ? get_dns_socket(version) : -1);
+        if (s->socket < 0)
+            s->socket = open_udp_socket(args, &s->udp, redirect);
         if (s->socket < 0) {
             ng_free(s, __FILE__, __LINE__);
             return 0;
@@ -315,6 +409,8 @@ jboolean handle_udp(const struct arguments *args,
 
         s->next = args->ctx->ng_session;
         args->ctx->ng_session = s;
+        args->ctx->sessions++;
+        args->ctx->memory += sizeof(struct ng_session);
 
         cur = s;
     }
@@ -325,8 +421,8 @@ jboolean handle_udp(const struct arguments *args,
             return 1;
     }
 
-    log_android(ANDROID_LOG_INFO, "UDP forward from tun %s/%u to %s/%u data %d",
-                source, ntohs(udphdr->source), dest, ntohs(udphdr->dest), datalen);
+    trace(TRACE_UDP_FORWARD, TRACE_SESSION(version, IPPROTO_UDP, ntohs(udphdr->source)),
+          (uint32_t) datalen, 0, 0, 0);
 
     cur->udp.time = time(NULL);
 
@@ -360,21 +456,94 @@ jboolean handle_udp(const struct arguments *args,
         }
     }
 
-    if (sendto(cur->socket, data, (socklen_t) datalen, MSG_NOSIGNAL,
-               (rversion == 4 ? (const struct sockaddr *) &addr4
-                              : (const struct sockaddr *) &addr6),
-               (socklen_t) (rversion == 4 ? sizeof(addr4) : sizeof(addr6))) != datalen) {
-        log_android(ANDROID_LOG_ERROR, "UDP sendto error %d: %s", errno, strerror(errno));
-        if (errno != EINTR && errno != EAGAIN) {
-            cur->udp.state = UDP_FINISHING;
-            return 0;
-        }
-    } else
-        cur->udp.sent += datalen;
+    // Queue for sendmmsg, flushed after the tun has been read
+    struct context *ctx = args->ctx;
+    if (ctx->udp_sends == TUN_YIELD)
+        flush_udp(args);
+
+    if (datalen > get_mtu()) {
+        log_android(ANDROID_LOG_ERROR, "UDP send size %d", datalen);
+        return 0;
+    }
+
+    struct udp_send *q = &ctx->udp_send[ctx->udp_sends];
+    if (q->data == NULL)
+        q->data = ng_malloc(get_mtu(), "udp send");
+    q->session = cur;
+    if (rversion == 4) {
+        q->addr.addr4 = addr4;
+        q->addrlen = sizeof(addr4);
+    } else {
+        q->addr.addr6 = addr6;
+        q->addrlen = sizeof(addr6);
+    }
+    memcpy(q->data, data, datalen);
+    q->datalen = datalen;
+    ctx->udp_sends++;
 
     return 1;
 }
 
+void flush_udp(const struct arguments *args) {
+    struct context *ctx = args->ctx;
+    struct mmsghdr msgs[TUN_YIELD];
+    struct iovec iov[TUN_YIELD];
+    struct udp_send *queued[TUN_YIELD];
+    int done[TUN_YIELD];
+    memset(done, 0, sizeof(done));
+
+    for (int i = 0; i < ctx->udp_sends; i++) {
+        if (done[i])
+            continue;
+
+        // All datagrams of one session in a single call, in order
+        struct ng_session *cur = ctx->udp_send[i].session;
+        int closed = (cur->socket < 0); // evicted
+        int n = 0;
+        for (int j = i; j < ctx->udp_sends; j++)
+            if (!done[j] && ctx->udp_send[j].session == cur) {
+                struct udp_send *q = &ctx->udp_send[j];
+                done[j] = 1;
+                queued[n] = q;
+                iov[n].iov_base = q->data;
+                iov[n].iov_len = q->datalen;
+                memset(&msgs[n], 0, sizeof(struct mmsghdr));
+                msgs[n].msg_hdr.msg_name = &q->addr;
+                msgs[n].msg_hdr.msg_namelen = q->addrlen;
+                msgs[n].msg_hdr.msg_iov = &iov[n];
+                msgs[n].msg_hdr.msg_iovlen = 1;
+                n++;
+            }
+
+        int sent = 0;
+        while (sent < n && !closed) {
+            ctx->stat_syscalls++;
+            int res = sendmmsg(cur->socket, msgs + sent, (unsigned int) (n - sent), MSG_NOSIGNAL);
+            if (res <= 0) {
+                log_android(ANDROID_LOG_ERROR, "UDP sendmmsg error %d: %s",
+                            errno, strerror(errno));
+                if (errno != EINTR && errno != EAGAIN)
+                    cur->udp.state = UDP_FINISHING;
+                break;
+            }
+
+            for (int k = sent; k < sent + res; k++)
+                if (msgs[k].msg_len != queued[k]->datalen)
+                    log_android(ANDROID_LOG_ERROR, "UDP sendmmsg %d/%d",
+                                msgs[k].msg_len, queued[k]->datalen);
+                else {
+                    cur->udp.sent += queued[k]->datalen;
+                    account_uid(args, cur->udp.uid, queued[k]->datalen, 0);
+                    if (cur->udp.pooled)
+                        register_dns_query(cur, queued[k]->data, queued[k]->datalen);
+                }
+            sent += res;
+        }
+    }
+
+    ctx->udp_sends = 0;
+}
+
 int open_udp_socket(const struct arguments *args,
                     const struct udp_session *cur, const struct allowed *redirect) {
     int sock;
@@ -435,111 +604,69 @@ int open_udp_socket(const struct arguments *args,
     return sock;
 }
 
+static const struct hdr_template *get_udp_template(const struct udp_session *cur) {
+    // Built on first use, addresses and ports do not change during a session
+    struct hdr_template *t = (struct hdr_template *) &cur->hdr;
+    if (t->version != cur->version)
+        init_hdr_template(t, cur->version, IPPROTO_UDP,
+                          &cur->daddr, &cur->saddr, cur->dest, cur->source);
+    return t;
+}
+
 ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
                   uint8_t *data, size_t datalen) {
+    size_t hlen = (cur->version == 4 ? sizeof(struct iphdr) : sizeof(struct ip6_hdr)) +
+                  sizeof(struct udphdr);
+    uint8_t *packet = ng_malloc(hlen + datalen, "udp write");
+    if (datalen)
+        memcpy(packet + hlen, data, datalen);
+    ssize_t res = write_udp_packet(args, cur, packet, datalen);
+    ng_free(packet, __FILE__, __LINE__);
+    return res;
+}
+
+// The data is in the packet after the IP and UDP headers, which are built in front of it
+ssize_t write_udp_packet(const struct arguments *args, const struct udp_session *cur,
+                         uint8_t *packet, size_t datalen) {
     size_t len;
-    u_int8_t *buffer;
     struct udphdr *udp;
     uint16_t csum;
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
 
     // Build packet
-    if (cur->version == 4) {
-        len = sizeof(struct iphdr) + sizeof(struct udphdr) + datalen;
-        buffer = ng_malloc(len, "udp write4");
-        struct iphdr *ip4 = (struct iphdr *) buffer;
-        udp = (struct udphdr *) (buffer + sizeof(struct iphdr));
-        if (datalen)
-            memcpy(buffer + sizeof(struct iphdr) + sizeof(struct udphdr), data, datalen);
-
-        // Build IP4 header
-        memset(ip4, 0, sizeof(struct iphdr));
-        ip4->version = 4;
-        ip4->ihl = sizeof(struct iphdr) >> 2;
-        ip4->tot_len = htons(len);
-        ip4->ttl = IPDEFTTL;
-        ip4->protocol = IPPROTO_UDP;
-        ip4->saddr = cur->daddr.ip4;
-        ip4->daddr = cur->saddr.ip4;
-
-        // Calculate IP4 checksum
-        ip4->check = ~calc_checksum(0, (uint8_t *) ip4, sizeof(struct iphdr));
-
-        // Calculate UDP4 checksum
-        struct ippseudo pseudo;
-        memset(&pseudo, 0, sizeof(struct ippseudo));
-        pseudo.ippseudo_src.s_addr = (__be32) ip4->saddr;
-        pseudo.ippseudo_dst.s_addr = (__be32) ip4->daddr;
-        pseudo.ippseudo_p = ip4->protocol;
-        pseudo.ippseudo_len = htons(sizeof(struct udphdr) + datalen);
-
-        csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
-    } else {
-        len = sizeof(struct ip6_hdr) + sizeof(struct udphdr) + datalen;
-        buffer = ng_malloc(len, "udp write6");
-        struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
-        udp = (struct udphdr *) (buffer + sizeof(struct ip6_hdr));
-        if (datalen)
-            memcpy(buffer + sizeof(struct ip6_hdr) + sizeof(struct udphdr), data, datalen);
-
-        // Build IP6 header
-        memset(ip6, 0, sizeof(struct ip6_hdr));
-        ip6->ip6_ctlun.ip6_un1.ip6_un1_flow = 0;
-        ip6->ip6_ctlun.ip6_un1.ip6_un1_plen = htons(len - sizeof(struct ip6_hdr));
-        ip6->ip6_ctlun.ip6_un1.ip6_un1_nxt = IPPROTO_UDP;
-        ip6->ip6_ctlun.ip6_un1.ip6_un1_hlim = IPDEFTTL;
-        ip6->ip6_ctlun.ip6_un2_vfc = IPV6_VERSION;
-        memcpy(&(ip6->ip6_src), &cur->daddr.ip6, 16);
-        memcpy(&(ip6->ip6_dst), &cur->saddr.ip6, 16);
-
-        // Calculate UDP6 checksum
-        struct ip6_hdr_pseudo pseudo;
-        memset(&pseudo, 0, sizeof(struct ip6_hdr_pseudo));
-        memcpy(&pseudo.ip6ph_src, &ip6->ip6_dst, 16);
-        memcpy(&pseudo.ip6ph_dst, &ip6->ip6_src, 16);
-        pseudo.ip6ph_len = ip6->ip6_ctlun.ip6_un1.ip6_un1_plen;
-        pseudo.ip6ph_nxt = ip6->ip6_ctlun.ip6_un1.ip6_un1_nxt;
-
-        csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ip6_hdr_pseudo));
-    }
+    const struct hdr_template *t = get_udp_template(cur);
+    len = (cur->version == 4 ? sizeof(struct iphdr) : sizeof(struct ip6_hdr)) +
+          sizeof(struct udphdr) + datalen;
+    size_t iplen = put_hdr_template(t, packet, len);
+    udp = (struct udphdr *) (packet + iplen);
+    uint8_t *data = packet + iplen + sizeof(struct udphdr);
 
     // Build UDP header
-    memset(udp, 0, sizeof(struct udphdr));
     udp->source = cur->dest;
     udp->dest = cur->source;
     udp->len = htons(sizeof(struct udphdr) + datalen);
 
-    // Continue checksum
-    csum = calc_checksum(csum, (uint8_t *) udp, sizeof(struct udphdr));
+    // Addresses, protocol and ports are in the template sum, add the length twice
+    // for the pseudo header and the UDP header
+    csum = add_checksum(t->pseudo_sum, udp->len);
+    csum = add_checksum(csum, udp->len);
     csum = calc_checksum(csum, data, datalen);
     udp->check = ~csum;
 
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              (cur->version == 4 ? (const void *) &cur->saddr.ip4 : (const void *) &cur->saddr.ip6),
-              source,
-              sizeof(source));
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              (cur->version == 4 ? (const void *) &cur->daddr.ip4 : (const void *) &cur->daddr.ip6),
-              dest,
-              sizeof(dest));
-
     // Send packet
-    log_android(ANDROID_LOG_DEBUG,
-                "UDP sending to tun %d from %s/%u to %s/%u data %u",
-                args->tun, dest, ntohs(cur->dest), source, ntohs(cur->source), len);
+    trace(TRACE_UDP_WRITE, get_udp_trace_session(cur),
+          (uint32_t) datalen, 0, 0, 0);
 
-    ssize_t res = write(args->tun, buffer, len);
+    ssize_t res = write(args->tun, packet, len);
+    args->ctx->stat_syscalls++;
 
     // Write PCAP record
     if (res >= 0) {
-        if (pcap_file != NULL)
-            write_pcap_rec(buffer, (size_t) res);
+        args->ctx->stat_bytes += res;
+        if (__atomic_load_n(&pcap_enabled, __ATOMIC_RELAXED))
+            write_pcap_rec(packet, (size_t) res);
     } else
         log_android(ANDROID_LOG_WARN, "UDP write error %d: %s", errno, strerror(errno));
 
-    ng_free(buffer, __FILE__, __LINE__);
-
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "write %d/%d", res, len);
         return -1;
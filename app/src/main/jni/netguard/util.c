@@ -22,17 +22,37 @@
 extern int loglevel;
 
 uint16_t calc_checksum(uint16_t start, const uint8_t *buffer, size_t length) {
-    register uint32_t sum = start;
-    register uint16_t *buf = (uint16_t *) buffer;
-    register size_t len = length;
+    // 32 bit words are summed into 64 bits, the carries are folded once at the end
+    uint64_t sum = start;
+    const uint8_t *buf = buffer;
+    size_t len = length;
 
-    while (len > 1) {
-        sum += *buf++;
+    while (len >= 16) {
+        uint32_t w[4];
+        memcpy(w, buf, sizeof(w)); // buffer might not be aligned
+        sum += (uint64_t) w[0] + w[1] + w[2] + w[3];
+        buf += 16;
+        len -= 16;
+    }
+
+    while (len >= 4) {
+        uint32_t w;
+        memcpy(&w, buf, sizeof(w));
+        sum += w;
+        buf += 4;
+        len -= 4;
+    }
+
+    if (len >= 2) {
+        uint16_t w;
+        memcpy(&w, buf, sizeof(w));
+        sum += w;
+        buf += 2;
         len -= 2;
     }
 
     if (len > 0)
-        sum += *((uint8_t *) buf);
+        sum += *buf;
 
     while (sum >> 16)
         sum = (sum & 0xFFFF) + (sum >> 16);
@@ -40,6 +60,137 @@ uint16_t calc_checksum(uint16_t start, const uint8_t *buffer, size_t length) {
     return (uint16_t) sum;
 }
 
+uint16_t add_checksum(uint16_t sum, uint16_t word) {
+    uint32_t s = (uint32_t) sum + word;
+    return (uint16_t) ((s & 0xFFFF) + (s >> 16));
+}
+
+#ifdef CHECK_CHECKSUM
+// Previous implementation, summing one 16 bit word at a time
+static uint16_t calc_checksum_words(uint16_t start, const uint8_t *buffer, size_t length) {
+    uint32_t sum = start;
+    size_t i = 0;
+
+    for (; i + 1 < length; i += 2) {
+        uint16_t w;
+        memcpy(&w, buffer + i, sizeof(w));
+        sum += w;
+    }
+
+    if (i < length)
+        sum += buffer[i];
+
+    while (sum >> 16)
+        sum = (sum & 0xFFFF) + (sum >> 16);
+
+    return (uint16_t) sum;
+}
+
+static int check_checksum_at(uint8_t *buffer, size_t offset, size_t length, uint16_t start,
+                             unsigned int seed) {
+    uint16_t sum = calc_checksum(start, buffer + offset, length);
+    uint16_t ref = calc_checksum_words(start, buffer + offset, length);
+    if (sum == ref)
+        return 0;
+
+    log_android(ANDROID_LOG_ERROR,
+                "Checksum mismatch seed %u offset %u length %u start %x sum %x expected %x",
+                seed, (unsigned) offset, (unsigned) length, start, sum, ref);
+    return 1;
+}
+
+// Returns the number of mismatches with the previous implementation
+int check_checksum() {
+    unsigned int seed = (unsigned int) time(NULL);
+    unsigned int r = seed;
+    size_t size = 2048 + 8;
+    uint8_t *buffer = ng_malloc(size, "check checksum");
+    for (size_t i = 0; i < size; i++)
+        buffer[i] = (uint8_t) rand_r(&r);
+
+    // All short lengths at all alignments, including odd start addresses
+    int errors = 0;
+    for (size_t offset = 0; offset < 8; offset++)
+        for (size_t length = 0; length <= 64; length++)
+            errors += check_checksum_at(buffer, offset, length, (uint16_t) rand_r(&r), seed);
+
+    // Random lengths and alignments up to a large packet
+    for (int i = 0; i < CHECK_CHECKSUM; i++) {
+        size_t offset = (size_t) rand_r(&r) % 8;
+        size_t length = (size_t) rand_r(&r) % 2049;
+        errors += check_checksum_at(buffer, offset, length, (uint16_t) rand_r(&r), seed);
+    }
+
+    // Sums carrying into the upper bits
+    memset(buffer, 0xFF, size);
+    for (size_t offset = 0; offset < 8; offset++)
+        errors += check_checksum_at(buffer, offset, 2048 - offset, 0xFFFF, seed);
+
+    ng_free(buffer, __FILE__, __LINE__);
+
+    log_android(errors ? ANDROID_LOG_ERROR : ANDROID_LOG_WARN,
+                "Checksum check seed %u errors %d", seed, errors);
+    return errors;
+}
+#endif
+
+void init_hdr_template(struct hdr_template *t, int version, uint8_t protocol,
+                       const void *saddr, const void *daddr, __be16 sport, __be16 dport) {
+    memset(t, 0, sizeof(struct hdr_template));
+    if (version == 4) {
+        struct iphdr *ip4 = (struct iphdr *) t->ip;
+        ip4->version = 4;
+        ip4->ihl = sizeof(struct iphdr) >> 2;
+        ip4->ttl = IPDEFTTL;
+        ip4->protocol = protocol;
+        memcpy(&ip4->saddr, saddr, 4);
+        memcpy(&ip4->daddr, daddr, 4);
+        t->ip_sum = calc_checksum(0, t->ip, sizeof(struct iphdr));
+
+        struct ippseudo pseudo;
+        memset(&pseudo, 0, sizeof(struct ippseudo));
+        pseudo.ippseudo_src.s_addr = (__be32) ip4->saddr;
+        pseudo.ippseudo_dst.s_addr = (__be32) ip4->daddr;
+        pseudo.ippseudo_p = protocol;
+        t->pseudo_sum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
+    } else {
+        struct ip6_hdr *ip6 = (struct ip6_hdr *) t->ip;
+        ip6->ip6_ctlun.ip6_un1.ip6_un1_flow = 0;
+        ip6->ip6_ctlun.ip6_un1.ip6_un1_nxt = protocol;
+        ip6->ip6_ctlun.ip6_un1.ip6_un1_hlim = IPDEFTTL;
+        ip6->ip6_ctlun.ip6_un2_vfc = IPV6_VERSION;
+        memcpy(&ip6->ip6_src, saddr, 16);
+        memcpy(&ip6->ip6_dst, daddr, 16);
+
+        struct ip6_hdr_pseudo pseudo;
+        memset(&pseudo, 0, sizeof(struct ip6_hdr_pseudo));
+        memcpy(&pseudo.ip6ph_src, saddr, 16);
+        memcpy(&pseudo.ip6ph_dst, daddr, 16);
+        pseudo.ip6ph_nxt = protocol;
+        t->pseudo_sum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ip6_hdr_pseudo));
+    }
+
+    __be16 ports[2] = {sport, dport};
+    t->pseudo_sum = calc_checksum(t->pseudo_sum, (uint8_t *) ports, sizeof(ports));
+    t->version = (uint8_t) version;
+}
+
+size_t put_hdr_template(const struct hdr_template *t, uint8_t *buffer, size_t len) {
+    // Only the length differs per packet, fold it into the checksum (RFC 1624)
+    if (t->version == 4) {
+        memcpy(buffer, t->ip, sizeof(struct iphdr));
+        struct iphdr *ip4 = (struct iphdr *) buffer;
+        ip4->tot_len = htons(len);
+        ip4->check = ~add_checksum(t->ip_sum, ip4->tot_len);
+        return sizeof(struct iphdr);
+    } else {
+        memcpy(buffer, t->ip, sizeof(struct ip6_hdr));
+        struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
+        ip6->ip6_ctlun.ip6_un1.ip6_un1_plen = htons(len - sizeof(struct ip6_hdr));
+        return sizeof(struct ip6_hdr);
+    }
+}
+
 int compare_u32(uint32_t s1, uint32_t s2) {
     // https://tools.ietf.org/html/rfc1982
     if (s1 == s2)
@@ -60,7 +211,7 @@ int sdk_int(JNIEnv *env) {
     return (*env)->GetStaticIntField(env, clsVersion, fid);
 }
 
-void log_android(int prio, const char *fmt, ...) {
+void (log_android)(int prio, const char *fmt, ...) {
     if (prio >= loglevel) {
         char line[1024];
         va_list argptr;
@@ -126,18 +277,21 @@ const char *strstate(const int state) {
     }
 }
 
-char *hex(const u_int8_t *data, const size_t len) {
+char *hex(const u_int8_t *data, const size_t len, char *hexout, size_t size) {
     char hex_str[] = "0123456789ABCDEF";
 
-    char *hexout;
-    hexout = (char *) ng_malloc(len * 3 + 1, "hex"); // TODO free
+    // Three characters per byte, truncated to the size of the caller's buffer
+    size_t n = (size > 0 ? (size - 1) / 3 : 0);
+    if (n > len)
+        n = len;
 
-    for (size_t i = 0; i < len; i++) {
+    for (size_t i = 0; i < n; i++) {
         hexout[i * 3 + 0] = hex_str[(data[i] >> 4) & 0x0F];
         hexout[i * 3 + 1] = hex_str[(data[i]) & 0x0F];
         hexout[i * 3 + 2] = ' ';
     }
-    hexout[len * 3] = 0;
+    if (size > 0)
+        hexout[n * 3] = 0;
 
     return hexout;
 }
@@ -1,32 +1,46 @@
 package jp.gr.java_conf.androtaku.geomap;
 
-import java.util.List;
+import android.graphics.Path;
 
 /**
  * Created by takuma on 2015/07/18.
  */
 public class CountrySection {
     private String countryCode;
-    private List<List<Float>> xPathList;
-    private List<List<Float>> yPathList;
+    // Polygons as x,y pairs
+    private float[][] paths;
+    private Path path;
 
     public void setCountryCode(String countryCode){
         this.countryCode = countryCode;
     }
-    public void setXPathList(List<List<Float>> xPathList){
-        this.xPathList = xPathList;
-    }
-    public void setYPathList(List<List<Float>> yPathList){
-        this.yPathList = yPathList;
+    public void setPaths(float[][] paths){
+        this.paths = paths;
+        this.path = null;
     }
 
     public String getCountryCode(){
         return this.countryCode;
     }
-    public List<List<Float>> getXPathList(){
-        return this.xPathList;
+    public float[][] getPaths(){
+        return this.paths;
     }
-    public List<List<Float>> getYPathList(){
-        return this.yPathList;
+
+    /**
+     * @return all polygons in map coordinates, built once
+     */
+    public synchronized Path getPath(){
+        if (path == null) {
+            path = new Path();
+            for (float[] points : paths) {
+                if (points.length < 2)
+                    continue;
+                path.moveTo(points[0], points[1]);
+                for (int i = 2; i + 1 < points.length; i += 2)
+                    path.lineTo(points[i], points[i + 1]);
+                path.close();
+            }
+        }
+        return path;
     }
 }
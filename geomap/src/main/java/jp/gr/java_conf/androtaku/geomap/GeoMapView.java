@@ -39,6 +39,10 @@ public class GeoMapView extends androidx.appcompat.widget.AppCompatImageView {
         this._context = context;
     }
 
+    // Outlines of all countries, shared by all views of the same size
+    private static Bitmap _baseMap;
+    private static int _baseColor;
+
     public void show() {
         _paint = new Paint();
         _paint.setColor(ContextCompat.getColor(_context, R.color.countryStroke));
@@ -58,12 +62,9 @@ public class GeoMapView extends androidx.appcompat.widget.AppCompatImageView {
                 return;
             }
 
-            final Bitmap bitmap = Bitmap.createBitmap(
-                    width,
-                    height,
-                    ARGB_8888);
+            final Bitmap bitmap = getBaseMap(width, height, _paint).copy(ARGB_8888, true);
             Canvas canvas = new Canvas(bitmap);
-            drawMap(canvas);
+            drawHighlights(canvas);
 
             // run on UI
             handler.post(() -> {
@@ -78,29 +79,41 @@ public class GeoMapView extends androidx.appcompat.widget.AppCompatImageView {
             listener.onShown(success);
     }
 
+    private Bitmap getBaseMap(int width, int height, Paint paint) {
+        synchronized (GeoMapView.class) {
+            if (_baseMap == null ||
+                    _baseMap.getWidth() != width || _baseMap.getHeight() != height ||
+                    _baseColor != paint.getColor()) {
+                Bitmap bitmap = Bitmap.createBitmap(width, height, ARGB_8888);
+                Canvas canvas = new Canvas(bitmap);
+                canvas.scale(getRatio(canvas), getRatio(canvas));
+                for (CountrySection countrySection : _countries)
+                    canvas.drawPath(countrySection.getPath(), paint);
+                _baseMap = bitmap;
+                _baseColor = paint.getColor();
+            }
+            return _baseMap;
+        }
+    }
+
+    private float getRatio(Canvas canvas) {
+        return (float) canvas.getWidth() / SVGParser.xMax;
+    }
+
     /**
-     * draw map on canvas
+     * fill highlighted countries on top of the base map
      *
      * @param canvas target canvas
      */
-    private void drawMap(Canvas canvas) {
-        float ratio = (float) canvas.getWidth() / SVGParser.xMax;
+    private void drawHighlights(Canvas canvas) {
+        float ratio = getRatio(canvas);
+        canvas.scale(ratio, ratio);
 
         for (CountrySection countrySection : _countries) {
-            List<List<Float>> xPathList = countrySection.getXPathList();
-            List<List<Float>> yPathList = countrySection.getYPathList();
-            int numList = xPathList.size();
-            for (int i = 0; i < numList; ++i) {
-                Path path = new Path();
-                path.moveTo(xPathList.get(i).get(0) * ratio, yPathList.get(i).get(0) * ratio);
-                int numPoint = xPathList.get(i).size();
-                for (int j = 1; j < numPoint; ++j) {
-                    path.lineTo(xPathList.get(i).get(j) * ratio, yPathList.get(i).get(j) * ratio);
-                }
-                Paint paint = _countryColours.get(countrySection.getCountryCode());
-                if (paint != null) {
-                    canvas.drawPath(path, paint);
-                }
+            Paint paint = _countryColours.get(countrySection.getCountryCode());
+            if (paint != null) {
+                Path path = countrySection.getPath();
+                canvas.drawPath(path, paint);
                 canvas.drawPath(path, this._paint);
             }
         }
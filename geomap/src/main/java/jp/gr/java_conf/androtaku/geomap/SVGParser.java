@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -16,7 +18,16 @@ public class SVGParser {
     public static float xMax = 0;
     public static float yMax = 0;
 
-    public static List<CountrySection> getCountries(Context context){
+    // The map never changes, so it is parsed once per process
+    private static List<CountrySection> countries = null;
+
+    public static synchronized List<CountrySection> getCountries(Context context){
+        if (countries == null)
+            countries = Collections.unmodifiableList(parse(context));
+        return countries;
+    }
+
+    private static List<CountrySection> parse(Context context){
         InputStream inputStream = context.getResources().openRawResource(R.raw.world);
         BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
         List<CountrySection> countySections = new ArrayList<>();
@@ -26,6 +37,7 @@ public class SVGParser {
             while(!reader.readLine().contains("<g>"));
 
             //parse path
+            float[] points = new float[256];
             while(!(tempString = reader.readLine()).contains("</g>")){
                 CountrySection countrySection = new CountrySection();
                 String idPrefix = "id=\"";
@@ -35,73 +47,40 @@ public class SVGParser {
                 String pathPrefix = " d=\"";
                 index = tempString.indexOf(pathPrefix) + pathPrefix.length();
                 int endIndex = tempString.indexOf("\"", index);
-                List<List<Float>> xPathList = new ArrayList<>();
-                List<List<Float>> yPathList = new ArrayList<>();
-                List<Float> xPathTmp = new ArrayList<>();
-                List<Float> yPathTmp = new ArrayList<>();
+                List<float[]> pathList = new ArrayList<>();
+                int numPoint = 0;
                 float preXPos = 0;
                 float preYPos = 0;
-                Status status = Status.READ_ORDER;
                 while(index < endIndex){
-                    String tmpXPos, tmpYPos, tmp;
-                    switch(status){
-                        case READ_ORDER:
-                            String order = tempString.substring(index, ++index);
-                            switch(order){
-                                case "M":
-                                    status = Status.READ_ABS_X_PATH;
-                                    xPathTmp = new ArrayList<>();
-                                    yPathTmp = new ArrayList<>();
-                                    break;
-                                case "m":
-                                    status = Status.READ_REL_X_PATH;
-                                    xPathTmp = new ArrayList<>();
-                                    yPathTmp = new ArrayList<>();
-                                    break;
-                                case "L":
-                                    status = Status.READ_ABS_X_PATH;
-                                    break;
-                                case "l":
-                                    status = Status.READ_REL_X_PATH;
-                                    break;
-                                case "z":
-                                    xPathList.add(xPathTmp);
-                                    yPathList.add(yPathTmp);
+                    char order = tempString.charAt(index++);
+                    switch(order){
+                        case 'M':
+                        case 'm':
+                            numPoint = 0;
+                            // fall through
+                        case 'L':
+                        case 'l':
+                            int comma = tempString.indexOf(',', index);
+                            float xPos = Float.parseFloat(tempString.substring(index, comma));
+                            index = comma + 1;
+                            int end = index;
+                            while(end < endIndex && isNumber(tempString.charAt(end))){
+                                ++end;
                             }
-                            break;
-                        case READ_ABS_X_PATH:
-                            tmpXPos = tempString.substring(index, tempString.indexOf(",", index));
-                            xPathTmp.add(Float.valueOf(tmpXPos));
-                            preXPos = Float.valueOf(tmpXPos);
-                            index = tempString.indexOf(",", index) + 1;
-                            status = Status.READ_ABS_Y_PATH;
-                            break;
-                        case READ_ABS_Y_PATH:
-                            tmpYPos = "";
-                            while((tmp = tempString.substring(index, ++index)).matches("[0-9.-]")){
-                                tmpYPos += tmp;
+                            float yPos = Float.parseFloat(tempString.substring(index, end));
+                            index = end;
+
+                            boolean relative = (order == 'm' || order == 'l');
+                            preXPos = (relative ? preXPos + xPos : xPos);
+                            preYPos = (relative ? preYPos + yPos : yPos);
+                            if(numPoint + 2 > points.length){
+                                points = Arrays.copyOf(points, points.length * 2);
                             }
-                            yPathTmp.add(Float.valueOf(tmpYPos));
-                            preYPos = Float.valueOf(tmpYPos);
-                            status = Status.READ_ORDER;
-                            --index;
+                            points[numPoint++] = preXPos;
+                            points[numPoint++] = preYPos;
                             break;
-                        case READ_REL_X_PATH:
-                            tmpXPos = tempString.substring(index, tempString.indexOf(",", index));
-                            xPathTmp.add(preXPos + Float.valueOf(tmpXPos));
-                            preXPos += Float.valueOf(tmpXPos);
-                            index = tempString.indexOf(",", index) + 1;
-                            status = Status.READ_REL_Y_PATH;
-                            break;
-                        case READ_REL_Y_PATH:
-                            tmpYPos = "";
-                            while((tmp = tempString.substring(index, ++index)).matches("[0-9.-]")){
-                                tmpYPos += tmp;
-                            }
-                            yPathTmp.add(preYPos + Float.valueOf(tmpYPos));
-                            preYPos += Float.valueOf(tmpYPos);
-                            status = Status.READ_ORDER;
-                            --index;
+                        case 'z':
+                            pathList.add(Arrays.copyOf(points, numPoint));
                     }
                 }
                 if(xMax < preXPos){
@@ -110,8 +89,7 @@ public class SVGParser {
                 if(yMax < preYPos){
                     yMax = preYPos;
                 }
-                countrySection.setXPathList(xPathList);
-                countrySection.setYPathList(yPathList);
+                countrySection.setPaths(pathList.toArray(new float[0][]));
                 countySections.add(countrySection);
             }
             reader.close();
@@ -121,11 +99,7 @@ public class SVGParser {
         return countySections;
     }
 
-    private enum Status {
-        READ_ORDER,
-        READ_ABS_X_PATH,
-        READ_ABS_Y_PATH,
-        READ_REL_X_PATH,
-        READ_REL_Y_PATH,
+    private static boolean isNumber(char c){
+        return (c >= '0' && c <= '9') || c == '.' || c == '-';
     }
 }